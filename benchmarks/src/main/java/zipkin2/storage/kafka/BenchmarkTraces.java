@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+/**
+ * Traces shaped like the ones reported by instrumented services: a frontend server span calling
+ * backends, each backend call recorded as a client and server span, and backends calling a
+ * database. Spans carry the tags and annotations usually found on HTTP and database calls.
+ */
+public final class BenchmarkTraces {
+  static final Endpoint FRONTEND =
+    Endpoint.newBuilder().serviceName("frontend").ip("172.17.0.13").port(8080).build();
+  static final Endpoint[] BACKENDS = {
+    Endpoint.newBuilder().serviceName("backend").ip("172.17.0.14").port(9000).build(),
+    Endpoint.newBuilder().serviceName("inventory").ip("172.17.0.15").port(9000).build(),
+    Endpoint.newBuilder().serviceName("pricing").ip("172.17.0.16").port(9000).build()
+  };
+  static final Endpoint DB =
+    Endpoint.newBuilder().serviceName("mysql").ip("172.17.0.20").port(3306).build();
+
+  /** Base timestamp, so traces are within the retention of stores. */
+  static final long START_MICROS = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+
+  /**
+   * Creates a trace with a root span and backend calls until reaching {@code spanCount} spans.
+   * Each backend call has a client span, a server span and a database span.
+   */
+  public static List<Span> trace(long traceId, int spanCount) {
+    String traceIdHex = String.format("%016x", traceId);
+    long timestamp = START_MICROS + traceId;
+    List<Span> spans = new ArrayList<>(spanCount);
+    Span root = Span.newBuilder()
+      .traceId(traceIdHex)
+      .id(1L)
+      .name("get /checkout")
+      .kind(Span.Kind.SERVER)
+      .localEndpoint(FRONTEND)
+      .timestamp(timestamp)
+      .duration(spanCount * 1000L)
+      .putTag("http.method", "GET")
+      .putTag("http.path", "/checkout")
+      .putTag("http.status_code", "200")
+      .addAnnotation(timestamp + 10, "wr")
+      .build();
+    spans.add(root);
+    long id = 2L;
+    for (int call = 0; spans.size() < spanCount; call++) {
+      Endpoint backend = BACKENDS[call % BACKENDS.length];
+      String path = "/api/" + backend.serviceName();
+      long callTimestamp = timestamp + call * 1000L + 50;
+      long clientId = id++;
+      spans.add(Span.newBuilder()
+        .traceId(traceIdHex)
+        .parentId(root.id())
+        .id(clientId)
+        .name("get " + path)
+        .kind(Span.Kind.CLIENT)
+        .localEndpoint(FRONTEND)
+        .remoteEndpoint(backend)
+        .timestamp(callTimestamp)
+        .duration(900L)
+        .putTag("http.method", "GET")
+        .putTag("http.path", path)
+        .build());
+      if (spans.size() == spanCount) break;
+      spans.add(Span.newBuilder()
+        .traceId(traceIdHex)
+        .parentId(root.id())
+        .id(clientId)
+        .name("get " + path)
+        .kind(Span.Kind.SERVER)
+        .shared(true)
+        .localEndpoint(backend)
+        .remoteEndpoint(FRONTEND)
+        .timestamp(callTimestamp + 20)
+        .duration(850L)
+        .putTag("http.method", "GET")
+        .putTag("http.path", path)
+        .putTag("http.status_code", "200")
+        .build());
+      if (spans.size() == spanCount) break;
+      spans.add(Span.newBuilder()
+        .traceId(traceIdHex)
+        .parentId(clientId)
+        .id(id++)
+        .name("query")
+        .kind(Span.Kind.CLIENT)
+        .localEndpoint(backend)
+        .remoteEndpoint(DB)
+        .timestamp(callTimestamp + 100)
+        .duration(500L)
+        .putTag("sql.query", "select * from " + backend.serviceName() + " where id = ?")
+        .addAnnotation(callTimestamp + 120, "connected")
+        .build());
+    }
+    return spans;
+  }
+
+  /** Creates {@code traceCount} traces with consecutive trace IDs. */
+  public static List<List<Span>> traces(int traceCount, int spanCount) {
+    List<List<Span>> traces = new ArrayList<>(traceCount);
+    for (int i = 1; i <= traceCount; i++) traces.add(trace(i, spanCount));
+    return traces;
+  }
+
+  BenchmarkTraces() {
+  }
+}
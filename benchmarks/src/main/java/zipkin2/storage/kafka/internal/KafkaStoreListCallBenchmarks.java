@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.internal;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.kafka.BenchmarkTraces;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/** Parsing of traces received from other instances, as done when searching traces. */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class KafkaStoreListCallBenchmarks {
+  @Param({"10", "100"})
+  int traceCount;
+
+  @Param({"10", "100"})
+  int spanCount;
+
+  final TracesCall call = new TracesCall();
+  byte[] content;
+
+  @Setup public void setup() {
+    StringBuilder builder = new StringBuilder("[");
+    for (List<Span> trace : BenchmarkTraces.traces(traceCount, spanCount)) {
+      if (builder.length() > 1) builder.append(',');
+      builder.append(new String(SpanBytesEncoder.JSON_V2.encodeList(trace), UTF_8));
+    }
+    content = builder.append(']').toString().getBytes(UTF_8);
+  }
+
+  @Benchmark public List<List<Span>> parseList() {
+    return call.parseList(content);
+  }
+
+  /** Parses items as the trace search call does. */
+  static final class TracesCall extends KafkaStoreListCall<List<Span>> {
+    TracesCall() {
+      super(null, "zipkin-traces", null, "/traces");
+    }
+
+    @Override protected CompletableFuture<List<List<Span>>> listFuture() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override protected List<Span> parseItem(byte[] content, int offset, int length) {
+      return SpanBytesDecoder.JSON_V2.decodeList(ByteBuffer.wrap(content, offset, length));
+    }
+
+    @Override public Call<List<List<Span>>> clone() {
+      return new TracesCall();
+    }
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + KafkaStoreListCallBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
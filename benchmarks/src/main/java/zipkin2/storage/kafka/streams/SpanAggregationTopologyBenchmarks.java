@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Span;
+import zipkin2.storage.kafka.BenchmarkTraces;
+import zipkin2.storage.kafka.streams.serdes.SpansSerde;
+
+/**
+ * Processing of a span batch by span aggregation: merging it into its session window, and
+ * emitting traces and dependency links of sessions closed.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class SpanAggregationTopologyBenchmarks {
+  static final int TRACE_COUNT = 1024;
+  static final Duration TRACE_TIMEOUT = Duration.ofMinutes(1);
+
+  @Param({"10", "100"})
+  int spanCount;
+
+  TopologyTestDriver testDriver;
+  TestInputTopic<String, byte[]> spansTopic;
+  List<String> traceIds;
+  List<byte[]> batches;
+  long timestamp;
+  int index;
+
+  @Setup public void setup() {
+    Properties props = new Properties();
+    props.put(StreamsConfig.APPLICATION_ID_CONFIG, "benchmarks");
+    props.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "dummy:1234");
+    props.put(StreamsConfig.STATE_DIR_CONFIG,
+      "target/kafka-streams-benchmarks/" + System.currentTimeMillis());
+    testDriver = new TopologyTestDriver(new SpanAggregationTopology(
+      "zipkin-spans",
+      "zipkin-trace",
+      "zipkin-dependency",
+      TRACE_TIMEOUT,
+      TraceSampler.ALWAYS_SAMPLE,
+      true,
+      false,
+      false).get(), props);
+    spansTopic = testDriver.createInputTopic("zipkin-spans", new StringSerializer(),
+      new ByteArraySerializer());
+    SpansSerde spansSerde = new SpansSerde();
+    traceIds = new ArrayList<>(TRACE_COUNT);
+    batches = new ArrayList<>(TRACE_COUNT);
+    for (List<Span> trace : BenchmarkTraces.traces(TRACE_COUNT, spanCount)) {
+      traceIds.add(trace.get(0).traceId());
+      batches.add(spansSerde.serializer().serialize("zipkin-spans", trace));
+    }
+    timestamp = System.currentTimeMillis();
+  }
+
+  @TearDown public void tearDown() {
+    testDriver.close();
+  }
+
+  /**
+   * Event time moves a tenth of the trace timeout on each batch, so sessions are closed while
+   * newer ones are open, and a trace ID is seen again only after its session was closed.
+   */
+  @Benchmark public void processBatch() {
+    int i = index++ % TRACE_COUNT;
+    timestamp += TRACE_TIMEOUT.toMillis() / 10;
+    spansTopic.pipeInput(traceIds.get(i), batches.get(i), timestamp);
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + SpanAggregationTopologyBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams.serdes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Span names by service name are the usual case: tens to hundreds of names per key. */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class NamesSerdeBenchmarks {
+  @Param({"10", "100"})
+  int nameCount;
+
+  List<String> names;
+  byte[] encoded;
+
+  @Setup public void setup() {
+    names = new ArrayList<>(nameCount);
+    for (int i = 0; i < nameCount; i++) names.add("get /api/v1/resource/" + i);
+    encoded = NamesSerde.encode(names);
+  }
+
+  @Benchmark public byte[] encode() {
+    return NamesSerde.encode(names);
+  }
+
+  @Benchmark public Set<String> decode() {
+    return NamesSerde.decode(encoded);
+  }
+
+  @Benchmark public boolean contains_known() {
+    return NamesSerde.contains(encoded, names.get(nameCount / 2));
+  }
+
+  @Benchmark public byte[] insert_known() {
+    return NamesSerde.insert(encoded, names.get(nameCount / 2));
+  }
+
+  @Benchmark public byte[] insert_new() {
+    return NamesSerde.insert(encoded, "get /api/v2/resource");
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + NamesSerdeBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
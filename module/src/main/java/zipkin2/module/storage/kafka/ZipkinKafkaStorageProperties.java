@@ -16,6 +16,7 @@ package zipkin2.module.storage.kafka;
 import java.io.Serializable;
 import java.time.Duration;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import zipkin2.storage.kafka.KafkaStorage;
@@ -24,12 +25,19 @@ import zipkin2.storage.kafka.KafkaStorageBuilder.DependencyStorageBuilder;
 import zipkin2.storage.kafka.KafkaStorageBuilder.SpanAggregationBuilder;
 import zipkin2.storage.kafka.KafkaStorageBuilder.SpanPartitioningBuilder;
 import zipkin2.storage.kafka.KafkaStorageBuilder.TraceStorageBuilder;
+import zipkin2.storage.kafka.streams.TailTraceSampler;
 
 @ConfigurationProperties("zipkin.storage.kafka")
 public class ZipkinKafkaStorageProperties implements Serializable {
   private static final long serialVersionUID = 0L;
   private String hostname;
   private String storageDir;
+  private Long peerTimeout;
+  private Long peerHedgeDelay;
+  private Long queryCacheTtl;
+  private Integer queryCacheMaxSize;
+  private Boolean binaryTraceIdsEnabled;
+  private Boolean traceIdsMigrationEnabled;
   // Kafka properties
   private String bootstrapServers;
   private Map<String, String> overrides = new LinkedHashMap<>();
@@ -49,6 +57,14 @@ public class ZipkinKafkaStorageProperties implements Serializable {
     if (storageDir != null) builder.storageStateDir(storageDir);
     if (bootstrapServers != null) builder.bootstrapServers(bootstrapServers);
     if (overrides != null) builder.overrides(overrides);
+    if (peerTimeout != null) builder.peerTimeout(Duration.ofMillis(peerTimeout));
+    if (peerHedgeDelay != null) builder.peerHedgeDelay(Duration.ofMillis(peerHedgeDelay));
+    if (queryCacheTtl != null) builder.queryCacheTtl(Duration.ofMillis(queryCacheTtl));
+    if (queryCacheMaxSize != null) builder.queryCacheMaxSize(queryCacheMaxSize);
+    if (binaryTraceIdsEnabled != null) builder.binaryTraceIdsEnabled(binaryTraceIdsEnabled);
+    if (traceIdsMigrationEnabled != null) {
+      builder.traceIdsMigrationEnabled(traceIdsMigrationEnabled);
+    }
     return builder;
   }
 
@@ -84,6 +100,54 @@ public class ZipkinKafkaStorageProperties implements Serializable {
     this.overrides = overrides;
   }
 
+  public Long getPeerTimeout() {
+    return peerTimeout;
+  }
+
+  public void setPeerTimeout(Long peerTimeout) {
+    this.peerTimeout = peerTimeout;
+  }
+
+  public Long getPeerHedgeDelay() {
+    return peerHedgeDelay;
+  }
+
+  public void setPeerHedgeDelay(Long peerHedgeDelay) {
+    this.peerHedgeDelay = peerHedgeDelay;
+  }
+
+  public Long getQueryCacheTtl() {
+    return queryCacheTtl;
+  }
+
+  public void setQueryCacheTtl(Long queryCacheTtl) {
+    this.queryCacheTtl = queryCacheTtl;
+  }
+
+  public Integer getQueryCacheMaxSize() {
+    return queryCacheMaxSize;
+  }
+
+  public void setQueryCacheMaxSize(Integer queryCacheMaxSize) {
+    this.queryCacheMaxSize = queryCacheMaxSize;
+  }
+
+  public Boolean getBinaryTraceIdsEnabled() {
+    return binaryTraceIdsEnabled;
+  }
+
+  public void setBinaryTraceIdsEnabled(Boolean binaryTraceIdsEnabled) {
+    this.binaryTraceIdsEnabled = binaryTraceIdsEnabled;
+  }
+
+  public Boolean getTraceIdsMigrationEnabled() {
+    return traceIdsMigrationEnabled;
+  }
+
+  public void setTraceIdsMigrationEnabled(Boolean traceIdsMigrationEnabled) {
+    this.traceIdsMigrationEnabled = traceIdsMigrationEnabled;
+  }
+
   public SpanPartitioningProperties getSpanPartitioning() {
     return spanPartitioning;
   }
@@ -118,6 +182,14 @@ public class ZipkinKafkaStorageProperties implements Serializable {
 
   static class SpanPartitioningProperties {
     private Boolean enabled;
+    private Boolean packTracesEnabled;
+    private Integer producers;
+    private Boolean dedupEnabled;
+    private Long dedupWindow;
+    private Integer dedupExpectedSpans;
+    private Double dedupFalsePositiveRate;
+    private Long maxInFlightBytes;
+    private Integer maxInFlightRecords;
     private String spansTopic;
     private Map<String, String> overrides = new LinkedHashMap<>();
 
@@ -129,6 +201,70 @@ public class ZipkinKafkaStorageProperties implements Serializable {
       this.enabled = enabled;
     }
 
+    public Boolean getPackTracesEnabled() {
+      return packTracesEnabled;
+    }
+
+    public void setPackTracesEnabled(Boolean packTracesEnabled) {
+      this.packTracesEnabled = packTracesEnabled;
+    }
+
+    public Integer getProducers() {
+      return producers;
+    }
+
+    public void setProducers(Integer producers) {
+      this.producers = producers;
+    }
+
+    public Boolean getDedupEnabled() {
+      return dedupEnabled;
+    }
+
+    public void setDedupEnabled(Boolean dedupEnabled) {
+      this.dedupEnabled = dedupEnabled;
+    }
+
+    public Long getDedupWindow() {
+      return dedupWindow;
+    }
+
+    public void setDedupWindow(Long dedupWindow) {
+      this.dedupWindow = dedupWindow;
+    }
+
+    public Integer getDedupExpectedSpans() {
+      return dedupExpectedSpans;
+    }
+
+    public void setDedupExpectedSpans(Integer dedupExpectedSpans) {
+      this.dedupExpectedSpans = dedupExpectedSpans;
+    }
+
+    public Double getDedupFalsePositiveRate() {
+      return dedupFalsePositiveRate;
+    }
+
+    public void setDedupFalsePositiveRate(Double dedupFalsePositiveRate) {
+      this.dedupFalsePositiveRate = dedupFalsePositiveRate;
+    }
+
+    public Long getMaxInFlightBytes() {
+      return maxInFlightBytes;
+    }
+
+    public void setMaxInFlightBytes(Long maxInFlightBytes) {
+      this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    public Integer getMaxInFlightRecords() {
+      return maxInFlightRecords;
+    }
+
+    public void setMaxInFlightRecords(Integer maxInFlightRecords) {
+      this.maxInFlightRecords = maxInFlightRecords;
+    }
+
     public String getSpansTopic() {
       return spansTopic;
     }
@@ -148,6 +284,14 @@ public class ZipkinKafkaStorageProperties implements Serializable {
     SpanPartitioningBuilder toBuilder() {
       SpanPartitioningBuilder builder = new SpanPartitioningBuilder();
       if (enabled != null) builder.enabled(enabled);
+      if (packTracesEnabled != null) builder.packTracesEnabled(packTracesEnabled);
+      if (producers != null) builder.producers(producers);
+      if (dedupEnabled != null) builder.dedupEnabled(dedupEnabled);
+      if (dedupWindow != null) builder.dedupWindow(Duration.ofMillis(dedupWindow));
+      if (dedupExpectedSpans != null) builder.dedupExpectedSpans(dedupExpectedSpans);
+      if (dedupFalsePositiveRate != null) builder.dedupFalsePositiveRate(dedupFalsePositiveRate);
+      if (maxInFlightBytes != null) builder.maxInFlightBytes(maxInFlightBytes);
+      if (maxInFlightRecords != null) builder.maxInFlightRecords(maxInFlightRecords);
       if (spansTopic != null) builder.spansTopic(spansTopic);
       if (overrides != null) builder.overrides(overrides);
       return builder;
@@ -160,6 +304,9 @@ public class ZipkinKafkaStorageProperties implements Serializable {
     private String traceTopic;
     private String dependencyTopic;
     private Long traceTimeout;
+    private Float sampleRate;
+    private Long sampleMinDuration;
+    private List<String> sampleTags;
     private Map<String, String> overrides = new LinkedHashMap<>();
 
     public Boolean getEnabled() {
@@ -202,6 +349,30 @@ public class ZipkinKafkaStorageProperties implements Serializable {
       this.traceTimeout = traceTimeout;
     }
 
+    public Float getSampleRate() {
+      return sampleRate;
+    }
+
+    public void setSampleRate(Float sampleRate) {
+      this.sampleRate = sampleRate;
+    }
+
+    public Long getSampleMinDuration() {
+      return sampleMinDuration;
+    }
+
+    public void setSampleMinDuration(Long sampleMinDuration) {
+      this.sampleMinDuration = sampleMinDuration;
+    }
+
+    public List<String> getSampleTags() {
+      return sampleTags;
+    }
+
+    public void setSampleTags(List<String> sampleTags) {
+      this.sampleTags = sampleTags;
+    }
+
     public Map<String, String> getOverrides() {
       return overrides;
     }
@@ -214,6 +385,12 @@ public class ZipkinKafkaStorageProperties implements Serializable {
       SpanAggregationBuilder builder = new SpanAggregationBuilder();
       if (enabled != null) builder.enabled(enabled);
       if (traceTimeout != null) builder.traceTimeout(Duration.ofMillis(traceTimeout));
+      if (sampleRate != null && sampleRate < 1.0f) {
+        TailTraceSampler.Builder sampler = TailTraceSampler.newBuilder().rate(sampleRate);
+        if (sampleMinDuration != null) sampler.minDuration(Duration.ofMillis(sampleMinDuration));
+        if (sampleTags != null) sampler.tags(sampleTags);
+        builder.traceSampler(sampler.build());
+      }
       if (spansTopic != null) builder.spansTopic(spansTopic);
       if (traceTopic != null) builder.traceTopic(traceTopic);
       if (dependencyTopic != null) builder.dependencyTopic(dependencyTopic);
@@ -227,6 +404,8 @@ public class ZipkinKafkaStorageProperties implements Serializable {
     private String spansTopic;
     private Long ttlCheckInterval;
     private Long ttl;
+    private Long minTracesStored;
+    private Boolean standbyReadsEnabled;
     private Map<String, String> overrides = new LinkedHashMap<>();
 
     public Boolean getEnabled() {
@@ -261,6 +440,22 @@ public class ZipkinKafkaStorageProperties implements Serializable {
       this.ttl = ttl;
     }
 
+    public Long getMinTracesStored() {
+      return minTracesStored;
+    }
+
+    public void setMinTracesStored(Long minTracesStored) {
+      this.minTracesStored = minTracesStored;
+    }
+
+    public Boolean getStandbyReadsEnabled() {
+      return standbyReadsEnabled;
+    }
+
+    public void setStandbyReadsEnabled(Boolean standbyReadsEnabled) {
+      this.standbyReadsEnabled = standbyReadsEnabled;
+    }
+
     public Map<String, String> getOverrides() {
       return overrides;
     }
@@ -274,6 +469,8 @@ public class ZipkinKafkaStorageProperties implements Serializable {
       if (enabled != null) builder.enabled(enabled);
       if (ttlCheckInterval != null) builder.ttlCheckInterval(Duration.ofMillis(ttlCheckInterval));
       if (ttl != null) builder.ttl(Duration.ofMillis(ttl));
+      if (minTracesStored != null) builder.minTracesStored(minTracesStored);
+      if (standbyReadsEnabled != null) builder.standbyReadsEnabled(standbyReadsEnabled);
       if (spansTopic != null) builder.spansTopic(spansTopic);
       if (overrides != null) builder.overrides(overrides);
       return builder;
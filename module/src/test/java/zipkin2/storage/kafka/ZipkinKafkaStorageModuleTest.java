@@ -22,6 +22,7 @@ import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.boot.test.util.TestPropertyValues;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
 import zipkin2.module.storage.kafka.Access;
+import zipkin2.storage.kafka.streams.TailTraceSampler;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -194,6 +195,22 @@ class ZipkinKafkaStorageModuleTest {
       .isEqualTo("zipkin-dependencies-1");
   }
 
+  @Test void canOverridesProperty_aggregationSampling() {
+    TestPropertyValues.of(
+      "zipkin.storage.type:kafka",
+      "zipkin.storage.kafka.span-aggregation.sample-rate:0.1",
+      "zipkin.storage.kafka.span-aggregation.sample-min-duration:1000",
+      "zipkin.storage.kafka.span-aggregation.sample-tags:http.path=/api,error"
+    ).applyTo(context);
+    Access.registerKafka(context);
+    context.refresh();
+
+    TailTraceSampler sampler =
+      (TailTraceSampler) context.getBean(KafkaStorage.class).aggregationTraceSampler;
+    assertThat(sampler.toString())
+      .isEqualTo("TailTraceSampler{rate=0.1, minDurationMicros=1000000, tags=2}");
+  }
+
   @Test void canOverridesProperty_storageSpansTopic() {
     TestPropertyValues.of(
       "zipkin.storage.type:kafka",
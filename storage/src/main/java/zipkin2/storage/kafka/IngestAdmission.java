@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Budget of records and bytes sent to the spans topic and not acknowledged yet, shared by span
+ * consumers of a storage instance.
+ *
+ * <p>Span batches over budget (e.g. brokers slowing down) are shed: their calls fail with {@link
+ * RejectedExecutionException} without being sent, instead of piling up on the producer buffer and
+ * blocking collector threads. A batch larger than the whole budget is only admitted when nothing
+ * else is in flight.
+ *
+ * <p>Records and bytes in flight are gauged by {@code zipkin.storage.kafka.partitioning.inflight
+ * .records} and {@code zipkin.storage.kafka.partitioning.inflight.bytes}, and batches and records
+ * shed are counted by {@code zipkin.storage.kafka.partitioning.shed.batches} and {@code
+ * zipkin.storage.kafka.partitioning.shed.records}, until closed.
+ */
+final class IngestAdmission {
+  static final String METRIC_PREFIX = "zipkin.storage.kafka.partitioning";
+
+  final long maxInFlightBytes;
+  final int maxInFlightRecords;
+  final MeterRegistry registry;
+  final Counter shedBatches, shedRecords;
+  final List<Meter> meters;
+  long inFlightBytes;
+  int inFlightRecords;
+
+  IngestAdmission(long maxInFlightBytes, int maxInFlightRecords, MeterRegistry registry) {
+    this.maxInFlightBytes = maxInFlightBytes;
+    this.maxInFlightRecords = maxInFlightRecords;
+    this.registry = registry;
+    shedBatches = registry.counter(METRIC_PREFIX + ".shed.batches");
+    shedRecords = registry.counter(METRIC_PREFIX + ".shed.records");
+    meters = Arrays.asList(shedBatches, shedRecords,
+      Gauge.builder(METRIC_PREFIX + ".inflight.bytes", this, IngestAdmission::inFlightBytes)
+        .register(registry),
+      Gauge.builder(METRIC_PREFIX + ".inflight.records", this, IngestAdmission::inFlightRecords)
+        .register(registry));
+  }
+
+  /**
+   * Admits records to be sent, to be released once acknowledged.
+   *
+   * @throws RejectedExecutionException if records are over budget.
+   */
+  void acquire(int records, long bytes) {
+    synchronized (this) {
+      boolean idle = inFlightRecords == 0;
+      if (idle || (inFlightRecords + records <= maxInFlightRecords
+        && inFlightBytes + bytes <= maxInFlightBytes)) {
+        inFlightRecords += records;
+        inFlightBytes += bytes;
+        return;
+      }
+    }
+    shedBatches.increment();
+    shedRecords.increment(records);
+    throw new RejectedExecutionException("Span ingestion over budget of "
+      + maxInFlightRecords + " records and " + maxInFlightBytes + " bytes in flight");
+  }
+
+  synchronized void release(int records, long bytes) {
+    inFlightRecords -= records;
+    inFlightBytes -= bytes;
+  }
+
+  synchronized double inFlightBytes() {
+    return inFlightBytes;
+  }
+
+  synchronized double inFlightRecords() {
+    return inFlightRecords;
+  }
+
+  void close() {
+    meters.forEach(registry::remove);
+  }
+}
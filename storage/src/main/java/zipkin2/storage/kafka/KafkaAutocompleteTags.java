@@ -13,14 +13,14 @@
  */
 package zipkin2.storage.kafka;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
 import java.util.List;
-import java.util.function.BiFunction;
 import org.apache.kafka.streams.KafkaStreams;
 import zipkin2.Call;
 import zipkin2.storage.AutocompleteTags;
 import zipkin2.storage.kafka.internal.KafkaStoreScatterGatherListCall;
 import zipkin2.storage.kafka.internal.KafkaStoreSingleKeyListCall;
+import zipkin2.storage.kafka.internal.PeerClients;
 import zipkin2.storage.kafka.streams.TraceStorageTopology;
 
 import static zipkin2.storage.kafka.streams.TraceStorageTopology.AUTOCOMPLETE_TAGS_STORE_NAME;
@@ -36,18 +36,25 @@ final class KafkaAutocompleteTags implements AutocompleteTags {
   static final long AUTOCOMPLETE_TAGS_LIMIT = 1_000;
 
   final KafkaStorage storage;
-  final BiFunction<String, Integer, String> httpBaseUrl;
+  final PeerClients peerClients;
+  final KafkaStorageHttpService localService;
+  final QueryCache queryCache;
   final boolean traceSearchEnabled;
+  final boolean standbyReads;
 
   KafkaAutocompleteTags(KafkaStorage storage) {
     this.storage = storage;
     this.traceSearchEnabled = storage.traceSearchEnabled;
-    httpBaseUrl = storage.httpBaseUrl;
+    this.standbyReads = storage.traceStandbyReadsEnabled;
+    peerClients = storage.peerClients;
+    localService = storage.httpService();
+    queryCache = storage.queryCache;
   }
 
   @Override public Call<List<String>> getKeys() {
     if (traceSearchEnabled) {
-      return new GetTagKeysCall(storage.getTraceStorageStream(), httpBaseUrl);
+      return queryCache.call("tagKeys", "",
+        new GetTagKeysCall(storage.getTraceStorageStream(), peerClients, localService));
     } else {
       return Call.emptyList();
     }
@@ -55,7 +62,9 @@ final class KafkaAutocompleteTags implements AutocompleteTags {
 
   @Override public Call<List<String>> getValues(String key) {
     if (traceSearchEnabled) {
-      return new GetTagValuesCall(storage.getTraceStorageStream(), httpBaseUrl, key);
+      return queryCache.call("tagValues", key,
+        new GetTagValuesCall(storage.getTraceStorageStream(), peerClients, localService,
+          standbyReads, key));
     } else {
       return Call.emptyList();
     }
@@ -63,54 +72,72 @@ final class KafkaAutocompleteTags implements AutocompleteTags {
 
   static class GetTagKeysCall extends KafkaStoreScatterGatherListCall<String> {
     final KafkaStreams traceStoreStream;
-    final BiFunction<String, Integer, String> httpBaseUrl;
+    final PeerClients peerClients;
+    final KafkaStorageHttpService localService;
 
     GetTagKeysCall(KafkaStreams traceStoreStream,
-      BiFunction<String, Integer, String> httpBaseUrl) {
+      PeerClients peerClients, KafkaStorageHttpService localService) {
       super(
         traceStoreStream,
         AUTOCOMPLETE_TAGS_STORE_NAME,
-        httpBaseUrl,
+        peerClients,
         "/autocompleteTags",
         AUTOCOMPLETE_TAGS_LIMIT);
       this.traceStoreStream = traceStoreStream;
-      this.httpBaseUrl = httpBaseUrl;
+      this.peerClients = peerClients;
+      this.localService = localService;
     }
 
-    @Override protected String parseItem(JsonNode node) {
-      return node.textValue();
+    @Override protected String parseItem(byte[] content, int offset, int length)
+      throws IOException {
+      return parseString(content, offset, length);
+    }
+
+    @Override protected List<String> localList(Integer partition) {
+      return localService.partition(partition).autocompleteKeys();
     }
 
     @Override public Call<List<String>> clone() {
-      return new GetTagKeysCall(traceStoreStream, httpBaseUrl);
+      return new GetTagKeysCall(traceStoreStream, peerClients, localService);
     }
   }
 
   static class GetTagValuesCall extends KafkaStoreSingleKeyListCall<String> {
     final KafkaStreams traceStoreStream;
-    final BiFunction<String, Integer, String> httpBaseUrl;
+    final PeerClients peerClients;
+    final KafkaStorageHttpService localService;
+    final boolean standbyReads;
     final String tagKey;
 
     GetTagValuesCall(KafkaStreams traceStoreStream,
-      BiFunction<String, Integer, String> httpBaseUrl,
+      PeerClients peerClients, KafkaStorageHttpService localService, boolean standbyReads,
       String tagKey) {
       super(
         traceStoreStream,
         AUTOCOMPLETE_TAGS_STORE_NAME,
-        httpBaseUrl,
+        peerClients,
         "/autocompleteTags/" + tagKey,
-        tagKey);
+        tagKey,
+        standbyReads);
       this.traceStoreStream = traceStoreStream;
-      this.httpBaseUrl = httpBaseUrl;
+      this.peerClients = peerClients;
+      this.localService = localService;
+      this.standbyReads = standbyReads;
       this.tagKey = tagKey;
     }
 
+    @Override protected List<String> localList(Integer partition) {
+      return localService.partition(partition).names(AUTOCOMPLETE_TAGS_STORE_NAME, tagKey);
+    }
+
     @Override public Call<List<String>> clone() {
-      return new GetTagValuesCall(traceStoreStream, httpBaseUrl, tagKey);
+      return new GetTagValuesCall(traceStoreStream, peerClients, localService, standbyReads,
+        tagKey);
     }
 
-    @Override protected String parseItem(JsonNode node) {
-      return node.textValue();
+    @Override protected String parseItem(byte[] content, int offset, int length)
+      throws IOException {
+      return parseString(content, offset, length);
     }
   }
 }
@@ -13,19 +13,26 @@
  */
 package zipkin2.storage.kafka;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import org.apache.kafka.clients.producer.Producer;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.utils.Utils;
 import zipkin2.Call;
 import zipkin2.Callback;
 import zipkin2.Span;
 import zipkin2.codec.SpanBytesEncoder;
-import zipkin2.internal.AggregateCall;
 import zipkin2.storage.GroupByTraceId;
 import zipkin2.storage.SpanConsumer;
 import zipkin2.storage.kafka.internal.AwaitableCallback;
+import zipkin2.storage.kafka.streams.serdes.PackedTraces;
+import zipkin2.storage.kafka.streams.serdes.TraceIdSerde;
 
 /**
  * Span Consumer to compensate current {@code zipkin2.reporter.kafka.KafkaSender} distribution of
@@ -33,88 +40,210 @@ import zipkin2.storage.kafka.internal.AwaitableCallback;
  * <p>
  * This component split batch into individual spans keyed by trace ID to enabled downstream
  * processing of spans as part of a trace.
+ * <p>
+ * Spans received as PROTO3 bytes are split by trace ID without being decoded. See {@link
+ * Proto3Spans}.
+ * <p>
+ * Traces bound to the same partition can be sent on a single record. See {@link PackedTraces}.
+ * <p>
+ * Spans already received can be dropped before being sent. See {@link SpanDeduplicator}.
  */
-final class KafkaSpanConsumer implements SpanConsumer {
+final class KafkaSpanConsumer implements SpanConsumer, Proto3SpanConsumer {
   final String spansTopicName;
-  final Producer<String, byte[]> producer;
+  final ProducerStripes producers;
+  final IngestAdmission admission;
+  final boolean packTraces;
+  final boolean binaryTraceIds;
+  final SpanDeduplicator deduplicator;
 
   KafkaSpanConsumer(KafkaStorage storage) {
     spansTopicName = storage.partitioningSpansTopic;
-    producer = storage.getProducer();
+    producers = storage.getProducers();
+    admission = storage.ingestAdmission;
+    packTraces = storage.partitioningPackTracesEnabled;
+    binaryTraceIds = storage.binaryTraceIdsEnabled;
+    deduplicator = storage.spanDeduplicator;
   }
 
   @Override public Call<Void> accept(List<Span> spans) {
+    if (spans.isEmpty()) return Call.create(null);
+    SpanDeduplicator.Batch received = deduplicator != null ? deduplicator.newBatch() : null;
+    if (received != null) spans = received.filter(spans);
     if (spans.isEmpty()) return Call.create(null);
     List<List<Span>> groupedByTraceId = GroupByTraceId.create(true).map(spans);
-    List<Call<Void>> calls = new ArrayList<>();
+    Map<String, byte[]> traces = new LinkedHashMap<>();
     for (List<Span> grouped : groupedByTraceId) {
       if (!grouped.isEmpty()) {
-        byte[] value = SpanBytesEncoder.PROTO3.encodeList(grouped);
-        String traceId = grouped.get(0).traceId();
-        calls.add(KafkaProducerCall.create(producer, spansTopicName, traceId, value));
+        traces.put(grouped.get(0).traceId(), SpanBytesEncoder.PROTO3.encodeList(grouped));
       }
     }
-    return AggregateCall.newVoidCall(calls);
+    return send(records(traces), received);
+  }
+
+  @Override public Call<Void> accept(byte[] spans) {
+    if (spans.length == 0) return Call.create(null);
+    SpanDeduplicator.Batch received = deduplicator != null ? deduplicator.newBatch() : null;
+    return send(records(Proto3Spans.groupByTraceId(spans, received)), received);
+  }
+
+  /** Spans sent are recorded as received once acknowledged. See {@link SpanDeduplicator}. */
+  Call<Void> send(List<ProducerRecord<String, byte[]>> records, SpanDeduplicator.Batch received) {
+    Call<Void> call = KafkaProducerCall.create(producers, admission, records);
+    return received != null ? received.recordOnSuccess(call) : call;
   }
 
-  static class KafkaProducerCall extends Call.Base<Void> {
-    final Producer<String, byte[]> kafkaProducer;
-    final String topic;
-    final String key;
-    final byte[] value;
+  /**
+   * A record per trace keyed by trace ID, or, when packing traces, a record per partition with all
+   * traces keyed to it. See {@link PackedTraces}.
+   * <p>
+   * With more than one producer, records are bound to the partition of their trace ID, as the
+   * default partitioner would, so each is sent by the producer of its partition.
+   */
+  List<ProducerRecord<String, byte[]>> records(Map<String, byte[]> traces) {
+    if (!packTraces) {
+      int partitions = producers.size() > 1 ? producers.partitions(spansTopicName) : 0;
+      List<ProducerRecord<String, byte[]>> records = new ArrayList<>(traces.size());
+      for (Map.Entry<String, byte[]> trace : traces.entrySet()) {
+        Integer partition = partitions > 0
+          ? partition(trace.getKey(), partitions, binaryTraceIds)
+          : null;
+        records.add(
+          new ProducerRecord<>(spansTopicName, partition, trace.getKey(), trace.getValue()));
+      }
+      return records;
+    }
+    int partitions = producers.partitions(spansTopicName);
+    Map<Integer, Map<String, byte[]>> byPartition = new LinkedHashMap<>();
+    for (Map.Entry<String, byte[]> trace : traces.entrySet()) {
+      int partition = partition(trace.getKey(), partitions, binaryTraceIds);
+      byPartition.computeIfAbsent(partition, p -> new LinkedHashMap<>())
+        .put(trace.getKey(), trace.getValue());
+    }
+    List<ProducerRecord<String, byte[]>> records = new ArrayList<>(byPartition.size());
+    for (Map.Entry<Integer, Map<String, byte[]>> packed : byPartition.entrySet()) {
+      records.add(new ProducerRecord<>(spansTopicName, packed.getKey(), null,
+        PackedTraces.pack(packed.getValue())));
+    }
+    return records;
+  }
+
+  /** Partition of a record keyed by trace ID, as chosen by the default partitioner. */
+  static int partition(String traceId, int partitions, boolean binaryTraceIds) {
+    byte[] key = binaryTraceIds
+      ? TraceIdSerde.encode(traceId)
+      : traceId.getBytes(StandardCharsets.UTF_8);
+    return Utils.toPositive(Utils.murmur2(key)) % partitions;
+  }
+
+  /**
+   * Sends all records of a batch at once, completing when all sends are acknowledged. Execution
+   * blocks once for the whole batch, and enqueueing does not block on acknowledgements.
+   * <p>
+   * Batches are admitted before being sent, failing without being sent when over the budget of
+   * records and bytes in flight. See {@link IngestAdmission}.
+   * <p>
+   * Each record is sent by the producer of its partition. See {@link ProducerStripes}.
+   */
+  static final class KafkaProducerCall extends Call.Base<Void> {
+    final ProducerStripes producers;
+    final IngestAdmission admission;
+    final List<ProducerRecord<String, byte[]>> records;
 
     KafkaProducerCall(
-      Producer<String, byte[]> kafkaProducer,
-      String topic,
-      String key,
-      byte[] value
+      ProducerStripes producers,
+      IngestAdmission admission,
+      List<ProducerRecord<String, byte[]>> records
     ) {
-      this.kafkaProducer = kafkaProducer;
-      this.topic = topic;
-      this.key = key;
-      this.value = value;
+      this.producers = producers;
+      this.admission = admission;
+      this.records = records;
     }
 
     static Call<Void> create(
-      Producer<String, byte[]> producer,
-      String topic,
-      String key,
-      byte[] value
+      ProducerStripes producers,
+      IngestAdmission admission,
+      List<ProducerRecord<String, byte[]>> records
     ) {
-      return new KafkaProducerCall(producer, topic, key, value);
+      if (records.isEmpty()) return Call.create(null);
+      return new KafkaProducerCall(producers, admission, records);
     }
 
-    @Override
-    @SuppressWarnings("FutureReturnValueIgnored")
-    protected Void doExecute() {
+    @Override protected Void doExecute() {
       AwaitableCallback callback = new AwaitableCallback();
-      kafkaProducer.send(new ProducerRecord<>(topic, key, value), new CallbackAdapter(callback));
+      send(callback);
       callback.await();
       return null;
     }
 
-    @Override
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      send(callback);
+    }
+
     @SuppressWarnings("FutureReturnValueIgnored")
-    protected void doEnqueue(Callback<Void> callback) {
-      kafkaProducer.send(new ProducerRecord<>(topic, key, value), new CallbackAdapter(callback));
+    void send(Callback<Void> callback) {
+      long bytes = sizeInBytes(records);
+      try {
+        admission.acquire(records.size(), bytes);
+      } catch (RejectedExecutionException e) {
+        callback.onError(e);
+        return;
+      }
+      FanInCallback fanIn = new FanInCallback(records.size(), bytes, admission, callback);
+      for (ProducerRecord<String, byte[]> record : records) {
+        try {
+          producers.producer(record).send(record, fanIn);
+        } catch (RuntimeException e) { // e.g. serialization or buffer exhausted
+          fanIn.onCompletion(null, e);
+        }
+      }
+    }
+
+    static long sizeInBytes(List<ProducerRecord<String, byte[]>> records) {
+      long bytes = 0L;
+      for (ProducerRecord<String, byte[]> record : records) {
+        if (record.key() != null) bytes += record.key().length();
+        bytes += record.value().length;
+      }
+      return bytes;
     }
 
     @Override public Call<Void> clone() {
-      return new KafkaProducerCall(kafkaProducer, topic, key, value);
+      return new KafkaProducerCall(producers, admission, records);
+    }
+
+    @Override public String toString() {
+      return "KafkaProducerCall{records=" + records.size() + "}";
     }
 
-    static final class CallbackAdapter implements org.apache.kafka.clients.producer.Callback {
+    /**
+     * Completes the delegate once all records are completed, with the first error if any, releasing
+     * the records admitted.
+     */
+    static final class FanInCallback implements org.apache.kafka.clients.producer.Callback {
+      final int records;
+      final long bytes;
+      final IngestAdmission admission;
+      final AtomicInteger remaining;
+      final AtomicReference<Exception> error = new AtomicReference<>();
       final Callback<Void> delegate;
 
-      CallbackAdapter(Callback<Void> delegate) {
+      FanInCallback(int records, long bytes, IngestAdmission admission, Callback<Void> delegate) {
+        this.records = records;
+        this.bytes = bytes;
+        this.admission = admission;
+        this.remaining = new AtomicInteger(records);
         this.delegate = delegate;
       }
 
       @Override public void onCompletion(RecordMetadata metadata, Exception exception) {
-        if (exception == null) {
+        if (exception != null) error.compareAndSet(null, exception);
+        if (remaining.decrementAndGet() != 0) return;
+        admission.release(records, bytes);
+        Exception result = error.get();
+        if (result == null) {
           delegate.onSuccess(null);
         } else {
-          delegate.onError(exception);
+          delegate.onError(result);
         }
       }
 
@@ -13,25 +13,28 @@
  */
 package zipkin2.storage.kafka;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.linecorp.armeria.common.AggregatedHttpResponse;
-import com.linecorp.armeria.common.HttpResponse;
-import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.MediaType;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringJoiner;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.BiFunction;
 import java.util.stream.Collectors;
+import org.apache.kafka.common.serialization.Serializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.apache.kafka.streams.KafkaStreams;
 import org.apache.kafka.streams.KeyQueryMetadata;
 import org.apache.kafka.streams.state.HostInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import zipkin2.Call;
 import zipkin2.DependencyLink;
 import zipkin2.Span;
@@ -44,11 +47,15 @@ import zipkin2.storage.Traces;
 import zipkin2.storage.kafka.internal.KafkaStoreListCall;
 import zipkin2.storage.kafka.internal.KafkaStoreScatterGatherListCall;
 import zipkin2.storage.kafka.internal.KafkaStoreSingleKeyListCall;
+import zipkin2.storage.kafka.internal.PeerClients;
 import zipkin2.storage.kafka.streams.DependencyStorageTopology;
 import zipkin2.storage.kafka.streams.TraceStorageTopology;
+import zipkin2.storage.kafka.streams.serdes.TraceIdSerde;
 
 import static zipkin2.storage.kafka.streams.DependencyStorageTopology.DEPENDENCIES_STORE_NAME;
 import static zipkin2.storage.kafka.streams.TraceStorageTopology.REMOTE_SERVICE_NAMES_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.SERVICE_NAMES_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.SERVICE_PARTITIONS_STORE_NAME;
 import static zipkin2.storage.kafka.streams.TraceStorageTopology.SPAN_NAMES_STORE_NAME;
 import static zipkin2.storage.kafka.streams.TraceStorageTopology.TRACES_STORE_NAME;
 
@@ -57,22 +64,34 @@ import static zipkin2.storage.kafka.streams.TraceStorageTopology.TRACES_STORE_NA
  * and {@link DependencyStorageTopology}, and made accessible by {@link  KafkaStorageHttpService}.
  */
 final class KafkaSpanStore implements SpanStore, Traces, ServiceAndSpanNames {
-  static final ObjectMapper MAPPER = new ObjectMapper();
+  static final Logger LOG = LoggerFactory.getLogger(KafkaSpanStore.class);
+
   final KafkaStorage storage;
-  final BiFunction<String, Integer, String> httpBaseUrl;
+  final PeerClients peerClients;
+  final KafkaStorageHttpService localService;
+  final QueryCache queryCache;
   final boolean traceSearchEnabled, traceByIdQueryEnabled, dependencyQueryEnabled;
+  final boolean standbyReads;
+  final Serializer<String> traceIdSerializer;
+  final boolean traceIdsMigration;
 
   KafkaSpanStore(KafkaStorage storage) {
     this.storage = storage;
-    httpBaseUrl = storage.httpBaseUrl;
+    peerClients = storage.peerClients;
+    localService = storage.httpService();
+    queryCache = storage.queryCache;
     traceByIdQueryEnabled = storage.traceByIdQueryEnabled;
     traceSearchEnabled = storage.traceSearchEnabled;
     dependencyQueryEnabled = storage.dependencyQueryEnabled;
+    standbyReads = storage.traceStandbyReadsEnabled;
+    traceIdSerializer = new TraceIdSerde(storage.binaryTraceIdsEnabled).serializer();
+    traceIdsMigration = storage.traceIdsMigrationEnabled;
   }
 
   @Override public Call<List<List<Span>>> getTraces(QueryRequest request) {
     if (traceSearchEnabled) {
-      return new GetTracesCall(storage.getTraceStorageStream(), httpBaseUrl, request);
+      return new GetTracesCall(storage.getTraceStorageStream(), peerClients, localService,
+        standbyReads, request);
     } else {
       return Call.emptyList();
     }
@@ -80,8 +99,8 @@ final class KafkaSpanStore implements SpanStore, Traces, ServiceAndSpanNames {
 
   @Override public Call<List<Span>> getTrace(String traceId) {
     if (traceByIdQueryEnabled) {
-      return new GetTraceCall(storage.getTraceStorageStream(), httpBaseUrl,
-        Span.normalizeTraceId(traceId));
+      return new GetTraceCall(storage.getTraceStorageStream(), peerClients, localService,
+        standbyReads, traceIdSerializer, traceIdsMigration, Span.normalizeTraceId(traceId));
     } else {
       return Call.emptyList();
     }
@@ -95,7 +114,8 @@ final class KafkaSpanStore implements SpanStore, Traces, ServiceAndSpanNames {
       }
 
       if (joiner.length() == 0) return Call.emptyList();
-      return new GetTraceManyCall(storage.getTraceStorageStream(), httpBaseUrl, joiner.toString());
+      return new GetTraceManyCall(storage.getTraceStorageStream(), peerClients, localService,
+        standbyReads, traceIdSerializer, traceIdsMigration, joiner.toString());
     } else {
       return Call.emptyList();
     }
@@ -103,7 +123,8 @@ final class KafkaSpanStore implements SpanStore, Traces, ServiceAndSpanNames {
 
   @Deprecated @Override public Call<List<String>> getServiceNames() {
     if (traceSearchEnabled) {
-      return new GetServiceNamesCall(storage.getTraceStorageStream(), httpBaseUrl);
+      return queryCache.call("serviceNames", "",
+        new GetServiceNamesCall(storage.getTraceStorageStream(), peerClients, localService));
     } else {
       return Call.emptyList();
     }
@@ -111,7 +132,9 @@ final class KafkaSpanStore implements SpanStore, Traces, ServiceAndSpanNames {
 
   @Deprecated @Override public Call<List<String>> getSpanNames(String serviceName) {
     if (traceSearchEnabled) {
-      return new GetSpanNamesCall(storage.getTraceStorageStream(), serviceName, httpBaseUrl);
+      return queryCache.call("spanNames", serviceName,
+        new GetSpanNamesCall(storage.getTraceStorageStream(), serviceName, peerClients,
+          localService, standbyReads));
     } else {
       return Call.emptyList();
     }
@@ -119,8 +142,9 @@ final class KafkaSpanStore implements SpanStore, Traces, ServiceAndSpanNames {
 
   @Override public Call<List<String>> getRemoteServiceNames(String serviceName) {
     if (traceSearchEnabled) {
-      return new GetRemoteServiceNamesCall(storage.getTraceStorageStream(), serviceName,
-        httpBaseUrl);
+      return queryCache.call("remoteServiceNames", serviceName,
+        new GetRemoteServiceNamesCall(storage.getTraceStorageStream(), serviceName,
+          peerClients, localService, standbyReads));
     } else {
       return Call.emptyList();
     }
@@ -128,8 +152,8 @@ final class KafkaSpanStore implements SpanStore, Traces, ServiceAndSpanNames {
 
   @Override public Call<List<DependencyLink>> getDependencies(long endTs, long lookback) {
     if (dependencyQueryEnabled) {
-      return new GetDependenciesCall(storage.getDependencyStorageStream(), httpBaseUrl, endTs,
-        lookback);
+      return new GetDependenciesCall(storage.getDependencyStorageStream(), peerClients,
+        localService, endTs, lookback);
     } else {
       return Call.emptyList();
     }
@@ -138,87 +162,163 @@ final class KafkaSpanStore implements SpanStore, Traces, ServiceAndSpanNames {
   static final class GetServiceNamesCall extends KafkaStoreScatterGatherListCall<String> {
     static final long SERVICE_NAMES_LIMIT = 1_000;
     final KafkaStreams traceStoreStream;
-    final BiFunction<String, Integer, String> httpBaseUrl;
+    final PeerClients peerClients;
+    final KafkaStorageHttpService localService;
 
     GetServiceNamesCall(KafkaStreams traceStoreStream,
-      BiFunction<String, Integer, String> httpBaseUrl) {
+      PeerClients peerClients, KafkaStorageHttpService localService) {
       super(
         traceStoreStream,
-        SPAN_NAMES_STORE_NAME,
-        httpBaseUrl,
+        SERVICE_NAMES_STORE_NAME,
+        peerClients,
         "/serviceNames",
         SERVICE_NAMES_LIMIT);
       this.traceStoreStream = traceStoreStream;
-      this.httpBaseUrl = httpBaseUrl;
+      this.peerClients = peerClients;
+      this.localService = localService;
+    }
+
+    @Override protected String parseItem(byte[] content, int offset, int length)
+      throws IOException {
+      return parseString(content, offset, length);
     }
 
-    @Override protected String parseItem(JsonNode node) {
-      return node.textValue();
+    @Override protected List<String> localList(Integer partition) {
+      return localService.partition(partition).serviceNames();
     }
 
     @Override public Call<List<String>> clone() {
-      return new GetServiceNamesCall(traceStoreStream, httpBaseUrl);
+      return new GetServiceNamesCall(traceStoreStream, peerClients, localService);
     }
   }
 
   static final class GetSpanNamesCall extends KafkaStoreSingleKeyListCall<String> {
     final KafkaStreams traceStoreStream;
     final String serviceName;
-    final BiFunction<String, Integer, String> httpBaseUrl;
+    final PeerClients peerClients;
+    final KafkaStorageHttpService localService;
+    final boolean standbyReads;
 
     GetSpanNamesCall(KafkaStreams traceStoreStream, String serviceName,
-      BiFunction<String, Integer, String> httpBaseUrl) {
-      super(traceStoreStream, SPAN_NAMES_STORE_NAME, httpBaseUrl,
-        "/serviceNames/" + serviceName + "/spanNames", serviceName);
+      PeerClients peerClients, KafkaStorageHttpService localService, boolean standbyReads) {
+      super(traceStoreStream, SPAN_NAMES_STORE_NAME, peerClients,
+        "/serviceNames/" + serviceName + "/spanNames", serviceName, standbyReads);
       this.traceStoreStream = traceStoreStream;
       this.serviceName = serviceName;
-      this.httpBaseUrl = httpBaseUrl;
+      this.peerClients = peerClients;
+      this.localService = localService;
+      this.standbyReads = standbyReads;
     }
 
-    @Override protected String parseItem(JsonNode node) {
-      return node.textValue();
+    @Override protected String parseItem(byte[] content, int offset, int length)
+      throws IOException {
+      return parseString(content, offset, length);
+    }
+
+    @Override protected List<String> localList(Integer partition) {
+      return localService.partition(partition).names(SPAN_NAMES_STORE_NAME, serviceName);
     }
 
     @Override public Call<List<String>> clone() {
-      return new GetSpanNamesCall(traceStoreStream, serviceName, httpBaseUrl);
+      return new GetSpanNamesCall(traceStoreStream, serviceName, peerClients, localService,
+        standbyReads);
     }
   }
 
   static final class GetRemoteServiceNamesCall extends KafkaStoreSingleKeyListCall<String> {
     final KafkaStreams traceStoreStream;
     final String serviceName;
-    final BiFunction<String, Integer, String> httpBaseUrl;
+    final PeerClients peerClients;
+    final KafkaStorageHttpService localService;
+    final boolean standbyReads;
 
     GetRemoteServiceNamesCall(KafkaStreams traceStoreStream, String serviceName,
-      BiFunction<String, Integer, String> httpBaseUrl) {
-      super(traceStoreStream, REMOTE_SERVICE_NAMES_STORE_NAME, httpBaseUrl,
-        "/serviceNames/" + serviceName + "/remoteServiceNames", serviceName);
+      PeerClients peerClients, KafkaStorageHttpService localService, boolean standbyReads) {
+      super(traceStoreStream, REMOTE_SERVICE_NAMES_STORE_NAME, peerClients,
+        "/serviceNames/" + serviceName + "/remoteServiceNames", serviceName, standbyReads);
       this.traceStoreStream = traceStoreStream;
       this.serviceName = serviceName;
-      this.httpBaseUrl = httpBaseUrl;
+      this.peerClients = peerClients;
+      this.localService = localService;
+      this.standbyReads = standbyReads;
+    }
+
+    @Override protected String parseItem(byte[] content, int offset, int length)
+      throws IOException {
+      return parseString(content, offset, length);
     }
 
-    @Override protected String parseItem(JsonNode node) {
-      return node.textValue();
+    @Override protected List<String> localList(Integer partition) {
+      return localService.partition(partition).names(REMOTE_SERVICE_NAMES_STORE_NAME, serviceName);
     }
 
     @Override public Call<List<String>> clone() {
-      return new GetRemoteServiceNamesCall(traceStoreStream, serviceName, httpBaseUrl);
+      return new GetRemoteServiceNamesCall(traceStoreStream, serviceName, peerClients,
+        localService, standbyReads);
+    }
+  }
+
+  /**
+   * Partitions of trace stores where a service had spans since a timestamp, to plan which instances
+   * a trace search by service name is sent to.
+   */
+  static final class GetServicePartitionsCall extends KafkaStoreSingleKeyListCall<Integer> {
+    final KafkaStreams traceStoreStream;
+    final String serviceName;
+    final long startTs;
+    final PeerClients peerClients;
+    final KafkaStorageHttpService localService;
+    final boolean standbyReads;
+
+    GetServicePartitionsCall(KafkaStreams traceStoreStream, String serviceName, long startTs,
+      PeerClients peerClients, KafkaStorageHttpService localService, boolean standbyReads) {
+      super(traceStoreStream, SERVICE_PARTITIONS_STORE_NAME, peerClients,
+        "/serviceNames/" + serviceName + "/partitions?startTs=" + startTs, serviceName,
+        standbyReads);
+      this.traceStoreStream = traceStoreStream;
+      this.serviceName = serviceName;
+      this.startTs = startTs;
+      this.peerClients = peerClients;
+      this.localService = localService;
+      this.standbyReads = standbyReads;
+    }
+
+    @Override protected Integer parseItem(byte[] content, int offset, int length)
+      throws IOException {
+      return parseInt(content, offset, length);
+    }
+
+    @Override protected List<Integer> localList(Integer partition) {
+      return localService.partition(partition).servicePartitions(serviceName, startTs);
+    }
+
+    /** Visible to {@link GetTracesCall}, to search once partitions are known. */
+    @Override protected CompletableFuture<List<Integer>> listFuture() {
+      return super.listFuture();
+    }
+
+    @Override public Call<List<Integer>> clone() {
+      return new GetServicePartitionsCall(traceStoreStream, serviceName, startTs, peerClients,
+        localService, standbyReads);
     }
   }
 
   static final class GetTracesCall extends KafkaStoreScatterGatherListCall<List<Span>> {
     final KafkaStreams traceStoreStream;
-    final BiFunction<String, Integer, String> httpBaseUrl;
+    final PeerClients peerClients;
+    final KafkaStorageHttpService localService;
+    final boolean standbyReads;
     final QueryRequest request;
+    /** Plans instances to request when searching by service name. */
+    final GetServicePartitionsCall servicePartitions;
 
     GetTracesCall(KafkaStreams traceStoreStream,
-      BiFunction<String, Integer, String> httpBaseUrl,
+      PeerClients peerClients, KafkaStorageHttpService localService, boolean standbyReads,
       QueryRequest request) {
       super(
         traceStoreStream,
         TRACES_STORE_NAME,
-        httpBaseUrl,
+        peerClients,
         ("/traces?"
           + (request.serviceName() == null ? "" : "serviceName=" + request.serviceName() + "&")
           + (request.remoteServiceName() == null ? ""
@@ -233,40 +333,135 @@ final class KafkaSpanStore implements SpanStore, Traces, ServiceAndSpanNames {
           + ("limit=" + request.limit())),
         request.limit());
       this.traceStoreStream = traceStoreStream;
-      this.httpBaseUrl = httpBaseUrl;
+      this.peerClients = peerClients;
+      this.localService = localService;
+      this.standbyReads = standbyReads;
       this.request = request;
+      this.servicePartitions = request.serviceName() == null ? null
+        : new GetServicePartitionsCall(traceStoreStream, request.serviceName(),
+          request.endTs() - request.lookback(), peerClients, localService, standbyReads);
+    }
+
+    @Override protected List<Span> parseItem(byte[] content, int offset, int length) {
+      return SpanBytesDecoder.JSON_V2.decodeList(ByteBuffer.wrap(content, offset, length));
+    }
+
+    @Override protected MediaType binaryType() {
+      return KafkaStorageHttpService.PROTO3_TRACES;
+    }
+
+    @Override protected List<List<Span>> parseBinary(byte[] content) {
+      return Proto3Spans.decodeTraces(content);
     }
 
-    @Override protected List<Span> parseItem(JsonNode node) throws JsonProcessingException {
-      return SpanBytesDecoder.JSON_V2.decodeList(MAPPER.writeValueAsBytes(node));
+    @Override protected List<List<Span>> localList(Integer partition) {
+      return localService.partition(partition).traces(request);
+    }
+
+    /**
+     * Searches instances with partitions where the service had spans within the time range, if
+     * searching by service name, or all instances otherwise. Partitions are unknown when the
+     * service has no spans recorded within the range, or when planning fails: then all instances
+     * are searched as well.
+     */
+    @Override protected CompletableFuture<List<List<Span>>> listFuture() {
+      if (servicePartitions == null) return merge(scatter());
+      return servicePartitions.listFuture()
+        .handle((partitions, t) -> {
+          if (t != null) LOG.debug("Error planning partitions of {}", request.serviceName(), t);
+          return t != null || partitions.isEmpty() ? scatter() : scatter(partitions);
+        })
+        .thenCompose(this::merge);
+    }
+
+    /** Merges traces from each instance as answered, keeping the newest up to the limit. */
+    CompletableFuture<List<List<Span>>> merge(List<CompletableFuture<List<List<Span>>>> futures) {
+      TopTraces topTraces = new TopTraces(request.limit());
+      CompletableFuture<?>[] merged = futures.stream()
+        .map(future -> future.thenAccept(topTraces::addAll))
+        .toArray(CompletableFuture[]::new);
+      return CompletableFuture.allOf(merged).thenApply(unused -> topTraces.toList());
+    }
+
+    @Override protected void doCancel() {
+      if (servicePartitions != null) servicePartitions.cancel();
+      super.doCancel();
     }
 
     @Override public Call<List<List<Span>>> clone() {
-      return new GetTracesCall(traceStoreStream, httpBaseUrl, request);
+      return new GetTracesCall(traceStoreStream, peerClients, localService, standbyReads,
+        request);
     }
   }
 
+  /**
+   * Trace from the instance of its trace ID partition. When migrating to binary trace IDs, spans
+   * keyed by string trace ID are on the partition of the string key, so it is read as well.
+   */
   static final class GetTraceCall extends KafkaStoreSingleKeyListCall<Span> {
+    static final StringSerializer STRING_SERIALIZER = new StringSerializer();
+
     final KafkaStreams traceStoreStream;
-    final BiFunction<String, Integer, String> httpBaseUrl;
+    final PeerClients peerClients;
+    final KafkaStorageHttpService localService;
+    final boolean standbyReads;
+    final Serializer<String> traceIdSerializer;
+    final boolean traceIdsMigration;
     final String traceId;
 
     GetTraceCall(KafkaStreams traceStoreStream,
-      BiFunction<String, Integer, String> httpBaseUrl,
-      String traceId) {
-      super(traceStoreStream, TRACES_STORE_NAME, httpBaseUrl, String.format("/traces/%s", traceId),
-        traceId);
+      PeerClients peerClients, KafkaStorageHttpService localService, boolean standbyReads,
+      Serializer<String> traceIdSerializer, boolean traceIdsMigration, String traceId) {
+      super(traceStoreStream, TRACES_STORE_NAME, peerClients, String.format("/traces/%s", traceId),
+        traceId, traceIdSerializer, standbyReads);
       this.traceStoreStream = traceStoreStream;
-      this.httpBaseUrl = httpBaseUrl;
+      this.peerClients = peerClients;
+      this.localService = localService;
+      this.standbyReads = standbyReads;
+      this.traceIdSerializer = traceIdSerializer;
+      this.traceIdsMigration = traceIdsMigration;
       this.traceId = traceId;
     }
 
-    @Override protected Span parseItem(JsonNode node) throws JsonProcessingException {
-      return SpanBytesDecoder.JSON_V2.decodeOne(MAPPER.writeValueAsBytes(node));
+    @Override protected CompletableFuture<List<Span>> listFuture() {
+      CompletableFuture<List<Span>> trace = super.listFuture();
+      if (!traceIdsMigration) return trace;
+      int partition = traceStoreStream
+        .queryMetadataForKey(TRACES_STORE_NAME, traceId, traceIdSerializer).partition();
+      KeyQueryMetadata metadata =
+        traceStoreStream.queryMetadataForKey(TRACES_STORE_NAME, traceId, STRING_SERIALIZER);
+      if (metadata.partition() == partition) return trace;
+      int stringPartition = metadata.partition();
+      CompletableFuture<List<Span>> stringKeyed = fetch(metadata.activeHost(),
+        partitionPath(String.format("/traces/%s", traceId), stringPartition),
+        () -> localList(stringPartition));
+      return trace.thenCombine(stringKeyed, (spans, moreSpans) -> {
+        Set<Span> merged = new LinkedHashSet<>(spans);
+        merged.addAll(moreSpans);
+        return new ArrayList<>(merged);
+      });
+    }
+
+    @Override protected Span parseItem(byte[] content, int offset, int length) {
+      return SpanBytesDecoder.JSON_V2.decodeOne(ByteBuffer.wrap(content, offset, length));
+    }
+
+    @Override protected MediaType binaryType() {
+      return KafkaStorageHttpService.PROTO3_TRACES;
+    }
+
+    @Override protected List<Span> parseBinary(byte[] content) {
+      List<List<Span>> traces = Proto3Spans.decodeTraces(content);
+      return traces.isEmpty() ? Collections.emptyList() : traces.get(0);
+    }
+
+    @Override protected List<Span> localList(Integer partition) {
+      return localService.partition(partition).trace(traceId);
     }
 
     @Override public Call<List<Span>> clone() {
-      return new GetTraceCall(traceStoreStream, httpBaseUrl, traceId);
+      return new GetTraceCall(traceStoreStream, peerClients, localService, standbyReads,
+        traceIdSerializer, traceIdsMigration, traceId);
     }
   }
 
@@ -274,55 +469,105 @@ final class KafkaSpanStore implements SpanStore, Traces, ServiceAndSpanNames {
     static final StringSerializer STRING_SERIALIZER = new StringSerializer();
 
     final KafkaStreams traceStoreStream;
-    final BiFunction<String, Integer, String> httpBaseUrl;
+    final PeerClients peerClients;
+    final KafkaStorageHttpService localService;
+    final boolean standbyReads;
+    final Serializer<String> traceIdSerializer;
+    final boolean traceIdsMigration;
     final String traceIds;
 
     GetTraceManyCall(KafkaStreams traceStoreStream,
-      BiFunction<String, Integer, String> httpBaseUrl,
-      String traceIds) {
-      super(traceStoreStream, TRACES_STORE_NAME, httpBaseUrl, "/traceMany?traceIds=" + traceIds);
+      PeerClients peerClients, KafkaStorageHttpService localService, boolean standbyReads,
+      Serializer<String> traceIdSerializer, boolean traceIdsMigration, String traceIds) {
+      super(traceStoreStream, TRACES_STORE_NAME, peerClients, "/traceMany?traceIds=" + traceIds);
       this.traceStoreStream = traceStoreStream;
-      this.httpBaseUrl = httpBaseUrl;
+      this.peerClients = peerClients;
+      this.localService = localService;
+      this.standbyReads = standbyReads;
+      this.traceIdSerializer = traceIdSerializer;
+      this.traceIdsMigration = traceIdsMigration;
       this.traceIds = traceIds;
     }
 
-    @Override protected List<Span> parseItem(JsonNode node) throws JsonProcessingException {
-      return SpanBytesDecoder.JSON_V2.decodeList(MAPPER.writeValueAsBytes(node));
+    @Override protected List<Span> parseItem(byte[] content, int offset, int length) {
+      return SpanBytesDecoder.JSON_V2.decodeList(ByteBuffer.wrap(content, offset, length));
+    }
+
+    @Override protected MediaType binaryType() {
+      return KafkaStorageHttpService.PROTO3_TRACES;
+    }
+
+    @Override protected List<List<Span>> parseBinary(byte[] content) {
+      return Proto3Spans.decodeTraces(content);
     }
 
     @Override public Call<List<List<Span>>> clone() {
-      return new GetTraceManyCall(traceStoreStream, httpBaseUrl, traceIds);
+      return new GetTraceManyCall(traceStoreStream, peerClients, localService, standbyReads,
+        traceIdSerializer, traceIdsMigration, traceIds);
     }
 
     @Override
     protected CompletableFuture<List<List<Span>>> listFuture() {
-      // To reduce calls to store instances traceIds are grouped by hostInfo
+      // To reduce calls to store instances traceIds are grouped by hostInfo, or by partition when
+      // reading from any of its replicas
       Map<HostInfo, List<String>> traceIdsByHost = new LinkedHashMap<>();
+      Map<KeyQueryMetadata, List<String>> traceIdsByPartition = new LinkedHashMap<>();
       for (String traceId : traceIds.split(",", 1_000)) {
         KeyQueryMetadata metadata =
+          traceStoreStream.queryMetadataForKey(TRACES_STORE_NAME, traceId, traceIdSerializer);
+        group(traceIdsByHost, traceIdsByPartition, metadata, traceId);
+        if (!traceIdsMigration) continue;
+        // Spans keyed by string trace ID before migrating are on the partition of the string key
+        KeyQueryMetadata stringMetadata =
           traceStoreStream.queryMetadataForKey(TRACES_STORE_NAME, traceId, STRING_SERIALIZER);
-        List<String> collected = traceIdsByHost.get(metadata.activeHost());
-        if (collected == null) collected = new ArrayList<>();
-        collected.add(traceId);
-        traceIdsByHost.put(metadata.activeHost(), collected);
+        if (stringMetadata.partition() != metadata.partition()) {
+          group(traceIdsByHost, traceIdsByPartition, stringMetadata, traceId);
+        }
       }
-      // Only calls to hosts that have traceIds are executed
-      List<CompletableFuture<AggregatedHttpResponse>> responseFutures =
-        traceIdsByHost.entrySet()
-          .stream()
-          .map(entry -> httpClient(entry.getKey())
-            .get("/traceMany?traceIds=" + String.join(",", entry.getValue())))
-          .map(HttpResponse::aggregate)
-          .collect(Collectors.toList());
-      return CompletableFuture.allOf(responseFutures.toArray(new CompletableFuture[0]))
-        .thenApply(unused ->
-          responseFutures.stream()
-            .map(s -> s.getNow(AggregatedHttpResponse.of(HttpStatus.INTERNAL_SERVER_ERROR)))
-            .map(this::content)
-            .map(this::parseList)
+      // Only calls to hosts that have traceIds are executed, and traces on this instance are read
+      // from its store
+      List<CompletableFuture<List<List<Span>>>> listFutures = new ArrayList<>();
+      traceIdsByHost.forEach((hostInfo, ids) -> listFutures.add(
+        fetch(hostInfo, "/traceMany?traceIds=" + String.join(",", ids),
+          () -> localService.traces(ids))));
+      traceIdsByPartition.forEach((metadata, ids) -> {
+        int partition = metadata.partition();
+        listFutures.add(fetchFirst(replicas(metadata),
+          partitionPath("/traceMany?traceIds=" + String.join(",", ids), partition),
+          () -> localService.partition(partition).traces(ids)));
+      });
+      return CompletableFuture.allOf(listFutures.toArray(new CompletableFuture[0]))
+        .thenApply(unused -> {
+          if (!traceIdsMigration) {
+            return listFutures.stream()
+              .map(s -> s.getNow(Collections.emptyList()))
+              .flatMap(Collection::stream)
+              .distinct()
+              .collect(Collectors.toList());
+          }
+          // Traces could be read partially from each partition, so spans are merged by trace ID
+          Map<String, Set<Span>> merged = new LinkedHashMap<>();
+          listFutures.stream()
+            .map(s -> s.getNow(Collections.emptyList()))
             .flatMap(Collection::stream)
-            .distinct()
-            .collect(Collectors.toList()));
+            .filter(trace -> !trace.isEmpty())
+            .forEach(trace -> merged.computeIfAbsent(trace.get(0).traceId(),
+              k -> new LinkedHashSet<>()).addAll(trace));
+          return merged.values().stream()
+            .map(ArrayList::new)
+            .collect(Collectors.toList());
+        });
+    }
+
+    void group(Map<HostInfo, List<String>> traceIdsByHost,
+      Map<KeyQueryMetadata, List<String>> traceIdsByPartition, KeyQueryMetadata metadata,
+      String traceId) {
+      if (standbyReads && !metadata.standbyHosts().isEmpty()) {
+        traceIdsByPartition.computeIfAbsent(metadata, m -> new ArrayList<>()).add(traceId);
+      } else {
+        traceIdsByHost.computeIfAbsent(metadata.activeHost(), h -> new ArrayList<>())
+          .add(traceId);
+      }
     }
   }
 
@@ -330,30 +575,38 @@ final class KafkaSpanStore implements SpanStore, Traces, ServiceAndSpanNames {
     static final long DEPENDENCIES_LIMIT = 1_000;
 
     final KafkaStreams dependencyStoreStream;
-    final BiFunction<String, Integer, String> httpBaseUrl;
+    final PeerClients peerClients;
+    final KafkaStorageHttpService localService;
     final long endTs, lookback;
 
     GetDependenciesCall(KafkaStreams dependencyStoreStream,
-      BiFunction<String, Integer, String> httpBaseUrl,
+      PeerClients peerClients, KafkaStorageHttpService localService,
       long endTs, long lookback) {
       super(
         dependencyStoreStream,
         DEPENDENCIES_STORE_NAME,
-        httpBaseUrl,
+        peerClients,
         "/dependencies?endTs=" + endTs + "&lookback=" + lookback,
         DEPENDENCIES_LIMIT);
       this.dependencyStoreStream = dependencyStoreStream;
-      this.httpBaseUrl = httpBaseUrl;
+      this.peerClients = peerClients;
+      this.localService = localService;
       this.endTs = endTs;
       this.lookback = lookback;
     }
 
-    @Override protected DependencyLink parseItem(JsonNode node) throws JsonProcessingException {
-      return DependencyLinkBytesDecoder.JSON_V1.decodeOne(MAPPER.writeValueAsBytes(node));
+    @Override protected DependencyLink parseItem(byte[] content, int offset, int length) {
+      return DependencyLinkBytesDecoder.JSON_V1.decodeOne(
+        Arrays.copyOfRange(content, offset, offset + length));
+    }
+
+    @Override protected List<DependencyLink> localList(Integer partition) {
+      return localService.partition(partition).dependencies(endTs, lookback);
     }
 
     @Override public Call<List<DependencyLink>> clone() {
-      return new GetDependenciesCall(dependencyStoreStream, httpBaseUrl, endTs, lookback);
+      return new GetDependenciesCall(dependencyStoreStream, peerClients, localService, endTs,
+        lookback);
     }
   }
 }
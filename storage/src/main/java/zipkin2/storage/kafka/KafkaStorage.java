@@ -14,18 +14,26 @@
 package zipkin2.storage.kafka;
 
 import com.linecorp.armeria.server.Server;
+import io.micrometer.core.instrument.Metrics;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 import org.apache.kafka.clients.admin.AdminClient;
 import org.apache.kafka.clients.admin.AdminClientConfig;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.KafkaFuture;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.streams.KafkaStreams;
 import org.apache.kafka.streams.Topology;
+import org.apache.kafka.streams.state.HostInfo;
+import org.apache.kafka.streams.state.StreamsMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import zipkin2.Call;
@@ -36,9 +44,12 @@ import zipkin2.storage.SpanConsumer;
 import zipkin2.storage.SpanStore;
 import zipkin2.storage.StorageComponent;
 import zipkin2.storage.Traces;
+import zipkin2.storage.kafka.internal.PeerClients;
 import zipkin2.storage.kafka.streams.DependencyStorageTopology;
 import zipkin2.storage.kafka.streams.SpanAggregationTopology;
+import zipkin2.storage.kafka.streams.TraceSampler;
 import zipkin2.storage.kafka.streams.TraceStorageTopology;
+import zipkin2.storage.kafka.streams.serdes.TraceIdSerde;
 
 /**
  * Zipkin's Kafka Storage.
@@ -62,14 +73,20 @@ public class KafkaStorage extends StorageComponent {
 
   // Kafka Storage flags
   final boolean partitioningEnabled;
+  final boolean partitioningPackTracesEnabled;
+  final int partitioningProducers;
   final boolean aggregationEnabled;
   final boolean traceByIdQueryEnabled;
   final boolean traceSearchEnabled;
   final boolean dependencyQueryEnabled;
+  final boolean binaryTraceIdsEnabled;
+  final boolean traceIdsMigrationEnabled;
   // Autocomplete Tags
   final List<String> autocompleteKeys;
   // Kafka Storage configs
   final long minTracesStored;
+  final boolean traceStandbyReadsEnabled;
+  final TraceSampler aggregationTraceSampler;
   final String hostname;
   final int httpPort;
   // Kafka Topics
@@ -84,8 +101,12 @@ public class KafkaStorage extends StorageComponent {
   final Topology aggregationTopology, traceStoreTopology, dependencyStoreTopology;
   final BiFunction<String, Integer, String> httpBaseUrl;
   // Resources
+  final PeerClients peerClients;
+  final QueryCache queryCache;
+  final IngestAdmission ingestAdmission;
+  final SpanDeduplicator spanDeduplicator;
   volatile AdminClient adminClient;
-  volatile Producer<String, byte[]> producer;
+  volatile ProducerStripes producers;
   volatile KafkaStreams aggregationStream, traceStoreStream, dependencyStoreStream;
   volatile Server server;
   volatile boolean closeCalled;
@@ -93,10 +114,15 @@ public class KafkaStorage extends StorageComponent {
   KafkaStorage(KafkaStorageBuilder builder) {
     // Kafka Storage modes
     this.partitioningEnabled = builder.spanPartitioning.enabled;
+    this.partitioningPackTracesEnabled = builder.spanPartitioning.packTracesEnabled;
+    this.partitioningProducers = builder.spanPartitioning.producers;
     this.aggregationEnabled = builder.spanAggregation.enabled;
     this.traceByIdQueryEnabled = builder.traceStorage.traceByIdQueryEnabled;
     this.traceSearchEnabled = builder.traceStorage.traceSearchEnabled;
     this.dependencyQueryEnabled = builder.dependencyStorage.enabled;
+    this.binaryTraceIdsEnabled = builder.binaryTraceIdsEnabled;
+    this.traceIdsMigrationEnabled = builder.binaryTraceIdsEnabled
+      && builder.traceIdsMigrationEnabled;
     // Autocomplete tags
     this.autocompleteKeys = builder.autocompleteKeys;
     // Kafka Topics config
@@ -108,9 +134,27 @@ public class KafkaStorage extends StorageComponent {
     this.storageDependencyTopic = builder.dependencyStorage.dependencyTopic;
     // Storage directories
     this.minTracesStored = builder.traceStorage.minTracesStored;
+    this.traceStandbyReadsEnabled = builder.traceStorage.standbyReadsEnabled;
+    this.aggregationTraceSampler = builder.spanAggregation.traceSampler;
     this.httpBaseUrl = builder.httpBaseUrl;
     this.hostname = builder.hostname;
     this.httpPort = builder.serverPort;
+    this.peerClients = new PeerClients(httpBaseUrl, new HostInfo(hostname, httpPort),
+      builder.peerTimeout, builder.peerHedgeDelay, Metrics.globalRegistry);
+    this.queryCache = new QueryCache(builder.queryCacheTtl, builder.queryCacheMaxSize,
+      Metrics.globalRegistry);
+    this.ingestAdmission = new IngestAdmission(builder.spanPartitioning.maxInFlightBytes,
+      builder.spanPartitioning.maxInFlightRecords, Metrics.globalRegistry);
+    this.spanDeduplicator = builder.spanPartitioning.dedupEnabled
+      ? new SpanDeduplicator(builder.spanPartitioning.dedupWindow,
+        builder.spanPartitioning.dedupExpectedSpans,
+        builder.spanPartitioning.dedupFalsePositiveRate, Metrics.globalRegistry)
+      : null;
+    if (aggregationTraceSampler != TraceSampler.ALWAYS_SAMPLE && builder.traceStorage.enabled
+      && !storageSpansTopic.equals(aggregationTraceTopic)) {
+      LOG.warn("Aggregated traces are sampled, but trace storage consumes {} instead of {}: "
+        + "all traces are stored", storageSpansTopic, aggregationTraceTopic);
+    }
     // Kafka Configs
     this.adminConfig = builder.adminConfig;
     this.producerConfig = builder.spanPartitioning.producerConfig;
@@ -123,7 +167,10 @@ public class KafkaStorage extends StorageComponent {
       builder.spanAggregation.traceTopic,
       builder.spanAggregation.dependencyTopic,
       builder.spanAggregation.traceTimeout,
-      builder.spanAggregation.enabled).get();
+      aggregationTraceSampler,
+      builder.spanAggregation.enabled,
+      partitioningPackTracesEnabled,
+      binaryTraceIdsEnabled).get();
     traceStoreTopology = new TraceStorageTopology(
       builder.traceStorage.spansTopic,
       autocompleteKeys,
@@ -131,7 +178,8 @@ public class KafkaStorage extends StorageComponent {
       builder.traceStorage.traceTtlCheckInterval,
       builder.traceStorage.minTracesStored,
       builder.traceStorage.traceByIdQueryEnabled,
-      builder.traceStorage.traceSearchEnabled).get();
+      builder.traceStorage.traceSearchEnabled,
+      binaryTraceIdsEnabled).get();
     dependencyStoreTopology = new DependencyStorageTopology(
       builder.dependencyStorage.dependencyTopic,
       builder.dependencyStorage.dependencyTtl,
@@ -148,6 +196,19 @@ public class KafkaStorage extends StorageComponent {
     }
   }
 
+  /**
+   * Span consumer taking PROTO3 encoded spans as received, for collectors able to pass them
+   * without decoding.
+   */
+  public Proto3SpanConsumer proto3SpanConsumer() {
+    checkResources();
+    if (partitioningEnabled) {
+      return new KafkaSpanConsumer(this);
+    } else { // NoopSpanConsumer
+      return spans -> Call.create(null);
+    }
+  }
+
   @Override public SpanStore spanStore() {
     checkResources();
     return new KafkaSpanStore(this);
@@ -212,23 +273,44 @@ public class KafkaStorage extends StorageComponent {
   void doClose() {
     try {
       if (adminClient != null) adminClient.close(Duration.ofSeconds(1));
-      if (producer != null) producer.close(Duration.ofSeconds(1));
+      if (producers != null) producers.close(Duration.ofSeconds(1));
       if (traceStoreStream != null) traceStoreStream.close(Duration.ofSeconds(1));
       if (dependencyStoreStream != null) dependencyStoreStream.close(Duration.ofSeconds(1));
       if (aggregationStream != null) aggregationStream.close(Duration.ofSeconds(1));
       if (server != null) server.close();
+      peerClients.close();
+      queryCache.close();
+      ingestAdmission.close();
+      if (spanDeduplicator != null) spanDeduplicator.close();
     } catch (Exception | Error e) {
       LOG.debug("error closing client {}", e.getMessage(), e);
     }
   }
 
-  Producer<String, byte[]> getProducer() {
-    if (producer == null) {
+  ProducerStripes getProducers() {
+    if (producers == null) {
       synchronized (this) {
-        if (producer == null) producer = new KafkaProducer<>(producerConfig);
+        if (producers == null) {
+          List<Producer<String, byte[]>> stripes = new ArrayList<>(partitioningProducers);
+          for (int i = 0; i < partitioningProducers; i++) {
+            stripes.add(new KafkaProducer<>(producerConfig(i),
+              new TraceIdSerde(binaryTraceIdsEnabled).serializer(), new ByteArraySerializer()));
+          }
+          producers = new ProducerStripes(stripes, Metrics.globalRegistry);
+        }
       }
     }
-    return producer;
+    return producers;
+  }
+
+  /** Client IDs have to be unique, so each producer gets its own when set. */
+  Properties producerConfig(int producer) {
+    String clientId = producerConfig.getProperty(ProducerConfig.CLIENT_ID_CONFIG);
+    if (partitioningProducers == 1 || clientId == null) return producerConfig;
+    Properties config = new Properties();
+    config.putAll(producerConfig);
+    config.put(ProducerConfig.CLIENT_ID_CONFIG, clientId + "-" + producer);
+    return config;
   }
 
   AdminClient getAdminClient() {
@@ -246,6 +328,7 @@ public class KafkaStorage extends StorageComponent {
         if (traceStoreStream == null) {
           try {
             traceStoreStream = new KafkaStreams(traceStoreTopology, traceStoreStreamConfig);
+            traceStoreStream.setStateListener(this::retainPeerClients);
             traceStoreStream.start();
             LOG.info("Trace storage topology:\n{}", traceStoreTopology.describe());
           } catch (Exception e) {
@@ -265,6 +348,7 @@ public class KafkaStorage extends StorageComponent {
           try {
             dependencyStoreStream =
               new KafkaStreams(dependencyStoreTopology, dependencyStoreStreamConfig);
+            dependencyStoreStream.setStateListener(this::retainPeerClients);
             dependencyStoreStream.start();
             LOG.info("Dependency storage topology:\n{}", dependencyStoreTopology.describe());
           } catch (Exception e) {
@@ -295,6 +379,23 @@ public class KafkaStorage extends StorageComponent {
     return aggregationStream;
   }
 
+  /**
+   * Evicts clients to instances that left, once stores are assigned after a rebalance. Instances
+   * serve either stream, so clients are retained only once all streams started are running, from
+   * the metadata of all of them.
+   */
+  void retainPeerClients(KafkaStreams.State newState, KafkaStreams.State oldState) {
+    if (newState != KafkaStreams.State.RUNNING) return;
+    Set<HostInfo> hostInfos = new HashSet<>();
+    for (KafkaStreams stream : new KafkaStreams[] {traceStoreStream, dependencyStoreStream}) {
+      if (stream == null) continue;
+      // The other stream is still rebalancing, and will retain clients once running
+      if (stream.state() != KafkaStreams.State.RUNNING) return;
+      for (StreamsMetadata metadata : stream.allMetadata()) hostInfos.add(metadata.hostInfo());
+    }
+    peerClients.retain(hostInfos);
+  }
+
   public KafkaStorageHttpService httpService() {
     return new KafkaStorageHttpService(this);
   }
@@ -302,7 +403,12 @@ public class KafkaStorage extends StorageComponent {
   @Override public String toString() {
     return "KafkaStorage{" +
       " bootstrapServers=" + adminConfig.getProperty(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG) +
+      ", binaryTraceIdsEnabled=" + binaryTraceIdsEnabled +
+      ", traceIdsMigrationEnabled=" + traceIdsMigrationEnabled +
       ", spanPartitioning{ enabled=" + partitioningEnabled +
+      ", packTracesEnabled=" + partitioningPackTracesEnabled +
+      ", producers=" + partitioningProducers +
+      ", dedupEnabled=" + (spanDeduplicator != null) +
       ", spansTopic=" + partitioningSpansTopic + "}" +
       ", spanAggregation{ enabled=" + aggregationEnabled +
       ", spansTopic=" + aggregationSpansTopic +
@@ -27,6 +27,7 @@ import org.apache.kafka.common.serialization.Serdes.StringSerde;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.apache.kafka.streams.StreamsConfig;
 import zipkin2.storage.StorageComponent;
+import zipkin2.storage.kafka.streams.TraceSampler;
 
 import static zipkin2.storage.kafka.KafkaStorage.HTTP_PATH_PREFIX;
 
@@ -38,6 +39,12 @@ public final class KafkaStorageBuilder extends StorageComponent.Builder {
   int serverPort = 9411;
   BiFunction<String, Integer, String> httpBaseUrl =
     (hostname, port) -> "http://" + hostname + ":" + port + HTTP_PATH_PREFIX;
+  Duration peerTimeout = Duration.ofSeconds(10);
+  Duration peerHedgeDelay = Duration.ofSeconds(1);
+  Duration queryCacheTtl = Duration.ofSeconds(30);
+  int queryCacheMaxSize = 1_000;
+  boolean binaryTraceIdsEnabled = false;
+  boolean traceIdsMigrationEnabled = false;
 
   SpanPartitioningBuilder spanPartitioning = new SpanPartitioningBuilder();
   SpanAggregationBuilder spanAggregation = new SpanAggregationBuilder();
@@ -139,6 +146,67 @@ public final class KafkaStorageBuilder extends StorageComponent.Builder {
     return this;
   }
 
+  /**
+   * Deadline of requests to other instances. Queries on all instances answer without the values of
+   * instances not answering on time, instead of waiting for them.
+   */
+  public KafkaStorageBuilder peerTimeout(Duration peerTimeout) {
+    if (peerTimeout == null) throw new NullPointerException("peerTimeout == null");
+    if (peerTimeout.isNegative()) throw new IllegalArgumentException("peerTimeout < 0");
+    this.peerTimeout = peerTimeout;
+    return this;
+  }
+
+  /**
+   * Delay before requesting values of an instance not answering yet from instances with standby
+   * replicas of its partitions. Values answered first are used. Only applies when standby replicas
+   * are enabled (i.e. {@code num.standby.replicas}).
+   */
+  public KafkaStorageBuilder peerHedgeDelay(Duration peerHedgeDelay) {
+    if (peerHedgeDelay == null) throw new NullPointerException("peerHedgeDelay == null");
+    if (peerHedgeDelay.isNegative()) throw new IllegalArgumentException("peerHedgeDelay < 0");
+    this.peerHedgeDelay = peerHedgeDelay;
+    return this;
+  }
+
+  /**
+   * How long results of name queries (i.e. service names, span names, remote service names and
+   * autocomplete tags) are kept, instead of querying instances each time. Zero disables caching.
+   */
+  public KafkaStorageBuilder queryCacheTtl(Duration queryCacheTtl) {
+    if (queryCacheTtl == null) throw new NullPointerException("queryCacheTtl == null");
+    if (queryCacheTtl.isNegative()) throw new IllegalArgumentException("queryCacheTtl < 0");
+    this.queryCacheTtl = queryCacheTtl;
+    return this;
+  }
+
+  /** Maximum results of name queries kept, the least recently used evicted first. */
+  public KafkaStorageBuilder queryCacheMaxSize(int queryCacheMaxSize) {
+    if (queryCacheMaxSize <= 0) throw new IllegalArgumentException("queryCacheMaxSize <= 0");
+    this.queryCacheMaxSize = queryCacheMaxSize;
+    return this;
+  }
+
+  /**
+   * Key records, aggregation and traces store by trace ID as 8 or 16 bytes, instead of as a 16 or
+   * 32 hex string. Keys of both forms are read, but records of a trace keyed on each form are on
+   * different partitions, so enable it on all instances, and enable {@link
+   * #traceIdsMigrationEnabled(boolean) migration} until traces keyed as strings expire.
+   */
+  public KafkaStorageBuilder binaryTraceIdsEnabled(boolean binaryTraceIdsEnabled) {
+    this.binaryTraceIdsEnabled = binaryTraceIdsEnabled;
+    return this;
+  }
+
+  /**
+   * When trace IDs are binary, also look for traces stored with string trace IDs (i.e. on their
+   * partition and keys) when querying traces by ID.
+   */
+  public KafkaStorageBuilder traceIdsMigrationEnabled(boolean traceIdsMigrationEnabled) {
+    this.traceIdsMigrationEnabled = traceIdsMigrationEnabled;
+    return this;
+  }
+
   public KafkaStorageBuilder spanPartitioningBuilder(SpanPartitioningBuilder builder) {
     if (builder == null) throw new NullPointerException("builder == null");
     this.spanPartitioning = builder;
@@ -169,6 +237,14 @@ public final class KafkaStorageBuilder extends StorageComponent.Builder {
 
   public static class SpanPartitioningBuilder {
     boolean enabled = true;
+    boolean packTracesEnabled = false;
+    int producers = 1;
+    boolean dedupEnabled = false;
+    Duration dedupWindow = Duration.ofMinutes(5);
+    int dedupExpectedSpans = 1_000_000;
+    double dedupFalsePositiveRate = 0.001;
+    long maxInFlightBytes = 32 * 1024 * 1024;
+    int maxInFlightRecords = 100_000;
     Properties producerConfig = new Properties();
     String spansTopic = "zipkin-spans";
 
@@ -185,6 +261,86 @@ public final class KafkaStorageBuilder extends StorageComponent.Builder {
       return this;
     }
 
+    /**
+     * Send all traces of a span batch bound to the same partition on a single record, instead of a
+     * record per trace. Span aggregation unpacks records only when enabled, so enable it on all
+     * instances consuming the spans topic. Unpacked traces are repartitioned by trace ID before
+     * aggregation.
+     */
+    public SpanPartitioningBuilder packTracesEnabled(boolean packTracesEnabled) {
+      this.packTracesEnabled = packTracesEnabled;
+      return this;
+    }
+
+    /**
+     * Producers sending spans, each record sent by the producer of its partition, so span batches
+     * are sent in parallel by many collector threads. Each producer has its own sender thread and
+     * {@code buffer.memory}. Defaults to 1.
+     */
+    public SpanPartitioningBuilder producers(int producers) {
+      if (producers <= 0) throw new IllegalArgumentException("producers <= 0");
+      this.producers = producers;
+      return this;
+    }
+
+    /**
+     * Drop spans already sent (i.e. same trace ID, span ID and shared flag) within {@link
+     * #dedupWindow(Duration)}, as resent by reporter retries or at-least-once collectors, before
+     * they are sent again. Spans are recorded on a Bloom filter, so a few spans never sent could be
+     * dropped, bounded by {@link #dedupFalsePositiveRate(double)}.
+     */
+    public SpanPartitioningBuilder dedupEnabled(boolean dedupEnabled) {
+      this.dedupEnabled = dedupEnabled;
+      return this;
+    }
+
+    /** How long spans sent are recognized at least, and at most twice as long. */
+    public SpanPartitioningBuilder dedupWindow(Duration dedupWindow) {
+      if (dedupWindow == null) throw new NullPointerException("dedupWindow == null");
+      if (dedupWindow.isNegative() || dedupWindow.isZero()) {
+        throw new IllegalArgumentException("dedupWindow <= 0");
+      }
+      this.dedupWindow = dedupWindow;
+      return this;
+    }
+
+    /**
+     * Spans expected within a window, sizing the Bloom filters (i.e. memory used). The window is
+     * shortened when more spans are sent, to keep false positives within budget.
+     */
+    public SpanPartitioningBuilder dedupExpectedSpans(int dedupExpectedSpans) {
+      if (dedupExpectedSpans <= 0) throw new IllegalArgumentException("dedupExpectedSpans <= 0");
+      this.dedupExpectedSpans = dedupExpectedSpans;
+      return this;
+    }
+
+    /** Budget of spans never sent dropped as duplicates, as a rate of spans received. */
+    public SpanPartitioningBuilder dedupFalsePositiveRate(double dedupFalsePositiveRate) {
+      if (dedupFalsePositiveRate <= 0 || dedupFalsePositiveRate >= 1) {
+        throw new IllegalArgumentException("dedupFalsePositiveRate must be in (0, 1)");
+      }
+      this.dedupFalsePositiveRate = dedupFalsePositiveRate;
+      return this;
+    }
+
+    /**
+     * Maximum bytes of spans sent and not acknowledged yet. Span batches over it are rejected
+     * instead of waiting for the producer buffer. Defaults to 32 MiB, as producer {@code
+     * buffer.memory}.
+     */
+    public SpanPartitioningBuilder maxInFlightBytes(long maxInFlightBytes) {
+      if (maxInFlightBytes <= 0) throw new IllegalArgumentException("maxInFlightBytes <= 0");
+      this.maxInFlightBytes = maxInFlightBytes;
+      return this;
+    }
+
+    /** Maximum records sent and not acknowledged yet. Span batches over it are rejected. */
+    public SpanPartitioningBuilder maxInFlightRecords(int maxInFlightRecords) {
+      if (maxInFlightRecords <= 0) throw new IllegalArgumentException("maxInFlightRecords <= 0");
+      this.maxInFlightRecords = maxInFlightRecords;
+      return this;
+    }
+
     /**
      * Kafka Bootstrap Servers list to establish connection with a Cluster.
      */
@@ -232,6 +388,7 @@ public final class KafkaStorageBuilder extends StorageComponent.Builder {
   public static class SpanAggregationBuilder {
     boolean enabled = true;
     Duration traceTimeout = Duration.ofMinutes(1);
+    TraceSampler traceSampler = TraceSampler.ALWAYS_SAMPLE;
     String spansTopic = "zipkin-spans";
     String traceTopic = "zipkin-trace";
     String dependencyTopic = "zipkin-dependency";
@@ -264,6 +421,21 @@ public final class KafkaStorageBuilder extends StorageComponent.Builder {
       return this;
     }
 
+    /**
+     * Decides which aggregated traces are emitted to the traces topic. Dependency links are
+     * mapped from all traces. Defaults to keep all traces.
+     *
+     * <p>Trace storage is not sampled unless it consumes the traces topic, i.e. {@link
+     * TraceStorageBuilder#spansTopic(String)} is the {@link #traceTopic(String)}.
+     *
+     * @see zipkin2.storage.kafka.streams.TailTraceSampler
+     */
+    public SpanAggregationBuilder traceSampler(TraceSampler traceSampler) {
+      if (traceSampler == null) throw new NullPointerException("traceSampler == null");
+      this.traceSampler = traceSampler;
+      return this;
+    }
+
     /**
      * Kafka Bootstrap Servers list to establish connection with a Cluster.
      */
@@ -344,6 +516,7 @@ public final class KafkaStorageBuilder extends StorageComponent.Builder {
     Properties streamConfig = new Properties();
 
     long minTracesStored = 10_000;
+    boolean standbyReadsEnabled = false;
 
     public TraceStorageBuilder() {
       streamConfig.put(StreamsConfig.DEFAULT_KEY_SERDE_CLASS_CONFIG, StringSerde.class);
@@ -396,11 +569,34 @@ public final class KafkaStorageBuilder extends StorageComponent.Builder {
      * Traces time-to-live on local state stores.
      */
     public TraceStorageBuilder ttl(Duration ttl) {
-      if (this.traceTtl == null) throw new NullPointerException("ttl == null");
+      if (ttl == null) throw new NullPointerException("ttl == null");
       this.traceTtl = ttl;
       return this;
     }
 
+    /**
+     * Minimum number of traces to keep per partition when evicting traces older than TTL, e.g. to
+     * keep latest traces available when no spans have been received for longer than TTL. Only
+     * applies while no spans are received: as stream-time moves forward, store segments older than
+     * TTL are dropped regardless.
+     */
+    public TraceStorageBuilder minTracesStored(long minTracesStored) {
+      if (minTracesStored < 0) throw new IllegalArgumentException("minTracesStored < 0");
+      this.minTracesStored = minTracesStored;
+      return this;
+    }
+
+    /**
+     * Serve reads by key (e.g. trace by ID, span names by service name) from standby replicas as
+     * well as from active ones, choosing the least loaded, and failing over to another replica when
+     * one can't answer (e.g. while restoring). Standby replicas may not have the latest spans yet.
+     * Requires standby replicas (i.e. {@code num.standby.replicas}).
+     */
+    public TraceStorageBuilder standbyReadsEnabled(boolean standbyReadsEnabled) {
+      this.standbyReadsEnabled = standbyReadsEnabled;
+      return this;
+    }
+
     /**
      * Kafka Bootstrap Servers list to establish connection with a Cluster.
      */
@@ -21,21 +21,29 @@ import com.linecorp.armeria.common.HttpStatus;
 import com.linecorp.armeria.common.MediaType;
 import com.linecorp.armeria.server.annotation.Default;
 import com.linecorp.armeria.server.annotation.Get;
+import com.linecorp.armeria.server.annotation.Header;
 import com.linecorp.armeria.server.annotation.Param;
 import com.linecorp.armeria.server.annotation.ProducesJson;
-import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.streams.StoreQueryParameters;
 import org.apache.kafka.streams.errors.InvalidStateStoreException;
 import org.apache.kafka.streams.kstream.Windowed;
 import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.QueryableStoreType;
 import org.apache.kafka.streams.state.QueryableStoreTypes;
 import org.apache.kafka.streams.state.ReadOnlyKeyValueStore;
 import org.apache.kafka.streams.state.ReadOnlyWindowStore;
@@ -49,12 +57,29 @@ import zipkin2.codec.DependencyLinkBytesEncoder;
 import zipkin2.codec.SpanBytesEncoder;
 import zipkin2.internal.DependencyLinker;
 import zipkin2.storage.QueryRequest;
+import zipkin2.storage.kafka.streams.serdes.NamesSerde;
+import zipkin2.storage.kafka.streams.serdes.TraceIdSerde;
 
 import static zipkin2.storage.kafka.streams.DependencyStorageTopology.DEPENDENCIES_STORE_NAME;
 import static zipkin2.storage.kafka.streams.TraceStorageTopology.AUTOCOMPLETE_TAGS_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.NAMES_LOOKBACK;
 import static zipkin2.storage.kafka.streams.TraceStorageTopology.REMOTE_SERVICE_NAMES_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.REMOTE_SERVICE_NAME_INDEX_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.SERVICE_NAMES_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.SERVICE_NAME_INDEX_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.SERVICE_PARTITIONS_STORE_NAME;
 import static zipkin2.storage.kafka.streams.TraceStorageTopology.SPAN_NAMES_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.SPAN_NAME_INDEX_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.TAG_INDEX_STORE_NAME;
 import static zipkin2.storage.kafka.streams.TraceStorageTopology.TRACES_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.indexKeyFrom;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.indexKeyTo;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.isIndexKey;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.isTraceKey;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.stringTraceKey;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.traceId;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.traceKeyFrom;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.traceKeyTo;
 
 /**
  * Server to enable access to local stores.
@@ -66,81 +91,114 @@ import static zipkin2.storage.kafka.streams.TraceStorageTopology.TRACES_STORE_NA
 final class KafkaStorageHttpService {
   static final Logger LOG = LoggerFactory.getLogger(KafkaStorageHttpService.class);
   static final ObjectMapper MAPPER = new ObjectMapper();
+  /**
+   * Traces encoded by {@link Proto3Spans#encodeTraces(List)}, answered instead of JSON to instances
+   * accepting it.
+   */
+  static final MediaType PROTO3_TRACES = MediaType.create("application", "x-zipkin-traces-proto3");
 
   final KafkaStorage storage;
   final long minTracesStored;
+  /** Partition of stores read, including stale stores, or {@code null} to read all active. */
+  final Integer partition;
 
   KafkaStorageHttpService(KafkaStorage storage) {
+    this(storage, null);
+  }
+
+  KafkaStorageHttpService(KafkaStorage storage, Integer partition) {
     this.storage = storage;
     this.minTracesStored = storage.minTracesStored;
+    this.partition = partition;
+  }
+
+  /**
+   * Reads stores of a partition, even if stale (e.g. standby replicas or restoring), or all active
+   * stores if {@code null}.
+   */
+  KafkaStorageHttpService partition(Integer partition) {
+    if (partition == null) return this;
+    return new KafkaStorageHttpService(storage, partition);
+  }
+
+  <T> T store(KafkaStreams streams, String storeName, QueryableStoreType<T> type) {
+    StoreQueryParameters<T> parameters = StoreQueryParameters.fromNameAndType(storeName, type);
+    if (partition != null) parameters = parameters.enableStaleStores().withPartition(partition);
+    return streams.store(parameters);
   }
 
   @Get("/dependencies")
   public AggregatedHttpResponse getDependencies(
     @Param("endTs") long endTs,
-    @Param("lookback") long lookback
+    @Param("lookback") long lookback,
+    @Param("partition") Optional<Integer> partition
   ) {
     try {
       if (!storage.dependencyQueryEnabled) return AggregatedHttpResponse.of(HttpStatus.NOT_FOUND);
-      ReadOnlyWindowStore<Long, DependencyLink> store =
-        storage.getDependencyStorageStream()
-          .store(StoreQueryParameters.fromNameAndType(DEPENDENCIES_STORE_NAME,
-            QueryableStoreTypes.windowStore()));
-      List<DependencyLink> links = new ArrayList<>();
-      Instant from = Instant.ofEpochMilli(endTs - lookback);
-      Instant to = Instant.ofEpochMilli(endTs);
-      try (KeyValueIterator<Windowed<Long>, DependencyLink> iterator = store.fetchAll(from, to)) {
-        iterator.forEachRemaining(keyValue -> links.add(keyValue.value));
-      }
-      List<DependencyLink> mergedLinks = DependencyLinker.merge(links);
-      LOG.debug("Dependencies found from={}-to={}: {}", from, to, mergedLinks.size());
       return AggregatedHttpResponse.of(
         HttpStatus.OK,
         MediaType.JSON,
-        DependencyLinkBytesEncoder.JSON_V1.encodeList(mergedLinks));
+        DependencyLinkBytesEncoder.JSON_V1.encodeList(
+          partition(partition.orElse(null)).dependencies(endTs, lookback)));
     } catch (InvalidStateStoreException e) {
       LOG.debug("State store is not ready", e);
       return AggregatedHttpResponse.of(HttpStatus.SERVICE_UNAVAILABLE);
     }
   }
 
+  /** Dependency links merged from local store. */
+  List<DependencyLink> dependencies(long endTs, long lookback) {
+    ReadOnlyWindowStore<Long, DependencyLink> store =
+      store(storage.getDependencyStorageStream(), DEPENDENCIES_STORE_NAME,
+        QueryableStoreTypes.windowStore());
+    List<DependencyLink> links = new ArrayList<>();
+    Instant from = Instant.ofEpochMilli(endTs - lookback);
+    Instant to = Instant.ofEpochMilli(endTs);
+    try (KeyValueIterator<Windowed<Long>, DependencyLink> iterator = store.fetchAll(from, to)) {
+      iterator.forEachRemaining(keyValue -> links.add(keyValue.value));
+    }
+    List<DependencyLink> mergedLinks = DependencyLinker.merge(links);
+    LOG.debug("Dependencies found from={}-to={}: {}", from, to, mergedLinks.size());
+    return mergedLinks;
+  }
+
   @Get("/serviceNames")
   @ProducesJson
-  public JsonNode getServiceNames() {
+  public JsonNode getServiceNames(@Param("partition") Optional<Integer> partition) {
     try {
       if (!storage.traceSearchEnabled) return MAPPER.createArrayNode();
-      ReadOnlyWindowStore<String, Set<String>> store = storage.getTraceStorageStream()
-        .store(StoreQueryParameters.fromNameAndType(SPAN_NAMES_STORE_NAME,
-          QueryableStoreTypes.windowStore()));
-      ArrayNode array = MAPPER.createArrayNode();
-      try (KeyValueIterator<Windowed<String>, Set<String>> all = store.backwardAll()) {
-        all.forEachRemaining(keyValue -> array.add(keyValue.key.key()));
-      }
-      return array;
+      return array(partition(partition.orElse(null)).serviceNames());
     } catch (InvalidStateStoreException e) {
       LOG.debug("State store is not ready", e);
       throw e;
     }
   }
 
+  /**
+   * Service names seen within names lookback from local store. Each service is stored once, on a
+   * single partition, so names are not repeated within or across instances.
+   */
+  List<String> serviceNames() {
+    ReadOnlyKeyValueStore<String, Long> store =
+      store(storage.getTraceStorageStream(), SERVICE_NAMES_STORE_NAME,
+        QueryableStoreTypes.keyValueStore());
+    long from = System.currentTimeMillis() - NAMES_LOOKBACK.toMillis();
+    List<String> serviceNames = new ArrayList<>();
+    try (KeyValueIterator<String, Long> all = store.all()) {
+      all.forEachRemaining(keyValue -> {
+        if (keyValue.value >= from) serviceNames.add(keyValue.key);
+      });
+    }
+    return serviceNames;
+  }
+
   @Get("/serviceNames/:service_name/spanNames")
   @ProducesJson
-  public JsonNode getSpanNames(@Param("service_name") String serviceName) {
+  public JsonNode getSpanNames(@Param("service_name") String serviceName,
+    @Param("partition") Optional<Integer> partition) {
     try {
       if (!storage.traceSearchEnabled) return MAPPER.createArrayNode();
-      ReadOnlyWindowStore<String, Set<String>> store = storage.getTraceStorageStream()
-        .store(StoreQueryParameters.fromNameAndType(SPAN_NAMES_STORE_NAME,
-          QueryableStoreTypes.windowStore()));
-      Instant to = Instant.now();
-      Instant from = to.minus(Duration.ofDays(7));
-      ArrayNode array = MAPPER.createArrayNode();
-      try (WindowStoreIterator<Set<String>> all = store.backwardFetch(serviceName, from, to)) {
-        if (all.hasNext()) {
-          Set<String> names = all.next().value;
-          if (names != null) names.forEach(array::add);
-        }
-      }
-      return array;
+      return array(partition(partition.orElse(null)).names(SPAN_NAMES_STORE_NAME, serviceName));
     } catch (InvalidStateStoreException e) {
       LOG.debug("State store is not ready", e);
       throw e;
@@ -149,21 +207,43 @@ final class KafkaStorageHttpService {
 
   @Get("/serviceNames/:service_name/remoteServiceNames")
   @ProducesJson
-  public JsonNode getRemoteServiceNames(@Param("service_name") String serviceName) {
+  public JsonNode getRemoteServiceNames(@Param("service_name") String serviceName,
+    @Param("partition") Optional<Integer> partition) {
     try {
       if (!storage.traceSearchEnabled) return MAPPER.createArrayNode();
-      ReadOnlyWindowStore<String, Set<String>> store = storage.getTraceStorageStream()
-        .store(StoreQueryParameters.fromNameAndType(REMOTE_SERVICE_NAMES_STORE_NAME,
-          QueryableStoreTypes.windowStore()));
-      Instant to = Instant.now();
-      Instant from = to.minus(Duration.ofDays(7));
-      ArrayNode array = MAPPER.createArrayNode();
-      try (WindowStoreIterator<Set<String>> all = store.backwardFetch(serviceName, from, to)) {
-        if (all.hasNext()) {
-          Set<String> names = all.next().value;
-          if (names != null) names.forEach(array::add);
-        }
+      return array(partition(partition.orElse(null))
+        .names(REMOTE_SERVICE_NAMES_STORE_NAME, serviceName));
+    } catch (InvalidStateStoreException e) {
+      LOG.debug("State store is not ready", e);
+      throw e;
+    }
+  }
+
+  /** Latest names stored by key (e.g. span names by service name) on local store. */
+  List<String> names(String storeName, String key) {
+    ReadOnlyWindowStore<String, byte[]> store =
+      store(storage.getTraceStorageStream(), storeName,
+        QueryableStoreTypes.windowStore());
+    Instant to = Instant.now();
+    Instant from = to.minus(NAMES_LOOKBACK);
+    try (WindowStoreIterator<byte[]> all = store.backwardFetch(key, from, to)) {
+      if (all.hasNext()) {
+        byte[] names = all.next().value;
+        if (names != null) return new ArrayList<>(NamesSerde.decode(names));
       }
+    }
+    return new ArrayList<>();
+  }
+
+  @Get("/serviceNames/:service_name/partitions")
+  @ProducesJson
+  public JsonNode getServicePartitions(@Param("service_name") String serviceName,
+    @Param("startTs") long startTs,
+    @Param("partition") Optional<Integer> partition) {
+    try {
+      ArrayNode array = MAPPER.createArrayNode();
+      if (!storage.traceSearchEnabled) return array;
+      partition(partition.orElse(null)).servicePartitions(serviceName, startTs).forEach(array::add);
       return array;
     } catch (InvalidStateStoreException e) {
       LOG.debug("State store is not ready", e);
@@ -171,24 +251,30 @@ final class KafkaStorageHttpService {
     }
   }
 
+  /**
+   * Partitions of trace stores where a service had spans since {@code startTs}, from local store.
+   * Empty if the service is unknown.
+   */
+  List<Integer> servicePartitions(String serviceName, long startTs) {
+    ReadOnlyKeyValueStore<String, Map<Integer, Long>> store =
+      store(storage.getTraceStorageStream(), SERVICE_PARTITIONS_STORE_NAME,
+        QueryableStoreTypes.keyValueStore());
+    Map<Integer, Long> timestamps = store.get(serviceName);
+    List<Integer> partitions = new ArrayList<>();
+    if (timestamps == null) return partitions;
+    timestamps.forEach((partition, until) -> {
+      if (until >= startTs) partitions.add(partition);
+    });
+    return partitions;
+  }
+
   @Get("/autocompleteTags/:key")
   @ProducesJson
-  public JsonNode getAutocompleteValues(@Param("key") String key) {
+  public JsonNode getAutocompleteValues(@Param("key") String key,
+    @Param("partition") Optional<Integer> partition) {
     try {
       if (!storage.traceSearchEnabled) return MAPPER.createArrayNode();
-      ReadOnlyWindowStore<String, Set<String>> store = storage.getTraceStorageStream()
-        .store(StoreQueryParameters.fromNameAndType(AUTOCOMPLETE_TAGS_STORE_NAME,
-          QueryableStoreTypes.windowStore()));
-      Instant to = Instant.now();
-      Instant from = to.minus(Duration.ofDays(7));
-      ArrayNode array = MAPPER.createArrayNode();
-      try (WindowStoreIterator<Set<String>> all = store.backwardFetch(key, from, to)) {
-        if (all.hasNext()) {
-          Set<String> names = all.next().value;
-          if (names != null) names.forEach(array::add);
-        }
-      }
-      return array;
+      return array(partition(partition.orElse(null)).names(AUTOCOMPLETE_TAGS_STORE_NAME, key));
     } catch (InvalidStateStoreException e) {
       LOG.debug("State store is not ready", e);
       throw e;
@@ -205,7 +291,9 @@ final class KafkaStorageHttpService {
     @Param("maxDuration") Optional<Long> maxDuration,
     @Param("endTs") Optional<Long> endTs,
     @Default("86400000") @Param("lookback") Long lookback,
-    @Default("10") @Param("limit") int limit
+    @Default("10") @Param("limit") int limit,
+    @Param("partition") Optional<Integer> partition,
+    @Header("accept") Optional<String> accept
   ) {
     try {
       if (!storage.traceSearchEnabled) return AggregatedHttpResponse.of(HttpStatus.NOT_FOUND);
@@ -221,48 +309,146 @@ final class KafkaStorageHttpService {
           .lookback(lookback)
           .limit(limit)
           .build();
-      ReadOnlyWindowStore<String, List<Span>> tracesStore =
-        storage.getTraceStorageStream().store(
-          StoreQueryParameters.fromNameAndType(TRACES_STORE_NAME,
-            QueryableStoreTypes.windowStore()));
-      List<List<Span>> traces = new ArrayList<>();
-      Instant from = Instant.ofEpochMilli(request.endTs() - request.lookback());
-      Instant to = Instant.ofEpochMilli(request.endTs());
-      try (
-        KeyValueIterator<Windowed<String>, List<Span>> iterator = tracesStore.backwardFetchAll(from,
-          to)) {
+      return tracesResponse(accept, partition(partition.orElse(null)).traces(request));
+    } catch (InvalidStateStoreException e) {
+      LOG.debug("State store is not ready", e);
+      return AggregatedHttpResponse.of(HttpStatus.SERVICE_UNAVAILABLE);
+    }
+  }
+
+  /** Traces matching query request from local store, newest first. */
+  List<List<Span>> traces(QueryRequest request) {
+    ReadOnlyWindowStore<String, List<Span>> tracesStore =
+      store(storage.getTraceStorageStream(), TRACES_STORE_NAME,
+        QueryableStoreTypes.windowStore());
+    List<List<Span>> traces = new ArrayList<>();
+    Instant from = Instant.ofEpochMilli(request.endTs() - request.lookback());
+    Instant to = Instant.ofEpochMilli(request.endTs());
+    Map<String, Long> candidates = candidateTraceIds(request, from, to);
+    if (candidates != null) {
+      // Only load traces matching all indexed terms, newest first
+      List<Map.Entry<String, Long>> sorted = new ArrayList<>(candidates.entrySet());
+      sorted.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+      for (Map.Entry<String, Long> candidate : sorted) {
+        List<Span> spans = trace(tracesStore, candidate.getKey(), Instant.EPOCH, to,
+          storage.traceIdsMigrationEnabled);
+        // apply filters
+        if (!spans.isEmpty() && request.test(spans)) traces.add(spans);
+        if (traces.size() == request.limit()) break;
+      }
+    } else {
+      // Span batches are scanned newest first, and traces assembled once per trace ID
+      Set<String> scanned = new HashSet<>();
+      try (KeyValueIterator<Windowed<String>, List<Span>> iterator =
+             tracesStore.backwardFetchAll(from, to)) {
         while (iterator.hasNext()) {
-          List<Span> spans = iterator.next().value;
+          String traceId = traceId(iterator.next().key.key());
+          if (!scanned.add(traceId)) continue;
+          List<Span> spans = trace(tracesStore, traceId, Instant.EPOCH, to,
+            storage.traceIdsMigrationEnabled);
           // apply filters
-          if (request.test(spans)) traces.add(spans);
+          if (!spans.isEmpty() && request.test(spans)) traces.add(spans);
           if (traces.size() == request.limit()) break;
         }
       }
-      traces.sort(Comparator.<List<Span>>comparingLong(o -> o.get(0).timestampAsLong()).reversed());
-      LOG.debug("Traces found from query {}: {}", request, traces.size());
-      List<List<Span>> result = traces.stream().limit(request.limit()).collect(Collectors.toList());
-      return AggregatedHttpResponse.of(HttpStatus.OK, MediaType.JSON,
-        writeTraces(result));
-    } catch (InvalidStateStoreException e) {
-      LOG.debug("State store is not ready", e);
-      return AggregatedHttpResponse.of(HttpStatus.SERVICE_UNAVAILABLE);
+    }
+    traces.sort(TopTraces.OLDEST_FIRST.reversed());
+    LOG.debug("Traces found from query {}: {}", request, traces.size());
+    return traces.stream().limit(request.limit()).collect(Collectors.toList());
+  }
+
+  /**
+   * Intersects trace IDs indexed by each term on the query request.
+   *
+   * @return trace IDs with latest indexed timestamp, or {@code null} if query request has no
+   * indexed terms and a full scan is required.
+   */
+  Map<String, Long> candidateTraceIds(QueryRequest request, Instant from, Instant to) {
+    List<Map<String, Long>> postings = new ArrayList<>();
+    if (request.serviceName() != null) {
+      postings.add(postings(SERVICE_NAME_INDEX_STORE_NAME, request.serviceName(), from, to));
+    }
+    if (request.remoteServiceName() != null) {
+      postings.add(postings(REMOTE_SERVICE_NAME_INDEX_STORE_NAME, request.remoteServiceName(),
+        from, to));
+    }
+    if (request.spanName() != null) {
+      postings.add(postings(SPAN_NAME_INDEX_STORE_NAME, request.spanName(), from, to));
+    }
+    for (Map.Entry<String, String> entry : request.annotationQuery().entrySet()) {
+      String term = entry.getValue().isEmpty()
+        ? entry.getKey()
+        : entry.getKey() + "=" + entry.getValue();
+      postings.add(postings(TAG_INDEX_STORE_NAME, term, from, to));
+    }
+    if (postings.isEmpty()) return null;
+    // Start from the smallest postings list to keep intersection cheap
+    postings.sort(Comparator.comparingInt(Map::size));
+    Map<String, Long> result = postings.get(0);
+    for (int i = 1; i < postings.size() && !result.isEmpty(); i++) {
+      result.keySet().retainAll(postings.get(i).keySet());
+    }
+    return result;
+  }
+
+  Map<String, Long> postings(String indexStoreName, String term, Instant from, Instant to) {
+    ReadOnlyWindowStore<String, String> store =
+      store(storage.getTraceStorageStream(), indexStoreName,
+        QueryableStoreTypes.windowStore());
+    Map<String, Long> traceIds = new LinkedHashMap<>();
+    try (KeyValueIterator<Windowed<String>, String> iterator =
+           store.fetch(indexKeyFrom(term), indexKeyTo(term), from, to)) {
+      while (iterator.hasNext()) {
+        KeyValue<Windowed<String>, String> next = iterator.next();
+        if (!isIndexKey(term, next.key.key(), next.value)) continue;
+        traceIds.merge(next.value, next.key.window().start(), Math::max);
+      }
+    }
+    return traceIds;
+  }
+
+  /**
+   * Assembles a trace from all span batches stored. When migrating to binary trace IDs, batches
+   * keyed by string trace ID are collected as well.
+   */
+  static List<Span> trace(ReadOnlyWindowStore<String, List<Span>> store, String traceId,
+    Instant from, Instant to, boolean traceIdsMigration) {
+    List<Span> spans = new ArrayList<>();
+    collectTrace(store, traceId, traceKeyFrom(traceId), traceKeyTo(traceId), traceId, from, to,
+      spans);
+    // Trace IDs without binary form are keyed the same either way, so were already collected
+    if (traceIdsMigration && TraceIdSerde.isBinary(traceId)) {
+      collectTrace(store, traceId, stringTraceKey(traceKeyFrom(traceId)),
+        stringTraceKey(traceKeyTo(traceId)), stringTraceKey(traceId), from, to, spans);
+    }
+    return spans;
+  }
+
+  static void collectTrace(ReadOnlyWindowStore<String, List<Span>> store, String traceId,
+    String keyFrom, String keyTo, String legacyKey, Instant from, Instant to, List<Span> spans) {
+    try (KeyValueIterator<Windowed<String>, List<Span>> batches =
+           store.fetch(keyFrom, keyTo, from, to)) {
+      while (batches.hasNext()) {
+        KeyValue<Windowed<String>, List<Span>> next = batches.next();
+        if (isTraceKey(traceId, next.key.key())) spans.addAll(next.value);
+      }
+    }
+    // Traces stored before span batches were keyed by sequence
+    try (WindowStoreIterator<List<Span>> legacy = store.backwardFetch(legacyKey, from, to)) {
+      if (legacy.hasNext()) spans.addAll(legacy.next().value);
     }
   }
 
   @Get("/traces/:trace_id")
-  public AggregatedHttpResponse getTrace(@Param("trace_id") String traceId) {
+  public AggregatedHttpResponse getTrace(@Param("trace_id") String traceId,
+    @Param("partition") Optional<Integer> partition,
+    @Header("accept") Optional<String> accept) {
     try {
       if (!storage.traceByIdQueryEnabled) return AggregatedHttpResponse.of(HttpStatus.NOT_FOUND);
-      ReadOnlyWindowStore<String, List<Span>> store = storage.getTraceStorageStream()
-        .store(StoreQueryParameters.fromNameAndType(TRACES_STORE_NAME,
-          QueryableStoreTypes.windowStore()));
-      Instant to = Instant.now();
-      Instant from = to.minus(Duration.ofDays(1));
-      List<Span> spans = new ArrayList<>();
-      try (WindowStoreIterator<List<Span>> all = store.backwardFetch(traceId, from, to)) {
-        if (all.hasNext()) {
-          spans = all.next().value;
-        }
+      List<Span> spans = partition(partition.orElse(null)).trace(traceId);
+      if (acceptsProto3Traces(accept)) {
+        return tracesResponse(accept,
+          spans.isEmpty() ? Collections.emptyList() : Collections.singletonList(spans));
       }
       return AggregatedHttpResponse.of(
         HttpStatus.OK,
@@ -275,48 +461,65 @@ final class KafkaStorageHttpService {
   }
 
   @Get("/traceMany")
-  public AggregatedHttpResponse getTraces(@Param("traceIds") String traceIds) {
+  public AggregatedHttpResponse getTraces(@Param("traceIds") String traceIds,
+    @Param("partition") Optional<Integer> partition,
+    @Header("accept") Optional<String> accept) {
     try {
       if (!storage.traceByIdQueryEnabled) return AggregatedHttpResponse.of(HttpStatus.NOT_FOUND);
-      ReadOnlyWindowStore<String, List<Span>> store = storage.getTraceStorageStream()
-        .store(StoreQueryParameters.fromNameAndType(TRACES_STORE_NAME,
-          QueryableStoreTypes.windowStore()));
-      Instant to = Instant.now();
-      Instant from = to.minus(Duration.ofDays(1));
-      List<List<Span>> result = new ArrayList<>();
-      for (String traceId : traceIds.split(",", 1000)) {
-        try (WindowStoreIterator<List<Span>> all = store.backwardFetch(traceId, from, to)) {
-          if (all.hasNext()) {
-            result.add(all.next().value);
-          }
-        }
-      }
-      return AggregatedHttpResponse.of(HttpStatus.OK, MediaType.JSON, writeTraces(result));
+      return tracesResponse(accept, partition(partition.orElse(null))
+        .traces(Arrays.asList(traceIds.split(",", 1000))));
     } catch (InvalidStateStoreException e) {
       LOG.debug("State store is not ready", e);
       return AggregatedHttpResponse.of(HttpStatus.SERVICE_UNAVAILABLE);
     }
   }
 
+  /** Trace from local store, or an empty list if not found. */
+  List<Span> trace(String traceId) {
+    return traces(Collections.singletonList(traceId)).stream().findFirst()
+      .orElse(Collections.emptyList());
+  }
+
+  /** Traces found on local store, skipping trace IDs not found. */
+  List<List<Span>> traces(Collection<String> traceIds) {
+    ReadOnlyWindowStore<String, List<Span>> store =
+      store(storage.getTraceStorageStream(), TRACES_STORE_NAME,
+        QueryableStoreTypes.windowStore());
+    Instant to = Instant.now();
+    // Traces older than TTL could be kept to fulfill minimum traces stored
+    Instant from = Instant.EPOCH;
+    List<List<Span>> result = new ArrayList<>();
+    for (String traceId : traceIds) {
+      List<Span> spans = trace(store, traceId, from, to, storage.traceIdsMigrationEnabled);
+      if (!spans.isEmpty()) result.add(spans);
+    }
+    return result;
+  }
+
   @Get("/autocompleteTags")
   @ProducesJson
-  public JsonNode getAutocompleteTags() {
+  public JsonNode getAutocompleteTags(@Param("partition") Optional<Integer> partition) {
     try {
       if (!storage.traceSearchEnabled) return MAPPER.createArrayNode();
-      ReadOnlyKeyValueStore<String, Set<String>> autocompleteTagsStore =
-        storage.getTraceStorageStream().store(AUTOCOMPLETE_TAGS_STORE_NAME,
-          QueryableStoreTypes.keyValueStore());
-      ArrayNode array = MAPPER.createArrayNode();
-      try (KeyValueIterator<String, Set<String>> all = autocompleteTagsStore.all()) {
-        all.forEachRemaining(keyValue -> array.add(keyValue.key));
-      }
-      return array;
+      return array(partition(partition.orElse(null)).autocompleteKeys());
     } catch (InvalidStateStoreException e) {
       LOG.debug("State store is not ready", e);
       throw e;
     }
   }
 
+  /** Autocomplete keys from local store. */
+  List<String> autocompleteKeys() {
+    ReadOnlyKeyValueStore<String, byte[]> autocompleteTagsStore =
+      store(storage.getTraceStorageStream(), AUTOCOMPLETE_TAGS_STORE_NAME,
+        QueryableStoreTypes.keyValueStore());
+    List<String> keys = new ArrayList<>();
+    try (KeyValueIterator<String, byte[]> all = autocompleteTagsStore.all()) {
+      all.forEachRemaining(keyValue -> keys.add(keyValue.key));
+    }
+    return keys;
+  }
+
   @Get("/instances/:store_name")
   @ProducesJson
   public KafkaStreamsMetadata getInstancesByStore(@Param("store_name") String storeName) {
@@ -334,6 +537,38 @@ final class KafkaStorageHttpService {
     return KafkaStreamsMetadata.create(metadata);
   }
 
+  static ArrayNode array(List<String> values) {
+    ArrayNode array = MAPPER.createArrayNode();
+    values.forEach(array::add);
+    return array;
+  }
+
+  static AggregatedHttpResponse tracesResponse(Optional<String> accept, List<List<Span>> traces) {
+    if (acceptsProto3Traces(accept)) {
+      return AggregatedHttpResponse.of(HttpStatus.OK, PROTO3_TRACES,
+        Proto3Spans.encodeTraces(traces));
+    }
+    return AggregatedHttpResponse.of(HttpStatus.OK, MediaType.JSON, writeTraces(traces));
+  }
+
+  /** Only instances ask for {@link #PROTO3_TRACES}, so wildcards (e.g. browsers) get JSON. */
+  static boolean acceptsProto3Traces(Optional<String> accept) {
+    if (!accept.isPresent()) return false;
+    String header = accept.get();
+    for (int start = 0, end; start < header.length(); start = end + 1) {
+      end = header.indexOf(',', start);
+      if (end < 0) end = header.length();
+      String value = header.substring(start, end).trim();
+      if (value.isEmpty()) continue;
+      try {
+        if (MediaType.parse(value).is(PROTO3_TRACES)) return true;
+      } catch (IllegalArgumentException e) {
+        // ignore malformed values
+      }
+    }
+    return false;
+  }
+
   //Copy-paste from ZipkinQueryApiV2
   static byte[] writeTraces(List<List<Span>> traces) {
     // Get the encoded size of the nested list so that we don't need to grow the buffer
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+
+/**
+ * Producers sending to the spans topic, each record sent by the producer of its partition, so
+ * collector threads don't contend on a single producer sender thread and buffer. Records of a
+ * partition (i.e. of a trace ID) are always sent by the same producer, keeping their order.
+ *
+ * <p>Throughput and queueing of each producer are gauged from its client metrics, prefixed by
+ * {@value #METRIC_PREFIX} and tagged by {@code producer}, as its index: e.g. {@code
+ * record-send-rate} as {@code zipkin.storage.kafka.partitioning.producer.record.send.rate}.
+ */
+final class ProducerStripes {
+  static final String METRIC_PREFIX = "zipkin.storage.kafka.partitioning.producer";
+  static final String PRODUCER_TAG = "producer";
+  static final String PRODUCER_METRICS_GROUP = "producer-metrics";
+  static final List<String> PRODUCER_METRICS = Arrays.asList(
+    // throughput
+    "record-send-rate", "outgoing-byte-rate", "request-rate",
+    // queueing
+    "record-queue-time-avg", "buffer-available-bytes", "waiting-threads", "requests-in-flight");
+
+  final List<Producer<String, byte[]>> producers;
+  final MeterRegistry registry;
+  final List<Meter> meters = new ArrayList<>();
+
+  ProducerStripes(List<Producer<String, byte[]>> producers, MeterRegistry registry) {
+    if (producers.isEmpty()) throw new IllegalArgumentException("producers are empty");
+    this.producers = producers;
+    this.registry = registry;
+    for (int i = 0; i < producers.size(); i++) {
+      Producer<String, byte[]> producer = producers.get(i);
+      for (String metric : PRODUCER_METRICS) {
+        meters.add(Gauge.builder(METRIC_PREFIX + "." + metric.replace('-', '.'), producer,
+          p -> metricValue(p, metric))
+          .tag(PRODUCER_TAG, String.valueOf(i))
+          .register(registry));
+      }
+    }
+  }
+
+  int size() {
+    return producers.size();
+  }
+
+  /** Records without partition (i.e. when not striped) are sent by the first producer. */
+  Producer<String, byte[]> producer(ProducerRecord<String, byte[]> record) {
+    if (record.partition() == null) return producers.get(0);
+    return producers.get(record.partition() % producers.size());
+  }
+
+  /** Partitions of a topic, as known by producers metadata. */
+  int partitions(String topic) {
+    return producers.get(0).partitionsFor(topic).size();
+  }
+
+  void flush() {
+    producers.forEach(Producer::flush);
+  }
+
+  void close(Duration timeout) {
+    meters.forEach(registry::remove);
+    producers.forEach(producer -> producer.close(timeout));
+  }
+
+  static double metricValue(Producer<?, ?> producer, String name) {
+    for (Map.Entry<MetricName, ? extends Metric> metric : producer.metrics().entrySet()) {
+      if (metric.getKey().name().equals(name)
+        && metric.getKey().group().equals(PRODUCER_METRICS_GROUP)) {
+        Object value = metric.getValue().metricValue();
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+      }
+    }
+    return Double.NaN;
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka;
+
+import zipkin2.Call;
+
+/**
+ * Span consumer accepting spans as received by collectors, encoded as PROTO3 {@code ListOfSpans}.
+ *
+ * <p>Spans are partitioned by trace ID reading only the trace ID of each span, and copying the
+ * encoded spans of each trace as they are, instead of decoding and encoding them again.
+ */
+public interface Proto3SpanConsumer {
+  /**
+   * Returns a call sending the spans to the spans topic.
+   *
+   * @param spans PROTO3 encoded {@code ListOfSpans}
+   * @throws IllegalArgumentException if spans are not a valid PROTO3 {@code ListOfSpans}
+   */
+  Call<Void> accept(byte[] spans);
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.kafka.streams.serdes.Varints;
+
+/**
+ * Splits a PROTO3 {@code ListOfSpans} into a {@code ListOfSpans} per trace ID, reading only the
+ * trace ID field of each span.
+ *
+ * <p>Each span of a {@code ListOfSpans} is a length-delimited field 1, and trace ID is the
+ * length-delimited field 1 of a span, so each span entry (i.e. tag, length and span bytes) is
+ * copied as is into the list of its trace.
+ *
+ * <p>Lists of traces, as exchanged between instances, are encoded the same way: each trace is a
+ * {@code ListOfSpans} on a length-delimited field 1, so traces are decoded from the buffer received
+ * without copying.
+ */
+final class Proto3Spans {
+  static final int WIRETYPE_VARINT = 0;
+  static final int WIRETYPE_FIXED64 = 1;
+  static final int WIRETYPE_LENGTH_DELIMITED = 2;
+  static final int WIRETYPE_FIXED32 = 5;
+  static final int SPAN_KEY = (1 << 3) | WIRETYPE_LENGTH_DELIMITED;
+  static final int TRACE_ID_KEY = (1 << 3) | WIRETYPE_LENGTH_DELIMITED;
+  static final int SPAN_ID_KEY = (3 << 3) | WIRETYPE_LENGTH_DELIMITED;
+  static final int SHARED_KEY = (13 << 3) | WIRETYPE_VARINT;
+  static final int TRACE_KEY = (1 << 3) | WIRETYPE_LENGTH_DELIMITED;
+  static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  /** @return encoded spans by trace ID, in the order trace IDs are first found. */
+  static Map<String, byte[]> groupByTraceId(byte[] bytes) {
+    return groupByTraceId(bytes, null);
+  }
+
+  /**
+   * @param received if not null, spans already received are left out, reading their span ID and
+   * shared flag as well.
+   * @return encoded spans by trace ID, in the order trace IDs are first found.
+   */
+  static Map<String, byte[]> groupByTraceId(byte[] bytes, SpanDeduplicator.Batch received) {
+    // Offsets and lengths of span entries by trace ID, to copy each trace at once
+    Map<String, List<int[]>> entries = new LinkedHashMap<>();
+    Map<String, Integer> sizes = new LinkedHashMap<>();
+    int[] pos = {0};
+    while (pos[0] < bytes.length) {
+      int entryPos = pos[0];
+      int key = Varints.readInt(bytes, pos);
+      if (key != SPAN_KEY) {
+        skip(bytes, pos, key);
+        continue;
+      }
+      int length = Varints.readInt(bytes, pos);
+      int spanPos = pos[0];
+      pos[0] += length;
+      if (pos[0] > bytes.length) throw new IllegalArgumentException("Truncated span");
+      String traceId = traceId(bytes, spanPos, spanPos + length);
+      if (received != null && !add(received, traceId, bytes, spanPos, spanPos + length)) {
+        continue;
+      }
+      int entryLength = pos[0] - entryPos;
+      entries.computeIfAbsent(traceId, k -> new ArrayList<>())
+        .add(new int[] {entryPos, entryLength});
+      sizes.merge(traceId, entryLength, Integer::sum);
+    }
+    Map<String, byte[]> result = new LinkedHashMap<>();
+    for (Map.Entry<String, List<int[]>> trace : entries.entrySet()) {
+      byte[] spans = new byte[sizes.get(trace.getKey())];
+      int spansPos = 0;
+      for (int[] entry : trace.getValue()) {
+        System.arraycopy(bytes, entry[0], spans, spansPos, entry[1]);
+        spansPos += entry[1];
+      }
+      result.put(trace.getKey(), spans);
+    }
+    return result;
+  }
+
+  static byte[] encodeTraces(List<List<Span>> traces) {
+    List<byte[]> encoded = new ArrayList<>(traces.size());
+    int size = 0;
+    for (List<Span> trace : traces) {
+      byte[] spans = SpanBytesEncoder.PROTO3.encodeList(trace);
+      encoded.add(spans);
+      size += 1 + Varints.sizeOf(spans.length) + spans.length;
+    }
+    byte[] result = new byte[size];
+    int pos = 0;
+    for (byte[] spans : encoded) {
+      result[pos++] = TRACE_KEY;
+      pos = Varints.write(result, pos, spans.length);
+      System.arraycopy(spans, 0, result, pos, spans.length);
+      pos += spans.length;
+    }
+    return result;
+  }
+
+  static List<List<Span>> decodeTraces(byte[] bytes) {
+    List<List<Span>> traces = new ArrayList<>();
+    int[] pos = {0};
+    while (pos[0] < bytes.length) {
+      int key = Varints.readInt(bytes, pos);
+      if (key != TRACE_KEY) {
+        skip(bytes, pos, key);
+        continue;
+      }
+      int length = Varints.readInt(bytes, pos);
+      if (pos[0] + length > bytes.length) throw new IllegalArgumentException("Truncated trace");
+      traces.add(SpanBytesDecoder.PROTO3.decodeList(ByteBuffer.wrap(bytes, pos[0], length)));
+      pos[0] += length;
+    }
+    return traces;
+  }
+
+  /**
+   * Reads the trace ID of a span as lower-hex. 128-bit trace IDs with zero high bits are
+   * shortened to 64-bit, as done when decoding spans.
+   */
+  static String traceId(byte[] bytes, int spanPos, int spanEnd) {
+    int[] pos = {spanPos};
+    while (pos[0] < spanEnd) {
+      int key = Varints.readInt(bytes, pos);
+      if (key != TRACE_ID_KEY) {
+        skip(bytes, pos, key);
+        continue;
+      }
+      int length = Varints.readInt(bytes, pos);
+      if ((length != 8 && length != 16) || pos[0] + length > spanEnd) {
+        throw new IllegalArgumentException("Malformed trace ID");
+      }
+      int start = pos[0];
+      if (length == 16 && isZero(bytes, start, 8)) start += 8;
+      return hex(bytes, start, pos[0] + length);
+    }
+    throw new IllegalArgumentException("Span missing trace ID");
+  }
+
+  /** Reads the span ID, as lower-hex, and shared flag of a span to look it up. */
+  static boolean add(SpanDeduplicator.Batch received, String traceId, byte[] bytes, int spanPos,
+    int spanEnd) {
+    String spanId = null;
+    boolean shared = false;
+    int[] pos = {spanPos};
+    while (pos[0] < spanEnd) {
+      int key = Varints.readInt(bytes, pos);
+      if (key == SPAN_ID_KEY) {
+        int length = Varints.readInt(bytes, pos);
+        if (length != 8 || pos[0] + length > spanEnd) {
+          throw new IllegalArgumentException("Malformed span ID");
+        }
+        spanId = hex(bytes, pos[0], pos[0] + length);
+        pos[0] += length;
+      } else if (key == SHARED_KEY) {
+        shared = Varints.read(bytes, pos) != 0;
+      } else {
+        skip(bytes, pos, key);
+      }
+    }
+    if (spanId == null) throw new IllegalArgumentException("Span missing ID");
+    return received.add(traceId, spanId, shared);
+  }
+
+  static String hex(byte[] bytes, int start, int end) {
+    char[] hex = new char[(end - start) * 2];
+    for (int i = start, j = 0; i < end; i++) {
+      hex[j++] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+      hex[j++] = HEX_DIGITS[bytes[i] & 0xf];
+    }
+    return new String(hex);
+  }
+
+  static boolean isZero(byte[] bytes, int pos, int length) {
+    for (int i = pos; i < pos + length; i++) {
+      if (bytes[i] != 0) return false;
+    }
+    return true;
+  }
+
+  static void skip(byte[] bytes, int[] pos, int key) {
+    switch (key & 0x7) {
+      case WIRETYPE_VARINT:
+        Varints.read(bytes, pos);
+        break;
+      case WIRETYPE_FIXED64:
+        pos[0] += 8;
+        break;
+      case WIRETYPE_LENGTH_DELIMITED:
+        int length = Varints.readInt(bytes, pos);
+        pos[0] += length;
+        break;
+      case WIRETYPE_FIXED32:
+        pos[0] += 4;
+        break;
+      default:
+        throw new IllegalArgumentException("Malformed: invalid wire type " + (key & 0x7));
+    }
+    if (pos[0] > bytes.length) throw new IllegalArgumentException("Truncated field");
+  }
+}
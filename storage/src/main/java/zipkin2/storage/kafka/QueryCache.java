@@ -0,0 +1,165 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+import zipkin2.Call;
+import zipkin2.Callback;
+
+/**
+ * Results of name queries (e.g. service names) kept for a while, as they change over minutes. At
+ * most {@code maxSize} results are kept, the least recently used evicted first.
+ *
+ * <p>Queries are coalesced: a query already running is not called again, but its result is
+ * shared. Failed and empty results are not kept (e.g. stores restoring), so they are queried again.
+ *
+ * <p>Hits, including queries already running, and misses are counted by {@code
+ * zipkin.storage.kafka.query.cache.hits} and {@code zipkin.storage.kafka.query.cache.misses},
+ * tagged by {@code query}. Counters are removed when closed.
+ */
+final class QueryCache {
+  static final String METRIC_PREFIX = "zipkin.storage.kafka.query.cache";
+
+  final long ttlNanos;
+  final MeterRegistry registry;
+  final LongSupplier nanoTime;
+  final Map<String, Entry> entries;
+  final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+  QueryCache(Duration ttl, int maxSize, MeterRegistry registry) {
+    this(ttl, maxSize, registry, System::nanoTime);
+  }
+
+  QueryCache(Duration ttl, int maxSize, MeterRegistry registry, LongSupplier nanoTime) {
+    this.ttlNanos = ttl.toNanos();
+    this.registry = registry;
+    this.nanoTime = nanoTime;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Call answering the cached result of {@code query} with {@code key}, if any, or the result of
+   * {@code delegate} otherwise. Returns {@code delegate} if caching is disabled (i.e. zero TTL).
+   */
+  <V> Call<List<V>> call(String query, String key, Call<List<V>> delegate) {
+    if (ttlNanos == 0L) return delegate;
+    return new CachedCall<>(this, query, key, delegate);
+  }
+
+  @SuppressWarnings("unchecked")
+  <V> CompletableFuture<List<V>> get(String query, String key, Call<List<V>> delegate) {
+    String cacheKey = query + '/' + key;
+    Entry entry;
+    boolean hit;
+    synchronized (entries) {
+      long now = nanoTime.getAsLong();
+      entry = entries.get(cacheKey);
+      hit = entry != null && now - entry.createdNanos < ttlNanos;
+      if (!hit) {
+        entry = new Entry(now);
+        entries.put(cacheKey, entry);
+      }
+    }
+    String counter = METRIC_PREFIX + (hit ? ".hits" : ".misses");
+    counters.computeIfAbsent(counter + '/' + query,
+      k -> registry.counter(counter, "query", query)).increment();
+    if (!hit) load(cacheKey, entry, delegate.clone());
+    return (CompletableFuture<List<V>>) (CompletableFuture<?>) entry.result;
+  }
+
+  void close() {
+    counters.values().forEach(registry::remove);
+    counters.clear();
+  }
+
+  <V> void load(String cacheKey, Entry entry, Call<List<V>> call) {
+    call.enqueue(new Callback<List<V>>() {
+      @Override public void onSuccess(List<V> values) {
+        if (values.isEmpty()) evict(cacheKey, entry);
+        entry.result.complete(values);
+      }
+
+      @Override public void onError(Throwable t) {
+        evict(cacheKey, entry);
+        entry.result.completeExceptionally(t);
+      }
+    });
+  }
+
+  void evict(String cacheKey, Entry entry) {
+    synchronized (entries) {
+      entries.remove(cacheKey, entry);
+    }
+  }
+
+  static final class Entry {
+    final CompletableFuture<List<?>> result = new CompletableFuture<>();
+    final long createdNanos;
+
+    Entry(long createdNanos) {
+      this.createdNanos = createdNanos;
+    }
+  }
+
+  static final class CachedCall<V> extends Call.Base<List<V>> {
+    final QueryCache cache;
+    final String query, key;
+    final Call<List<V>> delegate;
+
+    CachedCall(QueryCache cache, String query, String key, Call<List<V>> delegate) {
+      this.cache = cache;
+      this.query = query;
+      this.key = key;
+      this.delegate = delegate;
+    }
+
+    @Override protected List<V> doExecute() {
+      return cache.get(query, key, delegate).join();
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    @Override protected void doEnqueue(Callback<List<V>> callback) {
+      cache.get(query, key, delegate).handle((values, t) -> {
+        if (t != null) {
+          callback.onError(t);
+        } else {
+          try {
+            callback.onSuccess(values);
+          } catch (Throwable t1) {
+            propagateIfFatal(t1);
+            callback.onError(t1);
+          }
+        }
+        return null;
+      });
+    }
+
+    @Override public Call<List<V>> clone() {
+      return new CachedCall<>(cache, query, key, delegate);
+    }
+  }
+}
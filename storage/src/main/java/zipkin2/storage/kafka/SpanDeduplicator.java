@@ -0,0 +1,231 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+import zipkin2.Call;
+import zipkin2.Span;
+
+/**
+ * Drops spans already received (e.g. resent by reporter retries or at-least-once collectors)
+ * before they are sent, so duplicates are neither aggregated nor stored. Spans are identified by
+ * trace ID, span ID and shared flag, as a client and server sharing a span ID are different
+ * spans.
+ *
+ * <p>Spans sent are recorded on a Bloom filter rotated every {@code window}, and spans received are
+ * looked up on the current and previous filters: a span is recognized for at least a window, and
+ * memory is bounded to two filters sized for {@code expectedSpans} per window at {@code
+ * falsePositiveRate}. See {@link Batch}.
+ *
+ * <p>A false positive drops a span never received. The false positive rate of the current filter
+ * is estimated from its bits set, and once over the budget (i.e. more spans than expected within a
+ * window) the filter is rotated early. The estimated rate of lookups is gauged by {@code
+ * zipkin.storage.kafka.partitioning.dedup.false.positive.rate}, spans dropped are counted by
+ * {@code zipkin.storage.kafka.partitioning.dedup.dropped}, and rotations by {@code
+ * zipkin.storage.kafka.partitioning.dedup.rotations}, until closed.
+ */
+final class SpanDeduplicator {
+  static final String METRIC_PREFIX = "zipkin.storage.kafka.partitioning.dedup";
+
+  final long windowMillis;
+  final int bits, hashes;
+  /** Bits set on a filter over which its false positive rate is over budget. */
+  final long maxBitsSet;
+  final LongSupplier clock;
+  final MeterRegistry registry;
+  final Counter dropped, rotations;
+  final List<Meter> meters;
+  volatile Filter current, previous;
+
+  SpanDeduplicator(Duration window, int expectedSpans, double falsePositiveRate,
+    MeterRegistry registry) {
+    this(window, expectedSpans, falsePositiveRate, registry, System::currentTimeMillis);
+  }
+
+  SpanDeduplicator(Duration window, int expectedSpans, double falsePositiveRate,
+    MeterRegistry registry, LongSupplier clock) {
+    this.windowMillis = window.toMillis();
+    // Optimal sizing: m = -n ln(p) / ln(2)^2 bits, and k = m / n ln(2) hashes
+    double ln2 = Math.log(2);
+    long optimalBits =
+      (long) Math.ceil(-expectedSpans * Math.log(falsePositiveRate) / (ln2 * ln2));
+    this.bits = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, (optimalBits + 63) & ~63L));
+    this.hashes = Math.max(1, (int) Math.round((double) bits / expectedSpans * ln2));
+    // Estimated false positive rate is (bits set / m) ^ k
+    this.maxBitsSet = (long) (bits * Math.pow(falsePositiveRate, 1.0 / hashes));
+    this.clock = clock;
+    this.current = new Filter(bits, clock.getAsLong());
+    this.registry = registry;
+    dropped = registry.counter(METRIC_PREFIX + ".dropped");
+    rotations = registry.counter(METRIC_PREFIX + ".rotations");
+    meters = Arrays.asList(dropped, rotations,
+      Gauge.builder(METRIC_PREFIX + ".false.positive.rate", this,
+        SpanDeduplicator::falsePositiveRate).register(registry));
+  }
+
+  Batch newBatch() {
+    return new Batch();
+  }
+
+  /**
+   * Spans of a batch not received before. They are recorded only once the batch is sent, so a
+   * batch failing to send (e.g. shed) is not dropped as duplicate when retried.
+   */
+  final class Batch {
+    final Set<Long> spans = new LinkedHashSet<>();
+
+    /** @return spans not received before, or the same list if none were. */
+    List<Span> filter(List<Span> received) {
+      List<Span> result = null;
+      for (int i = 0; i < received.size(); i++) {
+        Span span = received.get(i);
+        boolean added = add(span.traceId(), span.id(), Boolean.TRUE.equals(span.shared()));
+        if (!added && result == null) result = new ArrayList<>(received.subList(0, i));
+        if (added && result != null) result.add(span);
+      }
+      return result == null ? received : result;
+    }
+
+    /** @return false if the span was received before, or already on this batch. */
+    boolean add(String traceId, String spanId, boolean shared) {
+      long hash = hash(traceId, spanId, shared);
+      if (mightContain(hash) || !spans.add(hash)) {
+        dropped.increment();
+        return false;
+      }
+      return true;
+    }
+
+    /** Records spans of the batch as received once sent. */
+    Call<Void> recordOnSuccess(Call<Void> call) {
+      if (spans.isEmpty()) return call;
+      return call.map(unused -> {
+        record(spans);
+        return null;
+      });
+    }
+  }
+
+  boolean mightContain(long hash) {
+    Filter current = current(), previous = this.previous;
+    return current.mightContain(hash, hashes)
+      || (previous != null && previous.mightContain(hash, hashes));
+  }
+
+  /** Spans are added to the current filter even if on the previous, to be recognized longer. */
+  void record(Collection<Long> spans) {
+    Filter current = current();
+    for (long hash : spans) current.put(hash, hashes);
+  }
+
+  Filter current() {
+    Filter filter = current;
+    long now = clock.getAsLong();
+    if (now - filter.created < windowMillis && filter.bitsSet.get() <= maxBitsSet) return filter;
+    synchronized (this) {
+      if (current == filter) {
+        previous = filter;
+        current = new Filter(bits, now);
+        rotations.increment();
+      }
+      return current;
+    }
+  }
+
+  /** Estimated false positive rate of lookups, i.e. on either filter. */
+  double falsePositiveRate() {
+    Filter previous = this.previous;
+    double notOnCurrent = 1.0 - current.falsePositiveRate(hashes);
+    double notOnPrevious = previous == null ? 1.0 : 1.0 - previous.falsePositiveRate(hashes);
+    return 1.0 - notOnCurrent * notOnPrevious;
+  }
+
+  void close() {
+    meters.forEach(registry::remove);
+  }
+
+  /** 64-bit FNV-1a of the span identity, mixed as MurmurHash3 finalizer to spread its bits. */
+  static long hash(String traceId, String spanId, boolean shared) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < traceId.length(); i++) hash = (hash ^ traceId.charAt(i)) * 0x100000001b3L;
+    hash = (hash ^ '|') * 0x100000001b3L;
+    for (int i = 0; i < spanId.length(); i++) hash = (hash ^ spanId.charAt(i)) * 0x100000001b3L;
+    hash = (hash ^ (shared ? 's' : '|')) * 0x100000001b3L;
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /**
+   * Bloom filter set concurrently without locking. Bit positions are derived from the two halves
+   * of a 64-bit hash (i.e. double hashing).
+   */
+  static final class Filter {
+    final AtomicLongArray words;
+    final int bits;
+    final long created;
+    final AtomicLong bitsSet = new AtomicLong();
+
+    Filter(int bits, long created) {
+      this.words = new AtomicLongArray(bits / 64);
+      this.bits = bits;
+      this.created = created;
+    }
+
+    void put(long hash, int hashes) {
+      int h1 = (int) hash, h2 = (int) (hash >>> 32);
+      for (int i = 1; i <= hashes; i++) {
+        int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+        long mask = 1L << bit;
+        long word = words.get(bit >>> 6);
+        while ((word & mask) == 0) {
+          if (words.compareAndSet(bit >>> 6, word, word | mask)) {
+            bitsSet.incrementAndGet();
+            break;
+          }
+          word = words.get(bit >>> 6);
+        }
+      }
+    }
+
+    boolean mightContain(long hash, int hashes) {
+      int h1 = (int) hash, h2 = (int) (hash >>> 32);
+      for (int i = 1; i <= hashes; i++) {
+        int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+        if ((words.get(bit >>> 6) & (1L << bit)) == 0) return false;
+      }
+      return true;
+    }
+
+    double falsePositiveRate(int hashes) {
+      return Math.pow((double) bitsSet.get() / bits, hashes);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import zipkin2.Span;
+
+/**
+ * Newest traces merged from lists answered by each instance, keeping at most {@code limit} traces
+ * on a heap with the oldest trace on top.
+ *
+ * <p>Instances answer traces newest first, so merging a list stops at the first trace not newer
+ * than the oldest kept once the heap is full: none of the remaining traces would be kept.
+ */
+final class TopTraces {
+  /** Orders traces by their timestamp, oldest first. */
+  static final Comparator<List<Span>> OLDEST_FIRST = Comparator.comparingLong(TopTraces::timestamp);
+
+  final int limit;
+  final PriorityQueue<List<Span>> heap;
+  final Set<String> traceIds = new HashSet<>();
+
+  TopTraces(int limit) {
+    this.limit = limit;
+    this.heap = new PriorityQueue<>(Math.max(1, limit), OLDEST_FIRST);
+  }
+
+  /** Merges traces answered by an instance, sorted newest first. */
+  synchronized void addAll(List<List<Span>> traces) {
+    if (limit <= 0) return;
+    for (List<Span> trace : traces) {
+      if (trace.isEmpty()) continue;
+      if (heap.size() == limit) {
+        if (OLDEST_FIRST.compare(trace, heap.peek()) <= 0) return; // rest are older
+        if (!traceIds.add(trace.get(0).traceId())) continue;
+        traceIds.remove(heap.poll().get(0).traceId());
+      } else if (!traceIds.add(trace.get(0).traceId())) {
+        continue;
+      }
+      heap.add(trace);
+    }
+  }
+
+  /** Traces kept, newest first. */
+  synchronized List<List<Span>> toList() {
+    List<List<Span>> result = new ArrayList<>(heap);
+    result.sort(OLDEST_FIRST.reversed());
+    return result;
+  }
+
+  /**
+   * Timestamp of the trace, as the earliest timestamp of its spans (i.e. of its root span when
+   * reported). Span batches are stored as they arrive, so the first span could be any of them.
+   */
+  static long timestamp(List<Span> trace) {
+    long timestamp = 0L;
+    for (Span span : trace) {
+      long spanTimestamp = span.timestampAsLong();
+      if (spanTimestamp != 0L && (timestamp == 0L || spanTimestamp < timestamp)) {
+        timestamp = spanTimestamp;
+      }
+    }
+    return timestamp;
+  }
+}
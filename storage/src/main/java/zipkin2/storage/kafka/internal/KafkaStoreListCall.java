@@ -13,20 +13,28 @@
  */
 package zipkin2.storage.kafka.internal;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.linecorp.armeria.client.WebClient;
 import com.linecorp.armeria.common.AggregatedHttpResponse;
+import com.linecorp.armeria.common.HttpHeaderNames;
+import com.linecorp.armeria.common.HttpMethod;
+import com.linecorp.armeria.common.HttpResponse;
 import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.MediaType;
+import com.linecorp.armeria.common.RequestHeaders;
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.BiFunction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.KeyQueryMetadata;
 import org.apache.kafka.streams.state.HostInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,29 +47,44 @@ public abstract class KafkaStoreListCall<V> extends Call.Base<List<V>> {
 
   final KafkaStreams kafkaStreams;
   final String storeName;
-  final BiFunction<String, Integer, String> httpBaseUrl;
+  final PeerClients peerClients;
   final String httpPath;
+  /** Requests not yet answered, aborted if this call is canceled. */
+  final Set<HttpResponse> inFlight = ConcurrentHashMap.newKeySet();
 
   protected KafkaStoreListCall(
     KafkaStreams kafkaStreams,
     String storeName,
-    BiFunction<String, Integer, String> httpBaseUrl,
+    PeerClients peerClients,
     String httpPath) {
     this.kafkaStreams = kafkaStreams;
     this.storeName = storeName;
-    this.httpBaseUrl = httpBaseUrl;
+    this.peerClients = peerClients;
     this.httpPath = httpPath;
   }
 
+  /**
+   * Parses a JSON array, passing the bytes of each element to {@link #parseItem(byte[], int, int)}.
+   * No tree nor string of the whole content is built, so large responses are parsed as they are.
+   */
   @SuppressWarnings("MixedMutabilityReturnType")
-  protected List<V> parseList(String content) {
-    try {
-      if (content == null) return Collections.emptyList();
-      ArrayNode arrayNode = (ArrayNode) MAPPER.readTree(content);
+  protected List<V> parseList(byte[] content) {
+    if (content == null) return Collections.emptyList();
+    try (JsonParser parser = MAPPER.getFactory().createParser(content)) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) return Collections.emptyList();
       List<V> values = new ArrayList<>();
-      for (JsonNode node : arrayNode) {
-        V value = parseItem(node);
-        values.add(value);
+      JsonToken token;
+      while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+        if (token == null) throw new EOFException("Truncated json array");
+        int offset = (int) parser.getTokenLocation().getByteOffset();
+        // Move to the end of the element: strings are otherwise read lazily
+        if (token.isStructStart()) {
+          parser.skipChildren();
+        } else {
+          parser.finishToken();
+        }
+        int end = (int) parser.getCurrentLocation().getByteOffset();
+        values.add(parseItem(content, offset, end - offset));
       }
       return values;
     } catch (IOException e) {
@@ -70,13 +93,116 @@ public abstract class KafkaStoreListCall<V> extends Call.Base<List<V>> {
     }
   }
 
-  protected String content(AggregatedHttpResponse response) {
+  /**
+   * Parses a response from another instance, from binary content if the instance answered with
+   * {@link #binaryType()}, or from JSON otherwise (e.g. instances not supporting binary content).
+   */
+  protected List<V> parseResponse(AggregatedHttpResponse response) {
+    byte[] content = content(response);
+    MediaType binaryType = binaryType();
+    MediaType contentType = response.contentType();
+    if (content != null && binaryType != null && contentType != null
+      && contentType.is(binaryType)) {
+      try {
+        return parseBinary(content);
+      } catch (RuntimeException e) {
+        LOG.debug("Error reading binary response", e);
+        return Collections.emptyList();
+      }
+    }
+    return parseList(content);
+  }
+
+  /** Request to another instance, accepting {@link #binaryType()} if supported. */
+  protected RequestHeaders request(String path) {
+    MediaType binaryType = binaryType();
+    if (binaryType == null) return RequestHeaders.of(HttpMethod.GET, path);
+    return RequestHeaders.of(HttpMethod.GET, path,
+      HttpHeaderNames.ACCEPT, binaryType + ", " + MediaType.JSON);
+  }
+
+  protected byte[] content(AggregatedHttpResponse response) {
     if (!response.status().equals(HttpStatus.OK)) return null;
-    return response.contentUtf8();
+    return response.content().array();
   }
 
   protected WebClient httpClient(HostInfo hostInfo) {
-    return WebClient.of(httpBaseUrl.apply(hostInfo.host(), hostInfo.port()));
+    return peerClients.client(hostInfo);
+  }
+
+  /**
+   * Gets values from {@code hostInfo}: read in-process from {@code local} when the host is this
+   * instance, or requested on {@code path} otherwise.
+   */
+  protected CompletableFuture<List<V>> fetch(HostInfo hostInfo, String path,
+    Supplier<List<V>> local) {
+    return fetchFirst(Collections.singletonList(hostInfo), path, local);
+  }
+
+  /**
+   * Gets values from the first of {@code hostInfos} answering: the next instance is tried when
+   * reading fails, or when an instance answers an error (e.g. stores restoring). When all fail,
+   * the last answer is used: an empty list, or the error of the last request.
+   *
+   * @see #fetch(HostInfo, String, Supplier)
+   */
+  protected CompletableFuture<List<V>> fetchFirst(List<HostInfo> hostInfos, String path,
+    Supplier<List<V>> local) {
+    return fetchFirst(hostInfos, 0, path, local);
+  }
+
+  CompletableFuture<List<V>> fetchFirst(List<HostInfo> hostInfos, int index, String path,
+    Supplier<List<V>> local) {
+    HostInfo hostInfo = hostInfos.get(index);
+    boolean last = index == hostInfos.size() - 1;
+    if (peerClients != null && peerClients.isLocal(hostInfo)) {
+      try {
+        List<V> values = local.get();
+        if (values != null) return CompletableFuture.completedFuture(values);
+      } catch (RuntimeException e) {
+        // e.g. stores not ready, answered as an empty list like a failed request
+        LOG.debug("Error reading local store", e);
+        if (last) return CompletableFuture.completedFuture(Collections.emptyList());
+        return fetchFirst(hostInfos, index + 1, path, local);
+      }
+    }
+    HttpResponse response = httpClient(hostInfo).execute(request(path));
+    inFlight.add(response);
+    CompletableFuture<AggregatedHttpResponse> aggregated = response.aggregate()
+      .whenComplete((unused, t) -> inFlight.remove(response));
+    if (last) return aggregated.thenApply(this::parseResponse);
+    HostInfo next = hostInfos.get(index + 1);
+    return aggregated
+      .exceptionally(t -> {
+        LOG.debug("Error requesting {}, trying {}", hostInfo, next, t);
+        return null;
+      })
+      .thenCompose(answer -> {
+        if (answer != null && answer.status().equals(HttpStatus.OK)) {
+          return CompletableFuture.completedFuture(parseResponse(answer));
+        }
+        if (answer != null) {
+          LOG.debug("Error status {} from {}, trying {}", answer.status(), hostInfo, next);
+        }
+        return fetchFirst(hostInfos, index + 1, path, local);
+      });
+  }
+
+  /** Active and standby hosts of a key, the least loaded first. */
+  protected List<HostInfo> replicas(KeyQueryMetadata metadata) {
+    List<HostInfo> hostInfos = new ArrayList<>();
+    hostInfos.add(metadata.activeHost());
+    hostInfos.addAll(metadata.standbyHosts());
+    return peerClients.rank(hostInfos);
+  }
+
+  /** Path requesting values of a partition, even if stale (e.g. from standby replicas). */
+  protected static String partitionPath(String path, int partition) {
+    return path + (path.indexOf('?') < 0 ? "?" : "&") + "partition=" + partition;
+  }
+
+  @Override protected void doCancel() {
+    inFlight.forEach(HttpResponse::abort);
   }
 
   @Override protected List<V> doExecute() {
@@ -106,9 +232,49 @@ public abstract class KafkaStoreListCall<V> extends Call.Base<List<V>> {
   protected abstract CompletableFuture<List<V>> listFuture();
 
   /**
-   * Parse list element from json into {@code type V}
+   * Parse list element from json into {@code type V}, reading {@code length} bytes of content from
+   * {@code offset}.
    *
-   * @see #parseList(String)
+   * @see #parseList(byte[])
    */
-  protected abstract V parseItem(JsonNode node) throws JsonProcessingException;
+  protected abstract V parseItem(byte[] content, int offset, int length) throws IOException;
+
+  /** Parses a list element that is a json string. */
+  protected static String parseString(byte[] content, int offset, int length) throws IOException {
+    return MAPPER.readValue(content, offset, length, String.class);
+  }
+
+  /** Parses a list element that is a json number. */
+  protected static Integer parseInt(byte[] content, int offset, int length) throws IOException {
+    return MAPPER.readValue(content, offset, length, Integer.class);
+  }
+
+  /**
+   * Media type of binary content to request instead of JSON, or {@code null} to request JSON.
+   *
+   * @see #parseBinary(byte[])
+   */
+  protected MediaType binaryType() {
+    return null;
+  }
+
+  /**
+   * Parse list from binary content of {@link #binaryType()}. Defaults to parsing a JSON list, so
+   * binary types are overridden along with their parser.
+   */
+  protected List<V> parseBinary(byte[] content) {
+    return parseList(content);
+  }
+
+  /**
+   * Values read from stores of this instance, without calling it over HTTP, or {@code null} if not
+   * supported.
+   *
+   * @param partition Partition of stores to read, even if stale (e.g. standby replicas), or {@code
+   *                  null} to read all active stores.
+   * @see #fetch(HostInfo, String, Supplier)
+   */
+  protected List<V> localList(Integer partition) {
+    return null;
+  }
 }
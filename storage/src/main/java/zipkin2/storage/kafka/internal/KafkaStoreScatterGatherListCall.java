@@ -13,14 +13,27 @@
  */
 package zipkin2.storage.kafka.internal;
 
-import com.linecorp.armeria.common.AggregatedHttpResponse;
-import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.CommonPools;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.BiFunction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.KeyQueryMetadata;
+import org.apache.kafka.streams.state.HostInfo;
 import org.apache.kafka.streams.state.StreamsMetadata;
 
 /**
@@ -28,44 +41,183 @@ import org.apache.kafka.streams.state.StreamsMetadata;
  * <p>
  * Given that we need to collect all values and those might be spread on different instances we do a
  * scatter-gather/parallel call to all instances.
+ * <p>
+ * Results are partial when instances don't answer before {@link PeerClients#timeout}: values of
+ * their partitions are missing, and partitions are available as {@link #missingPartitions()}. An
+ * instance not answering after {@link PeerClients#hedgeDelay} is hedged by requesting each of its
+ * partitions from instances with standby replicas, if any.
  */
 public abstract class KafkaStoreScatterGatherListCall<V> extends KafkaStoreListCall<V> {
 
   final long limit;
+  final Set<TopicPartition> missingPartitions = ConcurrentHashMap.newKeySet();
 
   /**
    * @param kafkaStreams Kafka Streams instance where storeName is located.
    * @param storeName    Store name which will be queried on all instances.
-   * @param httpBaseUrl  Base URL composed by protocol, hostname and port.
+   * @param peerClients  Clients to instances where storeName is located.
    * @param httpPath     Http path to query other instances.
    * @param limit        Maximum number of results when collecting results from all instances.
    */
   protected KafkaStoreScatterGatherListCall(
     KafkaStreams kafkaStreams,
     String storeName,
-    BiFunction<String, Integer, String> httpBaseUrl,
+    PeerClients peerClients,
     String httpPath,
     long limit) {
-    super(kafkaStreams, storeName, httpBaseUrl, httpPath);
+    super(kafkaStreams, storeName, peerClients, httpPath);
     this.limit = limit;
   }
 
   @Override protected CompletableFuture<List<V>> listFuture() {
-    List<CompletableFuture<AggregatedHttpResponse>> responseFutures =
-      kafkaStreams.allMetadataForStore(storeName)
-        .stream()
-        .map(StreamsMetadata::hostInfo)
-        .map(this::httpClient)
-        .map(c -> c.get(httpPath).aggregate()).collect(Collectors.toList());
-    return CompletableFuture.allOf(responseFutures.toArray(new CompletableFuture[0]))
+    List<CompletableFuture<List<V>>> listFutures = scatter();
+    return CompletableFuture.allOf(listFutures.toArray(new CompletableFuture[0]))
       .thenApply(unused ->
-        responseFutures.stream()
-          .map(s -> s.getNow(AggregatedHttpResponse.of(HttpStatus.INTERNAL_SERVER_ERROR)))
-          .map(this::content)
-          .map(this::parseList)
+        listFutures.stream()
+          .map(s -> s.getNow(Collections.emptyList()))
           .flatMap(Collection::stream)
           .distinct()
           .limit(limit)
           .collect(Collectors.toList()));
   }
+
+  /**
+   * Gets values from all instances where storeName is located. Futures never fail: instances not
+   * answering are hedged, or answer no values.
+   */
+  protected List<CompletableFuture<List<V>>> scatter() {
+    return scatter(instance -> true);
+  }
+
+  /**
+   * Gets values only from instances with active replicas of {@code partitions} of storeName, e.g.
+   * partitions known to hold matching values. All instances are requested when the active replica
+   * of a partition is unknown (e.g. rebalancing).
+   *
+   * @see #scatter()
+   */
+  protected List<CompletableFuture<List<V>>> scatter(Collection<Integer> partitions) {
+    Set<HostInfo> hostInfos = new HashSet<>();
+    for (Integer partition : partitions) {
+      HostInfo hostInfo = activeHost(partition);
+      if (hostInfo == null) return scatter();
+      hostInfos.add(hostInfo);
+    }
+    return scatter(instance -> hostInfos.contains(instance.hostInfo()));
+  }
+
+  List<CompletableFuture<List<V>>> scatter(Predicate<StreamsMetadata> requested) {
+    Collection<StreamsMetadata> metadata = metadata();
+    List<CompletableFuture<List<V>>> listFutures = new ArrayList<>();
+    for (StreamsMetadata instance : metadata) {
+      if (!instance.stateStoreNames().contains(storeName)) continue; // only standby replicas
+      if (!requested.test(instance)) continue;
+      listFutures.add(new InstanceRequest(instance, metadata).result);
+    }
+    return listFutures;
+  }
+
+  /** Instances with active or standby replicas of storeName. */
+  protected Collection<StreamsMetadata> metadata() {
+    return kafkaStreams.allMetadataForStore(storeName);
+  }
+
+  /** Instance with the active replica of a partition of storeName, or {@code null} if unknown. */
+  protected HostInfo activeHost(int partition) {
+    KeyQueryMetadata metadata = kafkaStreams.queryMetadataForKey(storeName, partition,
+      (topic, key, value, numPartitions) -> key);
+    if (KeyQueryMetadata.NOT_AVAILABLE.equals(metadata)) return null;
+    return metadata.activeHost();
+  }
+
+  /** Partitions without values on the last result, as instances didn't answer on time. */
+  public Set<TopicPartition> missingPartitions() {
+    return Collections.unmodifiableSet(missingPartitions);
+  }
+
+  /** Requests values of an instance, hedged by requests to standby replicas of its partitions. */
+  final class InstanceRequest {
+    final StreamsMetadata instance;
+    final Collection<StreamsMetadata> metadata;
+    final CompletableFuture<List<V>> result = new CompletableFuture<>();
+    final AtomicInteger pending = new AtomicInteger(1);
+    final ScheduledFuture<?> hedgeTimer;
+    volatile boolean hedged;
+    /** Values of the partitions requested from standby replicas, once hedged. */
+    CompletableFuture<List<V>> hedgeResult;
+
+    InstanceRequest(StreamsMetadata instance, Collection<StreamsMetadata> metadata) {
+      this.instance = instance;
+      this.metadata = metadata;
+      Duration hedgeDelay = peerClients != null ? peerClients.hedgeDelay : null;
+      hedgeTimer = hedgeDelay != null && hasStandbyReplicas()
+        ? CommonPools.workerGroup().schedule(this::hedge, hedgeDelay.toMillis(),
+        TimeUnit.MILLISECONDS)
+        : null;
+      fetch(instance.hostInfo(), httpPath, () -> localList(null)).whenComplete((values, t) -> {
+        if (hedgeTimer != null) hedgeTimer.cancel(false);
+        if (t == null) {
+          result.complete(values);
+        } else {
+          LOG.debug("Error requesting {}", instance.hostInfo(), t);
+          hedge();
+          failed();
+        }
+      });
+    }
+
+    boolean hasStandbyReplicas() {
+      for (StreamsMetadata other : metadata) {
+        if (other.standbyStateStoreNames().contains(storeName)) return true;
+      }
+      return false;
+    }
+
+    /** Requests each partition of the instance from a standby replica, once. */
+    synchronized void hedge() {
+      if (hedged || result.isDone()) return;
+      hedged = true;
+      Map<Integer, HostInfo> standbys = new LinkedHashMap<>();
+      for (TopicPartition topicPartition : instance.topicPartitions()) {
+        HostInfo standby = standbyHost(topicPartition);
+        if (standby == null) return; // values of this partition can't be hedged
+        standbys.put(topicPartition.partition(), standby);
+      }
+      pending.incrementAndGet();
+      List<CompletableFuture<List<V>>> partitions = new ArrayList<>();
+      standbys.forEach((partition, standby) -> partitions.add(
+        fetch(standby, partitionPath(httpPath, partition), () -> localList(partition))));
+      hedgeResult = CompletableFuture.allOf(partitions.toArray(new CompletableFuture[0]))
+        .thenApply(unused -> partitions.stream()
+          .flatMap(f -> f.join().stream())
+          .collect(Collectors.toList()))
+        .whenComplete((values, t) -> {
+          if (t == null) {
+            result.complete(values);
+          } else {
+            LOG.debug("Error requesting standby replicas of {}", instance.hostInfo(), t);
+            failed();
+          }
+        });
+    }
+
+    HostInfo standbyHost(TopicPartition topicPartition) {
+      for (StreamsMetadata other : metadata) {
+        if (other.standbyStateStoreNames().contains(storeName)
+          && other.standbyTopicPartitions().contains(topicPartition)) {
+          return other.hostInfo();
+        }
+      }
+      return null;
+    }
+
+    /** Answers no values once the request, and its hedge if any, failed. */
+    void failed() {
+      if (pending.decrementAndGet() > 0) return;
+      missingPartitions.addAll(instance.topicPartitions());
+      LOG.info("Partial results from {}: partitions {} of {} missing", storeName,
+        instance.topicPartitions(), instance.hostInfo());
+      result.complete(Collections.emptyList());
+    }
+  }
 }
@@ -13,10 +13,9 @@
  */
 package zipkin2.storage.kafka.internal;
 
-import com.linecorp.armeria.client.WebClient;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.BiFunction;
+import org.apache.kafka.common.serialization.Serializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.apache.kafka.streams.KafkaStreams;
 import org.apache.kafka.streams.KeyQueryMetadata;
@@ -26,30 +25,65 @@ import org.apache.kafka.streams.KeyQueryMetadata;
  * <p>
  * Given that key/value pair is based on tag's key and values, we can get the specific instance
  * where values are stored, avoiding scatter-gather/parallel calls.
+ * <p>
+ * With standby reads, values are read from the active or standby replicas of the key's partition,
+ * the least loaded first, failing over to the others. See {@link PeerClients#rank}.
  */
 public abstract class KafkaStoreSingleKeyListCall<V> extends KafkaStoreListCall<V> {
   static final StringSerializer STRING_SERIALIZER = new StringSerializer();
 
   final String key;
+  final Serializer<String> keySerializer;
+  final boolean standbyReads;
 
   protected KafkaStoreSingleKeyListCall(
     KafkaStreams kafkaStreams,
     String storeName,
-    BiFunction<String, Integer, String> httpBaseUrl,
+    PeerClients peerClients,
     String httpPath,
     String key) {
-    super(kafkaStreams, storeName, httpBaseUrl, httpPath);
+    this(kafkaStreams, storeName, peerClients, httpPath, key, false);
+  }
+
+  /**
+   * @param standbyReads Read from standby replicas as well as from the active one, even if stale.
+   */
+  protected KafkaStoreSingleKeyListCall(
+    KafkaStreams kafkaStreams,
+    String storeName,
+    PeerClients peerClients,
+    String httpPath,
+    String key,
+    boolean standbyReads) {
+    this(kafkaStreams, storeName, peerClients, httpPath, key, STRING_SERIALIZER, standbyReads);
+  }
+
+  /**
+   * @param keySerializer Serializer of the key as partitioned on the store source topic, e.g. for
+   * binary trace IDs.
+   * @param standbyReads Read from standby replicas as well as from the active one, even if stale.
+   */
+  protected KafkaStoreSingleKeyListCall(
+    KafkaStreams kafkaStreams,
+    String storeName,
+    PeerClients peerClients,
+    String httpPath,
+    String key,
+    Serializer<String> keySerializer,
+    boolean standbyReads) {
+    super(kafkaStreams, storeName, peerClients, httpPath);
     this.key = key;
+    this.keySerializer = keySerializer;
+    this.standbyReads = standbyReads;
   }
 
   @Override protected CompletableFuture<List<V>> listFuture() {
-    KeyQueryMetadata metadata = kafkaStreams.queryMetadataForKey(storeName, key, STRING_SERIALIZER);
-    WebClient httpClient = httpClient(metadata.activeHost());
-    return httpClient.get(httpPath)
-      .aggregate()
-      .thenApply(response -> {
-        String content = content(response);
-        return parseList(content);
-      });
+    KeyQueryMetadata metadata = kafkaStreams.queryMetadataForKey(storeName, key, keySerializer);
+    if (!standbyReads || metadata.standbyHosts().isEmpty()) {
+      return fetch(metadata.activeHost(), httpPath, () -> localList(null));
+    }
+    int partition = metadata.partition();
+    return fetchFirst(replicas(metadata), partitionPath(httpPath, partition),
+      () -> localList(partition));
   }
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.internal;
+
+import com.linecorp.armeria.client.ClientFactory;
+import com.linecorp.armeria.client.ClientRequestContext;
+import com.linecorp.armeria.client.ConnectionPoolListener;
+import com.linecorp.armeria.client.HttpClient;
+import com.linecorp.armeria.client.WebClient;
+import com.linecorp.armeria.client.metric.MetricCollectingClient;
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.SessionProtocol;
+import com.linecorp.armeria.common.metric.MeterIdPrefixFunction;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.netty.util.AttributeMap;
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import org.apache.kafka.streams.state.HostInfo;
+
+/**
+ * HTTP clients to other instances, kept for as long as instances are part of streams metadata, so
+ * connections (i.e. HTTP/2 connections, when upgraded) are reused across queries.
+ *
+ * <p>Each instance has its own client factory: connections to an instance are counted, requests
+ * are timed, and evicting an instance closes its connections and removes its meters. Meters are
+ * prefixed by {@value #METRIC_PREFIX} and tagged by {@code peer}, as {@code host:port}.
+ *
+ * <p>This instance is known by its {@link HostInfo}, so queries on its own stores are read
+ * in-process instead of calling itself over HTTP.
+ *
+ * <p>Requests time out after {@link #timeout}, and are hedged after {@link #hedgeDelay} when
+ * another instance has standby replicas of the partitions requested.
+ *
+ * <p>Latency and pending requests are tracked per instance, so reads served by several instances
+ * (i.e. active and standby replicas) go to the least loaded first. See {@link #rank(Collection)}.
+ * Evicting an instance with pending requests is deferred until they complete.
+ */
+public final class PeerClients implements Closeable {
+  static final String METRIC_PREFIX = "zipkin.storage.kafka.peer";
+  static final String PEER_TAG = "peer";
+  /** Weight of the latest request on the moving average of latency. */
+  static final double LATENCY_WEIGHT = 0.2;
+
+  final BiFunction<String, Integer, String> httpBaseUrl;
+  final HostInfo localHostInfo;
+  final Duration timeout, hedgeDelay;
+  final MeterRegistry registry;
+  final ConcurrentMap<HostInfo, Peer> peers = new ConcurrentHashMap<>();
+
+  /**
+   * @param httpBaseUrl   Base URL composed by protocol, hostname and port.
+   * @param localHostInfo Host and HTTP port of this instance, as advertised on streams metadata.
+   * @param timeout       Deadline of each request to other instances.
+   * @param hedgeDelay    Delay before hedging a request not answered yet.
+   * @param registry      Registry of per-peer connection and request meters.
+   */
+  public PeerClients(BiFunction<String, Integer, String> httpBaseUrl, HostInfo localHostInfo,
+    Duration timeout, Duration hedgeDelay, MeterRegistry registry) {
+    this.httpBaseUrl = httpBaseUrl;
+    this.localHostInfo = localHostInfo;
+    this.timeout = timeout;
+    this.hedgeDelay = hedgeDelay;
+    this.registry = registry;
+  }
+
+  /** Returns true if {@code hostInfo} is this instance, so its stores can be read in-process. */
+  public boolean isLocal(HostInfo hostInfo) {
+    return localHostInfo.equals(hostInfo);
+  }
+
+  public WebClient client(HostInfo hostInfo) {
+    Peer peer = peers.computeIfAbsent(hostInfo, Peer::new);
+    // Requested again, e.g. instance back in metadata before pending requests completed
+    peer.evicted = false;
+    return peer.client;
+  }
+
+  /**
+   * Orders instances by preference to serve a read: this instance first, as read in-process; then
+   * by load, i.e. average latency times pending requests. Instances not requested yet come before
+   * others, so their latency is learned. Instances with the same load keep their order.
+   */
+  public List<HostInfo> rank(Collection<HostInfo> hostInfos) {
+    List<HostInfo> ranked = new ArrayList<>(hostInfos);
+    ranked.sort(Comparator.comparing((HostInfo hostInfo) -> !isLocal(hostInfo))
+      .thenComparingDouble(this::load));
+    return ranked;
+  }
+
+  double load(HostInfo hostInfo) {
+    Peer peer = peers.get(hostInfo);
+    return peer != null ? peer.load() : 0;
+  }
+
+  /**
+   * Evicts clients to instances not in {@code hostInfos}, e.g. instances that left the group, once
+   * their pending requests complete.
+   */
+  public void retain(Collection<HostInfo> hostInfos) {
+    for (Peer peer : new ArrayList<>(peers.values())) {
+      if (hostInfos.contains(peer.hostInfo)) continue;
+      peer.evicted = true;
+      if (peer.pending.get() == 0 && peers.remove(peer.hostInfo, peer)) peer.close();
+    }
+  }
+
+  /** Closes all clients, regardless of pending requests. */
+  @Override public void close() {
+    for (Peer peer : new ArrayList<>(peers.values())) {
+      if (peers.remove(peer.hostInfo, peer)) peer.close();
+    }
+  }
+
+  final class Peer implements ConnectionPoolListener {
+    final HostInfo hostInfo;
+    final String peer;
+    final ClientFactory factory;
+    final WebClient client;
+    final Counter opened, closed;
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger pending = new AtomicInteger();
+    /** Moving average of request latency, or zero until the first request completes. */
+    volatile double latencyNanos;
+    /** Not part of streams metadata anymore, so closed once no requests are pending. */
+    volatile boolean evicted;
+
+    Peer(HostInfo hostInfo) {
+      this.hostInfo = hostInfo;
+      peer = hostInfo.host() + ":" + hostInfo.port();
+      opened = registry.counter(METRIC_PREFIX + ".connections.opened", PEER_TAG, peer);
+      closed = registry.counter(METRIC_PREFIX + ".connections.closed", PEER_TAG, peer);
+      registry.gauge(METRIC_PREFIX + ".connections.active",
+        Tags.of(PEER_TAG, peer), active);
+      factory = ClientFactory.builder()
+        .meterRegistry(registry)
+        .connectionPoolListener(this)
+        .build();
+      client = WebClient.builder(httpBaseUrl.apply(hostInfo.host(), hostInfo.port()))
+        .factory(factory)
+        .responseTimeout(timeout)
+        .decorator(this::execute)
+        .decorator(MetricCollectingClient.newDecorator(
+          MeterIdPrefixFunction.ofDefault(METRIC_PREFIX).withTags(PEER_TAG, peer)))
+        .build();
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored")
+    HttpResponse execute(HttpClient delegate, ClientRequestContext ctx, HttpRequest req)
+      throws Exception {
+      pending.incrementAndGet();
+      ctx.log().whenComplete().thenAccept(log -> {
+        if (pending.decrementAndGet() == 0 && evicted && peers.remove(hostInfo, this)) {
+          // Closing would block the event loop completing this request, so meters are removed
+          // once closed
+          factory.closeAsync().thenRun(this::removeMeters);
+        }
+        double latency = log.totalDurationNanos();
+        double average = latencyNanos;
+        latencyNanos = average == 0 ? latency : average + LATENCY_WEIGHT * (latency - average);
+      });
+      return delegate.execute(ctx, req);
+    }
+
+    double load() {
+      return latencyNanos * (pending.get() + 1);
+    }
+
+    @Override public void connectionOpen(SessionProtocol protocol, InetSocketAddress remoteAddr,
+      InetSocketAddress localAddr, AttributeMap attrs) {
+      opened.increment();
+      active.incrementAndGet();
+    }
+
+    @Override public void connectionClosed(SessionProtocol protocol, InetSocketAddress remoteAddr,
+      InetSocketAddress localAddr, AttributeMap attrs) {
+      closed.increment();
+      active.decrementAndGet();
+    }
+
+    void close() {
+      factory.close();
+      removeMeters();
+    }
+
+    void removeMeters() {
+      List<Meter> meters = new ArrayList<>();
+      for (Meter meter : registry.getMeters()) {
+        if (meter.getId().getName().startsWith(METRIC_PREFIX)
+          && peer.equals(meter.getId().getTag(PEER_TAG))) {
+          meters.add(meter);
+        }
+      }
+      meters.forEach(registry::remove);
+    }
+  }
+}
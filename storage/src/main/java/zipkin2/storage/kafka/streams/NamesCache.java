@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.kafka.streams.state.WindowStore;
+import org.apache.kafka.streams.state.WindowStoreIterator;
+import zipkin2.storage.kafka.streams.serdes.NamesSerde;
+
+/**
+ * Bounded cache of names stored by key (e.g. span names by service name, or tag values by tag key)
+ * on a names store.
+ *
+ * <p>Names change rarely, so known names are skipped without reading or writing the store. Names
+ * are kept encoded as stored (see {@link NamesSerde}), so new names are added without decoding.
+ * Keys with new names are written behind, when {@link #flush()} is called (e.g. periodically and
+ * when the task is closed) or when evicted from cache. Names not flushed (e.g. on a crash) are
+ * stored again when they are received.
+ */
+final class NamesCache {
+  final WindowStore<String, byte[]> store;
+  final Duration lookback;
+  // Names by key, in access order to evict the least recently used
+  final LinkedHashMap<String, byte[]> names;
+  // Latest timestamp by key with names not stored yet
+  final Map<String, Long> dirty = new LinkedHashMap<>();
+
+  NamesCache(WindowStore<String, byte[]> store, Duration lookback, int maxSize) {
+    this.store = store;
+    this.lookback = lookback;
+    this.names = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+        if (size() <= maxSize) return false;
+        Long timestamp = dirty.remove(eldest.getKey());
+        if (timestamp != null) store.put(eldest.getKey(), eldest.getValue(), timestamp);
+        return true;
+      }
+    };
+  }
+
+  /** Adds a name to a key, marking key to be stored only if name is new. */
+  void add(String key, String name, long timestamp) {
+    byte[] current = names.get(key);
+    if (current == null) {
+      current = load(key);
+      names.put(key, current);
+    }
+    byte[] updated = NamesSerde.insert(current, name);
+    if (updated != current) {
+      names.put(key, updated);
+      dirty.merge(key, timestamp, Math::max);
+    }
+  }
+
+  /** Stores keys with new names. */
+  void flush() {
+    for (Map.Entry<String, Long> entry : dirty.entrySet()) {
+      store.put(entry.getKey(), names.get(entry.getKey()), entry.getValue());
+    }
+    dirty.clear();
+  }
+
+  byte[] load(String key) {
+    Instant now = Instant.now();
+    try (WindowStoreIterator<byte[]> iterator =
+           store.backwardFetch(key, now.minus(lookback), now)) {
+      if (iterator.hasNext()) return iterator.next().value;
+    }
+    return NamesSerde.encode(Collections.emptySet());
+  }
+}
@@ -13,15 +13,20 @@
  */
 package zipkin2.storage.kafka.streams;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.function.Supplier;
 import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.streams.StreamsBuilder;
 import org.apache.kafka.streams.Topology;
 import org.apache.kafka.streams.kstream.Aggregator;
 import org.apache.kafka.streams.kstream.Consumed;
+import org.apache.kafka.streams.kstream.Grouped;
 import org.apache.kafka.streams.kstream.KStream;
 import org.apache.kafka.streams.kstream.Materialized;
 import org.apache.kafka.streams.kstream.Merger;
@@ -29,12 +34,16 @@ import org.apache.kafka.streams.kstream.Produced;
 import org.apache.kafka.streams.kstream.SessionWindows;
 import org.apache.kafka.streams.kstream.ValueMapper;
 import org.apache.kafka.streams.state.Stores;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import zipkin2.DependencyLink;
 import zipkin2.Span;
 import zipkin2.internal.DependencyLinker;
 import zipkin2.internal.Trace;
 import zipkin2.storage.kafka.streams.serdes.DependencyLinkSerde;
+import zipkin2.storage.kafka.streams.serdes.PackedTraces;
 import zipkin2.storage.kafka.streams.serdes.SpansSerde;
+import zipkin2.storage.kafka.streams.serdes.TraceIdSerde;
 
 import static org.apache.kafka.streams.kstream.Suppressed.BufferConfig.unbounded;
 import static org.apache.kafka.streams.kstream.Suppressed.untilWindowCloses;
@@ -44,43 +53,71 @@ import static zipkin2.storage.kafka.streams.serdes.DependencyLinkSerde.linkKey;
  * Processing of spans partitioned by trace Id, into traces and dependency links.
  */
 public final class SpanAggregationTopology implements Supplier<Topology> {
+  static final Logger LOG = LoggerFactory.getLogger(SpanAggregationTopology.class);
+
   static final String TRACE_AGGREGATION_STORE = "trace-aggregation";
   static final Duration TRACE_AGGREGATION_RETENTION = Duration.ofDays(1);
+  static final String UNPACKED_SPANS_NAME = "unpacked-spans";
   // Kafka topics
   final String spansTopic;
   final String traceTopic;
   final String dependencyTopic;
   // Config
   final Duration traceTimeout;
+  final TraceSampler traceSampler;
   // Flags
   final boolean aggregationEnabled;
+  final boolean packedTracesEnabled;
   // SerDes
+  final TraceIdSerde traceIdSerde;
   final SpansSerde spansSerde;
   final DependencyLinkSerde dependencyLinkSerde;
 
+  final Counter sampledTracesTotal;
+  final Counter droppedTracesTotal;
+  final Counter malformedRecordsTotal;
+
   public SpanAggregationTopology(
     String spansTopic,
     String traceTopic,
     String dependencyTopic,
     Duration traceTimeout,
-    boolean aggregationEnabled
+    TraceSampler traceSampler,
+    boolean aggregationEnabled,
+    boolean packedTracesEnabled,
+    boolean binaryTraceIdsEnabled
   ) {
     this.spansTopic = spansTopic;
     this.traceTopic = traceTopic;
     this.dependencyTopic = dependencyTopic;
     this.traceTimeout = traceTimeout;
+    this.traceSampler = traceSampler;
     this.aggregationEnabled = aggregationEnabled;
+    this.packedTracesEnabled = packedTracesEnabled;
+    traceIdSerde = new TraceIdSerde(binaryTraceIdsEnabled);
     spansSerde = new SpansSerde();
     dependencyLinkSerde = new DependencyLinkSerde();
+    sampledTracesTotal = Metrics.counter("zipkin.storage.kafka.aggregation.traces.sampled");
+    droppedTracesTotal = Metrics.counter("zipkin.storage.kafka.aggregation.traces.dropped");
+    malformedRecordsTotal = Metrics.counter("zipkin.storage.kafka.aggregation.traces.malformed");
   }
 
   @Override public Topology get() {
     StreamsBuilder builder = new StreamsBuilder();
     if (aggregationEnabled) {
+      // Records packing multiple traces are unpacked and, as keys change, repartitioned by trace ID
+      KStream<String, List<Span>> spansStream;
+      if (packedTracesEnabled) {
+        spansStream = builder
+          .stream(spansTopic, Consumed.with(traceIdSerde, Serdes.ByteArray()))
+          .flatMap(this::records);
+      } else {
+        spansStream = builder.stream(spansTopic, Consumed.with(traceIdSerde, spansSerde));
+      }
       // Aggregate Spans to Traces
       KStream<String, List<Span>> tracesStream =
-        builder.stream(spansTopic, Consumed.with(Serdes.String(), spansSerde))
-          .groupByKey()
+        spansStream
+          .groupByKey(Grouped.with(UNPACKED_SPANS_NAME, traceIdSerde, spansSerde))
           // how long to wait for another span
           .windowedBy(SessionWindows.with(traceTimeout).grace(Duration.ZERO))
           .aggregate(ArrayList::new, aggregateSpans(), joinAggregates(),
@@ -89,7 +126,7 @@ public final class SpanAggregationTopology implements Supplier<Topology> {
                 Stores.persistentSessionStore(
                   TRACE_AGGREGATION_STORE,
                   TRACE_AGGREGATION_RETENTION))
-              .withKeySerde(Serdes.String())
+              .withKeySerde(traceIdSerde)
               .withValueSerde(spansSerde)
               .withLoggingDisabled()
               .withCachingEnabled())
@@ -97,9 +134,10 @@ public final class SpanAggregationTopology implements Supplier<Topology> {
           .suppress(untilWindowCloses(unbounded()))
           .toStream()
           .selectKey((windowed, spans) -> windowed.key());
-      // Downstream to traces topic
-      tracesStream.to(traceTopic, Produced.with(Serdes.String(), spansSerde));
-      // Map to dependency links
+      // Downstream to traces topic, only sampled traces
+      tracesStream.filter(this::isSampled)
+        .to(traceTopic, Produced.with(traceIdSerde, spansSerde));
+      // Map to dependency links, from all traces to keep call counts accurate
       tracesStream.flatMapValues(spansToDependencyLinks())
         .selectKey((key, value) -> linkKey(value))
         .to(dependencyTopic, Produced.with(Serdes.String(), dependencyLinkSerde));
@@ -107,6 +145,26 @@ public final class SpanAggregationTopology implements Supplier<Topology> {
     return builder.build();
   }
 
+  /** Malformed records are skipped, as failing would stop the stream thread on every restart. */
+  List<KeyValue<String, List<Span>>> records(String key, byte[] value) {
+    try {
+      return PackedTraces.records(key, value);
+    } catch (RuntimeException e) {
+      malformedRecordsTotal.increment();
+      LOG.warn("Skipping malformed spans record keyed {}: {}", key, e.getMessage());
+      return Collections.emptyList();
+    }
+  }
+
+  boolean isSampled(String traceId, List<Span> trace) {
+    if (traceSampler.isSampled(traceId, trace)) {
+      sampledTracesTotal.increment();
+      return true;
+    }
+    droppedTracesTotal.increment();
+    return false;
+  }
+
   Merger<String, List<Span>> joinAggregates() {
     return (aggKey, aggOne, aggTwo) -> {
       aggOne.addAll(aggTwo);
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import zipkin2.Span;
+
+import static zipkin2.internal.HexCodec.lowerHexToUnsignedLong;
+
+/**
+ * Keeps traces with errors, with a duration longer than {@code minDuration}, or with any of the
+ * {@code tags}; and a {@code rate} of all other traces.
+ *
+ * <p>Rate is applied deterministically by trace ID, so all instances keep the same traces.
+ */
+public final class TailTraceSampler implements TraceSampler {
+  static final String ERROR_TAG = "error";
+  static final int PRECISION = 10_000;
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    float rate = 1.0f;
+    Duration minDuration = Duration.ZERO;
+    List<String> tags = new ArrayList<>();
+
+    /** Rate of traces kept, besides the ones with errors, high latency or matching tags. */
+    public Builder rate(float rate) {
+      if (rate < 0.0f || rate > 1.0f) {
+        throw new IllegalArgumentException("rate should be between 0 and 1: was " + rate);
+      }
+      this.rate = rate;
+      return this;
+    }
+
+    /** Traces lasting at least this duration are kept. Zero disables it. */
+    public Builder minDuration(Duration minDuration) {
+      if (minDuration == null) throw new NullPointerException("minDuration == null");
+      this.minDuration = minDuration;
+      return this;
+    }
+
+    /** Traces with any span tagged by a key (e.g. {@code http.path}) or key=value are kept. */
+    public Builder tags(List<String> tags) {
+      if (tags == null) throw new NullPointerException("tags == null");
+      this.tags = tags;
+      return this;
+    }
+
+    public TailTraceSampler build() {
+      return new TailTraceSampler(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  final int boundary;
+  final long minDurationMicros;
+  final String[] tagKeys;
+  final String[] tagValues; // null when any value matches
+
+  TailTraceSampler(Builder builder) {
+    boundary = (int) (builder.rate * PRECISION);
+    minDurationMicros = builder.minDuration.toNanos() / 1000;
+    tagKeys = new String[builder.tags.size()];
+    tagValues = new String[builder.tags.size()];
+    for (int i = 0; i < builder.tags.size(); i++) {
+      String tag = builder.tags.get(i);
+      int delimiter = tag.indexOf('=');
+      tagKeys[i] = delimiter < 0 ? tag : tag.substring(0, delimiter);
+      tagValues[i] = delimiter < 0 ? null : tag.substring(delimiter + 1);
+    }
+  }
+
+  @Override public boolean isSampled(String traceId, List<Span> trace) {
+    if (boundary == PRECISION) return true;
+    long start = Long.MAX_VALUE;
+    long end = Long.MIN_VALUE;
+    for (Span span : trace) {
+      Map<String, String> tags = span.tags();
+      if (tags.containsKey(ERROR_TAG) || hasTag(tags)) return true;
+      long timestamp = span.timestampAsLong();
+      if (timestamp != 0L) {
+        start = Math.min(start, timestamp);
+        end = Math.max(end, timestamp + span.durationAsLong());
+      }
+    }
+    if (minDurationMicros > 0L && start <= end && end - start >= minDurationMicros) return true;
+    // Trace ID lower 64 bits are random, so they are good enough to sample by
+    long random = lowerHexToUnsignedLong(traceId) & Long.MAX_VALUE;
+    return random % PRECISION < boundary;
+  }
+
+  boolean hasTag(Map<String, String> tags) {
+    if (tags.isEmpty()) return false;
+    for (int i = 0; i < tagKeys.length; i++) {
+      String value = tags.get(tagKeys[i]);
+      if (value != null && (tagValues[i] == null || tagValues[i].equals(value))) return true;
+    }
+    return false;
+  }
+
+  @Override public String toString() {
+    return "TailTraceSampler{rate=" + ((float) boundary / PRECISION)
+      + ", minDurationMicros=" + minDurationMicros
+      + ", tags=" + tagKeys.length + "}";
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams;
+
+import java.util.List;
+import zipkin2.Span;
+
+/**
+ * Decides if an aggregated trace is kept on the traces topic, once its session window is closed
+ * (i.e. tail-based sampling).
+ *
+ * <p>Only the traces topic is sampled: trace storage consumes the spans topic by default, so the
+ * traces store only keeps sampled traces when its spans topic is the traces topic.
+ */
+public interface TraceSampler {
+  TraceSampler ALWAYS_SAMPLE = (traceId, trace) -> true;
+
+  /**
+   * Returns true if the aggregated trace is kept.
+   *
+   * @param traceId trace ID of the aggregated trace
+   * @param trace spans of the aggregated trace
+   * @return true if the trace is kept.
+   */
+  boolean isSampled(String traceId, List<Span> trace);
+}
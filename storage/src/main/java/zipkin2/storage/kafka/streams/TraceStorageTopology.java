@@ -17,9 +17,14 @@ import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.LinkedHashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.function.Supplier;
 import org.apache.kafka.common.serialization.Serdes;
 import org.apache.kafka.streams.KeyValue;
@@ -27,15 +32,28 @@ import org.apache.kafka.streams.StreamsBuilder;
 import org.apache.kafka.streams.Topology;
 import org.apache.kafka.streams.kstream.Consumed;
 import org.apache.kafka.streams.kstream.KStream;
+import org.apache.kafka.streams.kstream.Repartitioned;
+import org.apache.kafka.streams.kstream.Transformer;
+import org.apache.kafka.streams.kstream.Windowed;
 import org.apache.kafka.streams.processor.Processor;
 import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.processor.PunctuationType;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.StoreBuilder;
 import org.apache.kafka.streams.state.Stores;
 import org.apache.kafka.streams.state.WindowStore;
-import org.apache.kafka.streams.state.WindowStoreIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Annotation;
 import zipkin2.Span;
-import zipkin2.storage.kafka.streams.serdes.NamesSerde;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.kafka.streams.serdes.PackedTraces;
+import zipkin2.storage.kafka.streams.serdes.PartitionTimestampsSerde;
 import zipkin2.storage.kafka.streams.serdes.SpanIdsSerde;
 import zipkin2.storage.kafka.streams.serdes.SpansSerde;
+import zipkin2.storage.kafka.streams.serdes.TraceIdSerde;
+import zipkin2.storage.kafka.streams.serdes.TraceKeySerde;
 
 import static java.util.concurrent.TimeUnit.MICROSECONDS;
 
@@ -43,10 +61,36 @@ import static java.util.concurrent.TimeUnit.MICROSECONDS;
  * Storage of Traces, Service names and Autocomplete Tags.
  */
 public class TraceStorageTopology implements Supplier<Topology> {
+  static final Logger LOG = LoggerFactory.getLogger(TraceStorageTopology.class);
+
   public static final String TRACES_STORE_NAME = "zipkin-traces";
   public static final String SPAN_NAMES_STORE_NAME = "zipkin-span-names";
   public static final String REMOTE_SERVICE_NAMES_STORE_NAME = "zipkin-remote-service-names";
   public static final String AUTOCOMPLETE_TAGS_STORE_NAME = "zipkin-autocomplete-tags";
+  public static final String SERVICE_NAMES_STORE_NAME = "zipkin-service-names";
+  public static final String SERVICE_PARTITIONS_STORE_NAME = "zipkin-service-partitions";
+  // Trace ID indexes
+  public static final String SERVICE_NAME_INDEX_STORE_NAME = "zipkin-traces-by-service-name";
+  public static final String REMOTE_SERVICE_NAME_INDEX_STORE_NAME =
+    "zipkin-traces-by-remote-service-name";
+  public static final String SPAN_NAME_INDEX_STORE_NAME = "zipkin-traces-by-span-name";
+  public static final String TAG_INDEX_STORE_NAME = "zipkin-traces-by-tag";
+  static final String[] INDEX_STORE_NAMES = {SERVICE_NAME_INDEX_STORE_NAME,
+    REMOTE_SERVICE_NAME_INDEX_STORE_NAME, SPAN_NAME_INDEX_STORE_NAME, TAG_INDEX_STORE_NAME};
+  static final String[] TRACES_AND_INDEX_STORE_NAMES = {TRACES_STORE_NAME,
+    SERVICE_NAME_INDEX_STORE_NAME, REMOTE_SERVICE_NAME_INDEX_STORE_NAME,
+    SPAN_NAME_INDEX_STORE_NAME, TAG_INDEX_STORE_NAME};
+
+  static final char INDEX_KEY_DELIMITER = '|';
+  static final char TRACE_KEY_DELIMITER = ':';
+  static final int TRACE_KEY_SEQUENCE_LENGTH = 16;
+  static final Duration TRACES_WINDOW_SIZE = Duration.ofHours(1);
+  // Names are stored for a week, and cached per task to be written behind
+  public static final Duration NAMES_LOOKBACK = Duration.ofDays(7);
+  static final Duration NAMES_FLUSH_INTERVAL = Duration.ofSeconds(5);
+  static final int NAMES_CACHE_MAX_SIZE = 10_000;
+  // Services are recorded on each partition once per interval, rounded up to the interval end
+  public static final Duration SERVICE_PARTITIONS_INTERVAL = Duration.ofMinutes(1);
 
   // Kafka topics
   final String spansTopic;
@@ -59,11 +103,16 @@ public class TraceStorageTopology implements Supplier<Topology> {
   final boolean traceSearchEnabled;
   final boolean traceByIdQueryEnabled;
   // SerDes
+  final TraceIdSerde traceIdSerde;
+  final TraceKeySerde traceKeySerde;
   final SpansSerde spansSerde;
   final SpanIdsSerde spanIdsSerde;
-  final NamesSerde namesSerde;
+  final PartitionTimestampsSerde partitionTimestampsSerde;
 
   final Counter brokenTracesTotal;
+  final Counter evictedTracesTotal;
+  final Counter evictedBytesTotal;
+  final Counter malformedRecordsTotal;
 
   public TraceStorageTopology(
     String spansTopic,
@@ -72,7 +121,8 @@ public class TraceStorageTopology implements Supplier<Topology> {
     Duration traceTtlCheckInterval,
     long minTracesStored,
     boolean traceByIdQueryEnabled,
-    boolean traceSearchEnabled
+    boolean traceSearchEnabled,
+    boolean binaryTraceIdsEnabled
   ) {
     this.spansTopic = spansTopic;
     this.autoCompleteKeys = autoCompleteKeys;
@@ -81,10 +131,15 @@ public class TraceStorageTopology implements Supplier<Topology> {
     this.minTracesStored = minTracesStored;
     this.traceByIdQueryEnabled = traceByIdQueryEnabled;
     this.traceSearchEnabled = traceSearchEnabled;
+    traceIdSerde = new TraceIdSerde(binaryTraceIdsEnabled);
+    traceKeySerde = new TraceKeySerde(binaryTraceIdsEnabled);
     spansSerde = new SpansSerde();
     spanIdsSerde = new SpanIdsSerde();
-    namesSerde = new NamesSerde();
+    partitionTimestampsSerde = new PartitionTimestampsSerde();
     brokenTracesTotal = Metrics.counter("zipkin.storage.kafka.traces.broken");
+    evictedTracesTotal = Metrics.counter("zipkin.storage.kafka.traces.evicted");
+    evictedBytesTotal = Metrics.counter("zipkin.storage.kafka.traces.evicted.bytes");
+    malformedRecordsTotal = Metrics.counter("zipkin.storage.kafka.traces.malformed");
   }
 
   @Override public Topology get() {
@@ -94,158 +149,474 @@ public class TraceStorageTopology implements Supplier<Topology> {
         // Logging disabled to avoid long starting times, with logging disabled to process incoming
         // spans since last restart
         .addStateStore(Stores.windowStoreBuilder(
-          Stores.persistentWindowStore(TRACES_STORE_NAME, Duration.ofDays(1), Duration.ofHours(1),
-            false),
-          Serdes.String(),
+          Stores.persistentWindowStore(TRACES_STORE_NAME, traceTtl, tracesWindowSize(), false),
+          traceKeySerde,
           spansSerde).withLoggingDisabled());
-      // Traces stream
+      if (traceSearchEnabled) {
+        // Trace ID indexes, persisted and with logging disabled as traces store, as they are only
+        // valid as long as the indexed traces are stored
+        builder
+          .addStateStore(indexStoreBuilder(SERVICE_NAME_INDEX_STORE_NAME))
+          .addStateStore(indexStoreBuilder(REMOTE_SERVICE_NAME_INDEX_STORE_NAME))
+          .addStateStore(indexStoreBuilder(SPAN_NAME_INDEX_STORE_NAME))
+          .addStateStore(indexStoreBuilder(TAG_INDEX_STORE_NAME));
+      }
+      // Traces stream, unpacking records packing multiple traces. Packed traces are on the
+      // partition of their trace ID, so unpacking needs no repartition.
       KStream<String, List<Span>> spansStream = builder
-        .stream(spansTopic, Consumed.with(Serdes.String(), spansSerde));
+        .stream(spansTopic, Consumed.with(traceIdSerde, Serdes.ByteArray()))
+        .flatMap(this::records);
       // Store traces
       spansStream.process(() -> new Processor<String, List<Span>>() {
+        ProcessorContext context;
         // Actual traces store
         WindowStore<String, List<Span>> tracesStore;
+        // Trace ID indexes, to remove postings of evicted traces
+        List<WindowStore<String, String>> indexStores = new ArrayList<>();
+        // Latest timestamp stored, i.e. traces store stream-time. Unknown after restart.
+        long streamTime = -1L;
 
         @Override public void init(ProcessorContext context) {
+          this.context = context;
           tracesStore = context.getStateStore(TRACES_STORE_NAME);
+          if (traceSearchEnabled) {
+            for (String indexStoreName : INDEX_STORE_NAMES) {
+              indexStores.add(context.getStateStore(indexStoreName));
+            }
+          }
+          context.schedule(traceTtlCheckInterval, PunctuationType.WALL_CLOCK_TIME,
+            this::evictExpiredTraces);
         }
 
         @Override public void process(String traceId, List<Span> spans) {
           if (!spans.isEmpty()) {
-            // Persist traces
-            final Instant now = Instant.now();
-            try (WindowStoreIterator<List<Span>> iterator =
-                   tracesStore.backwardFetch(traceId,
-                     now.minusMillis(Duration.ofDays(1).toMillis()), now)) {
-              if (iterator.hasNext()) {
-                KeyValue<Long, List<Span>> current = iterator.next();
-                current.value.addAll(spans);
-                tracesStore.put(traceId, current.value, current.key);
+            // Persist span batches as they come, without reading the trace stored so far.
+            // Offset is unique per partition, and reprocessing a record overrides its batch.
+            long timestamp = spans.get(0).timestampAsLong() == 0L
+              ? context.timestamp()
+              : MICROSECONDS.toMillis(spans.get(0).timestampAsLong());
+            tracesStore.put(traceKey(traceId, context.offset()), spans, timestamp);
+            streamTime = Math.max(streamTime, timestamp);
+          }
+        }
+
+        /**
+         * Store segments are dropped as a whole, which is cheaper than deleting traces one by one.
+         * Segments span {@code max(TTL / 2, 1 minute)} (window size doesn't change it), and are
+         * dropped once all their traces are older than TTL relative to stream-time, so traces can
+         * outlive TTL by up to half of it. Segments are dropped regardless of {@code
+         * minTracesStored}: as stream-time only moves forward with new spans, the traces received
+         * since are the ones stored.
+         *
+         * <p>Only when stream-time is behind wall-clock time (e.g. no spans received lately) traces
+         * are evicted individually, keeping the latest {@code minTracesStored} traces, and their
+         * index postings removed.
+         */
+        void evictExpiredTraces(long now) {
+          long ttl = traceTtl.toMillis();
+          Instant from = Instant.ofEpochMilli(Math.max(0L, streamTime - ttl + 1));
+          Instant to = Instant.ofEpochMilli(now - ttl);
+          if (!from.isBefore(to)) return;
+          // Traces within TTL count towards the minimum traces stored
+          Set<String> kept = new HashSet<>();
+          try (KeyValueIterator<Windowed<String>, List<Span>> live =
+                 tracesStore.backwardFetchAll(to.plusMillis(1),
+                   Instant.ofEpochMilli(Long.MAX_VALUE))) {
+            while (kept.size() < minTracesStored && live.hasNext()) {
+              kept.add(traceId(live.next().key.key()));
+            }
+          }
+          List<KeyValue<Windowed<String>, Long>> expired = new ArrayList<>();
+          Set<String> evicted = new HashSet<>();
+          try (KeyValueIterator<Windowed<String>, List<Span>> all =
+                 tracesStore.backwardFetchAll(from, to)) {
+            while (all.hasNext()) {
+              KeyValue<Windowed<String>, List<Span>> next = all.next();
+              String traceId = traceId(next.key.key());
+              // Batches of a kept trace are kept altogether
+              if (kept.contains(traceId)) continue;
+              if (kept.size() < minTracesStored) {
+                kept.add(traceId);
               } else {
-                long timestamp = MICROSECONDS.toMillis(spans.get(0).timestamp());
-                tracesStore.put(traceId, spans, timestamp);
+                expired.add(KeyValue.pair(next.key, sizeInBytes(next.value)));
+                evicted.add(traceId);
+              }
+            }
+          }
+          for (KeyValue<Windowed<String>, Long> batch : expired) {
+            tracesStore.put(batch.key.key(), null, batch.key.window().start());
+            evictedBytesTotal.increment(batch.value);
+          }
+          evictedTracesTotal.increment(evicted.size());
+          if (!evicted.isEmpty()) evictPostings(evicted, from, to);
+        }
+
+        /** Postings of a batch are indexed at or before the batch timestamp, so within range. */
+        void evictPostings(Set<String> evicted, Instant from, Instant to) {
+          for (WindowStore<String, String> indexStore : indexStores) {
+            List<Windowed<String>> stale = new ArrayList<>();
+            try (KeyValueIterator<Windowed<String>, String> all = indexStore.fetchAll(from, to)) {
+              while (all.hasNext()) {
+                KeyValue<Windowed<String>, String> next = all.next();
+                if (evicted.contains(next.value)) stale.add(next.key);
               }
             }
+            for (Windowed<String> posting : stale) {
+              indexStore.put(posting.key(), null, posting.window().start());
+            }
           }
         }
 
         @Override
         public void close() {
         }
-      }, TRACES_STORE_NAME);
+      }, traceSearchEnabled ? TRACES_AND_INDEX_STORE_NAMES : new String[] {TRACES_STORE_NAME});
       if (traceSearchEnabled) {
+        // Names stores values are encoded by NamesSerde, so names can be added without decoding
         builder
           // In-memory as span names are bounded, with logging enabled to build state
           // with all values collected
           .addStateStore(Stores.windowStoreBuilder(
-            Stores.inMemoryWindowStore(SPAN_NAMES_STORE_NAME, Duration.ofDays(7),
+            Stores.inMemoryWindowStore(SPAN_NAMES_STORE_NAME, NAMES_LOOKBACK,
               Duration.ofDays(1), false),
             Serdes.String(),
-            namesSerde))
+            Serdes.ByteArray()))
           // In-memory as remote-service names are bounded, with logging enabled to build state
           // with all values collected
           .addStateStore(Stores.windowStoreBuilder(
-            Stores.inMemoryWindowStore(REMOTE_SERVICE_NAMES_STORE_NAME, Duration.ofDays(7),
+            Stores.inMemoryWindowStore(REMOTE_SERVICE_NAMES_STORE_NAME, NAMES_LOOKBACK,
               Duration.ofDays(1), false),
             Serdes.String(),
-            namesSerde))
+            Serdes.ByteArray()))
           // Persistent as values could be unbounded, but with logging enabled to build state
           // with all values collected
           .addStateStore(Stores.windowStoreBuilder(
-            Stores.persistentWindowStore(AUTOCOMPLETE_TAGS_STORE_NAME, Duration.ofDays(7),
+            Stores.persistentWindowStore(AUTOCOMPLETE_TAGS_STORE_NAME, NAMES_LOOKBACK,
               Duration.ofDays(1), false),
             Serdes.String(),
-            namesSerde));
+            Serdes.ByteArray()));
+        // Index trace IDs by service name, remote service name, span name and tags
+        spansStream.process(() -> new Processor<String, List<Span>>() {
+            ProcessorContext context;
+            WindowStore<String, String> serviceNameIndex;
+            WindowStore<String, String> remoteServiceNameIndex;
+            WindowStore<String, String> spanNameIndex;
+            WindowStore<String, String> tagIndex;
+
+            @Override public void init(ProcessorContext context) {
+              this.context = context;
+              serviceNameIndex = context.getStateStore(SERVICE_NAME_INDEX_STORE_NAME);
+              remoteServiceNameIndex = context.getStateStore(REMOTE_SERVICE_NAME_INDEX_STORE_NAME);
+              spanNameIndex = context.getStateStore(SPAN_NAME_INDEX_STORE_NAME);
+              tagIndex = context.getStateStore(TAG_INDEX_STORE_NAME);
+            }
+
+            @Override public void process(String traceId, List<Span> spans) {
+              // Terms are collected first to index each term only once per batch
+              Map<String, Long> serviceNames = new LinkedHashMap<>();
+              Map<String, Long> remoteServiceNames = new LinkedHashMap<>();
+              Map<String, Long> spanNames = new LinkedHashMap<>();
+              Map<String, Long> tags = new LinkedHashMap<>();
+              for (Span span : spans) {
+                long timestamp = span.timestampAsLong() == 0L
+                  ? context.timestamp()
+                  : MICROSECONDS.toMillis(span.timestampAsLong());
+                collect(serviceNames, span.localServiceName(), timestamp);
+                collect(remoteServiceNames, span.remoteServiceName(), timestamp);
+                collect(spanNames, span.name(), timestamp);
+                for (Map.Entry<String, String> tag : span.tags().entrySet()) {
+                  // Tag keys are indexed alone as well, as annotation queries could use them
+                  collect(tags, tag.getKey(), timestamp);
+                  collect(tags, tag.getKey() + "=" + tag.getValue(), timestamp);
+                }
+                for (Annotation annotation : span.annotations()) {
+                  collect(tags, annotation.value(), timestamp);
+                }
+              }
+              index(serviceNameIndex, serviceNames, traceId);
+              index(remoteServiceNameIndex, remoteServiceNames, traceId);
+              index(spanNameIndex, spanNames, traceId);
+              index(tagIndex, tags, traceId);
+            }
+
+            void collect(Map<String, Long> terms, String term, long timestamp) {
+              if (term == null || term.isEmpty()) return;
+              Long current = terms.get(term);
+              if (current == null || current > timestamp) terms.put(term, timestamp);
+            }
+
+            void index(WindowStore<String, String> store, Map<String, Long> terms, String traceId) {
+              for (Map.Entry<String, Long> term : terms.entrySet()) {
+                store.put(indexKey(term.getKey(), traceId), traceId, term.getValue());
+              }
+            }
+
+            @Override public void close() {
+            }
+          },
+          INDEX_STORE_NAMES);
         // Store service, span and remote service names
         spansStream.process(() -> new Processor<String, List<Span>>() {
-            WindowStore<String, Set<String>> spanNamesStore;
-            WindowStore<String, Set<String>> remoteServiceNamesStore;
-            WindowStore<String, Set<String>> tagsStore;
+            ProcessorContext context;
+            NamesCache spanNames;
+            NamesCache remoteServiceNames;
+            NamesCache tags;
 
             @Override
             public void init(ProcessorContext context) {
-              spanNamesStore = context.getStateStore(SPAN_NAMES_STORE_NAME);
-              remoteServiceNamesStore = context.getStateStore(REMOTE_SERVICE_NAMES_STORE_NAME);
-              tagsStore = context.getStateStore(AUTOCOMPLETE_TAGS_STORE_NAME);
+              this.context = context;
+              spanNames = new NamesCache(context.getStateStore(SPAN_NAMES_STORE_NAME),
+                NAMES_LOOKBACK, NAMES_CACHE_MAX_SIZE);
+              remoteServiceNames =
+                new NamesCache(context.getStateStore(REMOTE_SERVICE_NAMES_STORE_NAME),
+                  NAMES_LOOKBACK, NAMES_CACHE_MAX_SIZE);
+              tags = new NamesCache(context.getStateStore(AUTOCOMPLETE_TAGS_STORE_NAME),
+                NAMES_LOOKBACK, NAMES_CACHE_MAX_SIZE);
+              // New names are written behind, in batches
+              context.schedule(NAMES_FLUSH_INTERVAL, PunctuationType.WALL_CLOCK_TIME, now -> {
+                spanNames.flush();
+                remoteServiceNames.flush();
+                tags.flush();
+              });
             }
 
             @Override
             public void process(String traceId, List<Span> spans) {
-              Instant now = Instant.now();
               for (Span span : spans) {
-                final long timestamp = MICROSECONDS.toMillis(span.timestamp());
+                final long timestamp = span.timestampAsLong() == 0L
+                  ? context.timestamp()
+                  : MICROSECONDS.toMillis(span.timestampAsLong());
                 if (span.localServiceName() != null) { // if service name
                   if (span.name() != null) { // store span names
-                    try (WindowStoreIterator<Set<String>> iterator =
-                           spanNamesStore.backwardFetch(span.localServiceName(),
-                             now.minusMillis(Duration.ofDays(7).toMillis()), now)) {
-                      if (iterator.hasNext()) {
-                        KeyValue<Long, Set<String>> current = iterator.next();
-                        current.value.add(span.name());
-                        if (!current.value.contains(span.name())) {
-                          spanNamesStore.put(span.localServiceName(), current.value,
-                            timestamp);
-                        }
-                      } else {
-                        Set<String> values = new LinkedHashSet<>();
-                        values.add(span.name());
-                        spanNamesStore.put(span.localServiceName(), values, timestamp);
-                      }
-                    }
+                    spanNames.add(span.localServiceName(), span.name(), timestamp);
                   }
                   if (span.remoteServiceName() != null) { // store remote service names
-                    try (WindowStoreIterator<Set<String>> iterator =
-                           remoteServiceNamesStore.backwardFetch(span.localServiceName(),
-                             now.minusMillis(Duration.ofDays(7).toMillis()), now)) {
-                      if (iterator.hasNext()) {
-                        KeyValue<Long, Set<String>> current = iterator.next();
-                        if (!current.value.contains(span.remoteServiceName())) {
-                          current.value.add(span.remoteServiceName());
-                          remoteServiceNamesStore.put(span.localServiceName(), current.value,
-                            timestamp);
-                        }
-                      } else {
-                        Set<String> values = new LinkedHashSet<>();
-                        values.add(span.remoteServiceName());
-                        remoteServiceNamesStore.put(span.localServiceName(), values,
-                          timestamp);
-                      }
-                    }
+                    remoteServiceNames.add(span.localServiceName(), span.remoteServiceName(),
+                      timestamp);
                   }
                 }
                 if (!span.tags().isEmpty()) {
-                  autoCompleteKeys.forEach(tagKey -> {
+                  for (String tagKey : autoCompleteKeys) {
                     String value = span.tags().get(tagKey);
-                    if (value != null) {
-                      try (WindowStoreIterator<Set<String>> iterator =
-                             tagsStore.backwardFetch(tagKey,
-                               now.minusMillis(Duration.ofDays(7).toMillis()), now)) {
-                        if (iterator.hasNext()) {
-                          KeyValue<Long, Set<String>> current = iterator.next();
-                          if (!current.value.contains(value)) {
-                            current.value.add(value);
-                            tagsStore.put(tagKey, current.value, timestamp);
-                          }
-                        } else {
-                          Set<String> values = new LinkedHashSet<>();
-                          values.add(value);
-                          tagsStore.put(tagKey, values, timestamp);
-                        }
-                      }
-                    }
-                  });
+                    if (value != null) tags.add(tagKey, value, timestamp);
+                  }
                 }
               }
             }
 
             @Override public void close() {
+              // Names written behind are stored before tasks are closed, e.g. on rebalance
+              spanNames.flush();
+              remoteServiceNames.flush();
+              tags.flush();
             }
           },
           SPAN_NAMES_STORE_NAME,
           REMOTE_SERVICE_NAMES_STORE_NAME,
           AUTOCOMPLETE_TAGS_STORE_NAME);
+        // Partitions where each service had spans, and until when, keyed by service name. Trace
+        // searches by service name only query instances with partitions holding the service.
+        // In-memory as services are bounded, with logging enabled to build state
+        builder.addStateStore(Stores.keyValueStoreBuilder(
+          Stores.inMemoryKeyValueStore(SERVICE_PARTITIONS_STORE_NAME),
+          Serdes.String(),
+          partitionTimestampsSerde));
+        // Service names and when they were last seen, so service names are listed by scanning
+        // keys only. In-memory as services are bounded, with logging enabled to build state
+        builder.addStateStore(Stores.keyValueStoreBuilder(
+          Stores.inMemoryKeyValueStore(SERVICE_NAMES_STORE_NAME),
+          Serdes.String(),
+          Serdes.Long()));
+        spansStream
+          .flatTransform(() -> new Transformer<String, List<Span>,
+            Iterable<KeyValue<String, Map<Integer, Long>>>>() {
+            ProcessorContext context;
+            // Latest timestamp recorded by service, to record each service once per interval
+            Map<String, Long> recorded;
+
+            @Override public void init(ProcessorContext context) {
+              this.context = context;
+              recorded = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                  return size() > NAMES_CACHE_MAX_SIZE;
+                }
+              };
+            }
+
+            @Override
+            public Iterable<KeyValue<String, Map<Integer, Long>>> transform(String traceId,
+              List<Span> spans) {
+              List<KeyValue<String, Map<Integer, Long>>> records = new ArrayList<>();
+              long interval = SERVICE_PARTITIONS_INTERVAL.toMillis();
+              for (Span span : spans) {
+                String serviceName = span.localServiceName();
+                if (serviceName == null) continue;
+                long timestamp = span.timestampAsLong() == 0L
+                  ? context.timestamp()
+                  : MICROSECONDS.toMillis(span.timestampAsLong());
+                // Rounded up, so partitions are never considered older than they are
+                long until = timestamp - timestamp % interval + interval;
+                Long current = recorded.get(serviceName);
+                if (current != null && current >= until) continue;
+                recorded.put(serviceName, until);
+                records.add(KeyValue.pair(serviceName,
+                  Collections.singletonMap(context.partition(), until)));
+              }
+              return records;
+            }
+
+            @Override public void close() {
+            }
+          })
+          .repartition(Repartitioned.with(Serdes.String(), partitionTimestampsSerde)
+            .withName(SERVICE_PARTITIONS_STORE_NAME))
+          .process(() -> new Processor<String, Map<Integer, Long>>() {
+            KeyValueStore<String, Map<Integer, Long>> servicePartitions;
+            KeyValueStore<String, Long> serviceNames;
+
+            @Override public void init(ProcessorContext context) {
+              servicePartitions = context.getStateStore(SERVICE_PARTITIONS_STORE_NAME);
+              serviceNames = context.getStateStore(SERVICE_NAMES_STORE_NAME);
+              context.schedule(SERVICE_PARTITIONS_INTERVAL, PunctuationType.WALL_CLOCK_TIME,
+                this::evictExpiredServiceNames);
+            }
+
+            @Override public void process(String serviceName, Map<Integer, Long> timestamps) {
+              Map<Integer, Long> stored = servicePartitions.get(serviceName);
+              Map<Integer, Long> merged = stored == null ? new TreeMap<>() : stored;
+              boolean changed = false;
+              for (Map.Entry<Integer, Long> timestamp : timestamps.entrySet()) {
+                Long current = merged.get(timestamp.getKey());
+                if (current != null && current >= timestamp.getValue()) continue;
+                merged.put(timestamp.getKey(), timestamp.getValue());
+                changed = true;
+              }
+              if (changed) servicePartitions.put(serviceName, merged);
+              long lastSeen = Collections.max(timestamps.values());
+              Long storedLastSeen = serviceNames.get(serviceName);
+              if (storedLastSeen == null || storedLastSeen < lastSeen) {
+                serviceNames.put(serviceName, lastSeen);
+              }
+            }
+
+            /** Service names not seen within names lookback are not listed anymore. */
+            void evictExpiredServiceNames(long now) {
+              long from = now - NAMES_LOOKBACK.toMillis();
+              List<String> expired = new ArrayList<>();
+              try (KeyValueIterator<String, Long> all = serviceNames.all()) {
+                all.forEachRemaining(keyValue -> {
+                  if (keyValue.value < from) expired.add(keyValue.key);
+                });
+              }
+              for (String serviceName : expired) serviceNames.delete(serviceName);
+            }
+
+            @Override public void close() {
+            }
+          }, SERVICE_PARTITIONS_STORE_NAME, SERVICE_NAMES_STORE_NAME);
       }
     }
     return builder.build();
   }
+
+  StoreBuilder<WindowStore<String, String>> indexStoreBuilder(String name) {
+    return Stores.windowStoreBuilder(
+      Stores.persistentWindowStore(name, traceTtl, tracesWindowSize(), false),
+      Serdes.String(),
+      Serdes.String()).withLoggingDisabled();
+  }
+
+  /** Window size can't be larger than retention period. */
+  Duration tracesWindowSize() {
+    return traceTtl.compareTo(TRACES_WINDOW_SIZE) < 0 ? traceTtl : TRACES_WINDOW_SIZE;
+  }
+
+  /** Malformed records are skipped, as failing would stop the stream thread on every restart. */
+  List<KeyValue<String, List<Span>>> records(String key, byte[] value) {
+    try {
+      return PackedTraces.records(key, value);
+    } catch (RuntimeException e) {
+      malformedRecordsTotal.increment();
+      LOG.warn("Skipping malformed spans record keyed {}: {}", key, e.getMessage());
+      return Collections.emptyList();
+    }
+  }
+
+  static long sizeInBytes(List<Span> spans) {
+    long sizeInBytes = 0L;
+    for (Span span : spans) sizeInBytes += SpanBytesEncoder.PROTO3.sizeInBytes(span);
+    return sizeInBytes;
+  }
+
+  /**
+   * Span batches are keyed by trace ID and a fixed-width sequence (i.e. record offset), so all
+   * batches of a trace can be collected with a range scan between {@link #traceKeyFrom(String)}
+   * and {@link #traceKeyTo(String)}.
+   */
+  public static String traceKey(String traceId, long sequence) {
+    StringBuilder key = new StringBuilder(traceId.length() + 1 + TRACE_KEY_SEQUENCE_LENGTH)
+      .append(traceId)
+      .append(TRACE_KEY_DELIMITER);
+    String hex = Long.toHexString(sequence);
+    for (int i = hex.length(); i < TRACE_KEY_SEQUENCE_LENGTH; i++) key.append('0');
+    return key.append(hex).toString();
+  }
+
+  public static String traceKeyFrom(String traceId) {
+    return traceId + TRACE_KEY_DELIMITER;
+  }
+
+  public static String traceKeyTo(String traceId) {
+    return traceId + TRACE_KEY_DELIMITER + '\uffff';
+  }
+
+  /** Range scans could include batches from other traces, so keys have to be validated. */
+  public static boolean isTraceKey(String traceId, String key) {
+    int prefix = isStringTraceKey(key) ? 1 : 0;
+    int delimiter = prefix + traceId.length();
+    return key.length() == delimiter + 1 + TRACE_KEY_SEQUENCE_LENGTH
+      && key.startsWith(traceId, prefix)
+      && key.charAt(delimiter) == TRACE_KEY_DELIMITER;
+  }
+
+  /** Trace ID from a span batch key. Keys stored before sequence was included are trace IDs. */
+  public static String traceId(String key) {
+    int from = isStringTraceKey(key) ? 1 : 0;
+    int delimiter = key.indexOf(TRACE_KEY_DELIMITER);
+    return key.substring(from, delimiter < 0 ? key.length() : delimiter);
+  }
+
+  /** Span batch key as stored before trace IDs were binary, e.g. to scan them on migration. */
+  public static String stringTraceKey(String key) {
+    return TraceKeySerde.stringKey(key);
+  }
+
+  static boolean isStringTraceKey(String key) {
+    return !key.isEmpty() && key.charAt(0) == TraceKeySerde.STRING_KEY_PREFIX;
+  }
+
+  /**
+   * Index entries are keyed by term and trace ID, with trace ID as value, so all trace IDs indexed
+   * by a term (i.e. postings list) can be collected with a range scan between {@link
+   * #indexKeyFrom(String)} and {@link #indexKeyTo(String)}.
+   */
+  public static String indexKey(String term, String traceId) {
+    return term + INDEX_KEY_DELIMITER + traceId;
+  }
+
+  public static String indexKeyFrom(String term) {
+    return term + INDEX_KEY_DELIMITER;
+  }
+
+  public static String indexKeyTo(String term) {
+    return term + INDEX_KEY_DELIMITER + '\uffff';
+  }
+
+  /**
+   * Range scans could include entries from other terms starting with the same prefix (e.g. {@code
+   * svc|a} when scanning {@code svc}), so entries have to be validated.
+   */
+  public static boolean isIndexKey(String term, String key, String traceId) {
+    return key.equals(indexKey(term, traceId));
+  }
 }
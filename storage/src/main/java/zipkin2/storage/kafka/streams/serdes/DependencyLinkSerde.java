@@ -1,5 +1,5 @@
 /*
- * Copyright 2019 The OpenZipkin Authors
+ * Copyright 2019-2021 The OpenZipkin Authors
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
@@ -18,13 +18,29 @@ import org.apache.kafka.common.serialization.Serde;
 import org.apache.kafka.common.serialization.Serializer;
 import zipkin2.DependencyLink;
 import zipkin2.codec.DependencyLinkBytesDecoder;
-import zipkin2.codec.DependencyLinkBytesEncoder;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Dependency links encoded as: magic byte, version, varint length and UTF-8 bytes of parent and
+ * child, and varint call and error counts.
+ *
+ * <p>Links encoded as JSON (i.e. legacy format) are still readable.
+ */
 public final class DependencyLinkSerde implements Serde<DependencyLink> {
-  static final String KEY_PATTERN = "%s:%s";
+  static final char KEY_DELIMITER = ':';
+  // JSON starts with '{', so it can't be confused with legacy format
+  static final byte MAGIC = (byte) 0xFF;
+  static final byte VERSION = 1;
 
   public static String linkKey(DependencyLink link) {
-    return String.format(KEY_PATTERN, link.parent(), link.child());
+    String parent = link.parent();
+    String child = link.child();
+    return new StringBuilder(parent.length() + 1 + child.length())
+      .append(parent)
+      .append(KEY_DELIMITER)
+      .append(child)
+      .toString();
   }
 
   @Override public Serializer<DependencyLink> serializer() {
@@ -38,14 +54,46 @@ public final class DependencyLinkSerde implements Serde<DependencyLink> {
   static final class DependencyLinkDeserializer implements Deserializer<DependencyLink> {
     @Override public DependencyLink deserialize(String topic, byte[] data) {
       if (data == null) return null;
-      return DependencyLinkBytesDecoder.JSON_V1.decodeOne(data);
+      if (data.length == 0 || data[0] != MAGIC) {
+        return DependencyLinkBytesDecoder.JSON_V1.decodeOne(data);
+      }
+      int[] pos = {2};
+      int parentLength = Varints.readInt(data, pos);
+      String parent = new String(data, pos[0], parentLength, UTF_8);
+      pos[0] += parentLength;
+      int childLength = Varints.readInt(data, pos);
+      String child = new String(data, pos[0], childLength, UTF_8);
+      pos[0] += childLength;
+      return DependencyLink.newBuilder()
+        .parent(parent)
+        .child(child)
+        .callCount(Varints.read(data, pos))
+        .errorCount(Varints.read(data, pos))
+        .build();
     }
   }
 
   static final class DependencyLinkSerializer implements Serializer<DependencyLink> {
     @Override public byte[] serialize(String topic, DependencyLink data) {
       if (data == null) return null;
-      return DependencyLinkBytesEncoder.JSON_V1.encode(data);
+      byte[] parent = data.parent().getBytes(UTF_8);
+      byte[] child = data.child().getBytes(UTF_8);
+      byte[] result = new byte[2
+        + Varints.sizeOf(parent.length) + parent.length
+        + Varints.sizeOf(child.length) + child.length
+        + Varints.sizeOf(data.callCount())
+        + Varints.sizeOf(data.errorCount())];
+      result[0] = MAGIC;
+      result[1] = VERSION;
+      int pos = Varints.write(result, 2, parent.length);
+      System.arraycopy(parent, 0, result, pos, parent.length);
+      pos += parent.length;
+      pos = Varints.write(result, pos, child.length);
+      System.arraycopy(child, 0, result, pos, child.length);
+      pos += child.length;
+      pos = Varints.write(result, pos, data.callCount());
+      Varints.write(result, pos, data.errorCount());
+      return result;
     }
   }
 }
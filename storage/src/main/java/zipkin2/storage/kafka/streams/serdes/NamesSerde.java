@@ -1,5 +1,5 @@
 /*
- * Copyright 2019 The OpenZipkin Authors
+ * Copyright 2019-2021 The OpenZipkin Authors
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
@@ -14,15 +14,30 @@
 package zipkin2.storage.kafka.streams.serdes;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.TreeSet;
 import org.apache.kafka.common.serialization.Deserializer;
 import org.apache.kafka.common.serialization.Serde;
 import org.apache.kafka.common.serialization.Serializer;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+/**
+ * Set of names encoded as: magic byte, version, varint count, and sorted entries of varint length
+ * and UTF-8 bytes.
+ *
+ * <p>Entries are sorted by their UTF-8 bytes, so {@link #contains(byte[], String)} and {@link
+ * #insert(byte[], String)} work on encoded names without decoding them.
+ *
+ * <p>Names encoded as a {@code |}-delimited string (i.e. legacy format) are still readable.
+ */
 public final class NamesSerde implements Serde<Set<String>> {
+  // Not a valid UTF-8 byte, so legacy format can't start with it
+  static final byte MAGIC = (byte) 0xFF;
+  static final byte VERSION = 1;
+
   @Override public Serializer<Set<String>> serializer() {
     return new SpanNamesSerializer();
   }
@@ -33,16 +48,127 @@ public final class NamesSerde implements Serde<Set<String>> {
 
   static final class SpanNamesSerializer implements Serializer<Set<String>> {
     @Override public byte[] serialize(String topic, Set<String> data) {
-      String values = String.join("|", data);
-      return values.getBytes(UTF_8);
+      if (data == null) return null;
+      return encode(data);
     }
   }
 
   static final class SpanNamesDeserializer implements Deserializer<Set<String>> {
     @Override public Set<String> deserialize(String topic, byte[] data) {
-      String decoded = new String(data, UTF_8);
-      String[] values = decoded.split("\\|");
-      return new LinkedHashSet<>(Arrays.asList(values));
+      if (data == null) return null;
+      return decode(data);
+    }
+  }
+
+  public static byte[] encode(Collection<String> names) {
+    TreeSet<byte[]> sorted = new TreeSet<>(NamesSerde::compare);
+    for (String name : names) sorted.add(name.getBytes(UTF_8));
+    int size = 2 + Varints.sizeOf(sorted.size());
+    for (byte[] name : sorted) size += Varints.sizeOf(name.length) + name.length;
+    byte[] result = new byte[size];
+    result[0] = MAGIC;
+    result[1] = VERSION;
+    int pos = Varints.write(result, 2, sorted.size());
+    for (byte[] name : sorted) {
+      pos = Varints.write(result, pos, name.length);
+      System.arraycopy(name, 0, result, pos, name.length);
+      pos += name.length;
+    }
+    return result;
+  }
+
+  /** Decodes names, sorted, from current or legacy format. */
+  public static Set<String> decode(byte[] data) {
+    if (!isBinary(data)) return decodeLegacy(data);
+    int[] pos = {2};
+    int count = Varints.readInt(data, pos);
+    Set<String> names = new LinkedHashSet<>();
+    for (int i = 0; i < count; i++) {
+      int length = Varints.readInt(data, pos);
+      names.add(new String(data, pos[0], length, UTF_8));
+      pos[0] += length;
+    }
+    return names;
+  }
+
+  /** Checks if a name is encoded, stopping once past its sorted position. */
+  public static boolean contains(byte[] data, String name) {
+    if (!isBinary(data)) return decodeLegacy(data).contains(name);
+    return search(data, name.getBytes(UTF_8)) < 0;
+  }
+
+  /**
+   * Adds a name in its sorted position, copying encoded names only if the name is new.
+   *
+   * @return same data if name is already encoded, or a new array with the name included. Legacy
+   * format is converted to the current format.
+   */
+  public static byte[] insert(byte[] data, String name) {
+    if (!isBinary(data)) {
+      Set<String> names = decodeLegacy(data);
+      names.add(name);
+      return encode(names);
+    }
+    byte[] bytes = name.getBytes(UTF_8);
+    int pos = search(data, bytes);
+    if (pos < 0) return data;
+    int[] countPos = {2};
+    int count = Varints.readInt(data, countPos);
+    int entriesPos = countPos[0];
+    int countSize = Varints.sizeOf(count + 1);
+    int entrySize = Varints.sizeOf(bytes.length) + bytes.length;
+    byte[] result = new byte[2 + countSize + data.length - entriesPos + entrySize];
+    result[0] = MAGIC;
+    result[1] = VERSION;
+    int resultPos = Varints.write(result, 2, count + 1);
+    // Entries before, then the new entry, then entries after
+    System.arraycopy(data, entriesPos, result, resultPos, pos - entriesPos);
+    resultPos += pos - entriesPos;
+    resultPos = Varints.write(result, resultPos, bytes.length);
+    System.arraycopy(bytes, 0, result, resultPos, bytes.length);
+    resultPos += bytes.length;
+    System.arraycopy(data, pos, result, resultPos, data.length - pos);
+    return result;
+  }
+
+  /**
+   * @return {@code -1} if name is found, or the position of the entry to insert it before (i.e.
+   * data length if it is the last).
+   */
+  static int search(byte[] data, byte[] name) {
+    int[] pos = {2};
+    int count = Varints.readInt(data, pos);
+    for (int i = 0; i < count; i++) {
+      int entryPos = pos[0];
+      int length = Varints.readInt(data, pos);
+      int cmp = compare(data, pos[0], length, name, 0, name.length);
+      if (cmp == 0) return -1;
+      if (cmp > 0) return entryPos;
+      pos[0] += length;
+    }
+    return pos[0];
+  }
+
+  static boolean isBinary(byte[] data) {
+    return data.length >= 3 && data[0] == MAGIC;
+  }
+
+  static Set<String> decodeLegacy(byte[] data) {
+    String decoded = new String(data, UTF_8);
+    String[] values = decoded.split("\\|");
+    return new LinkedHashSet<>(Arrays.asList(values));
+  }
+
+  static int compare(byte[] a, byte[] b) {
+    return compare(a, 0, a.length, b, 0, b.length);
+  }
+
+  static int compare(byte[] a, int aPos, int aLength, byte[] b, int bPos, int bLength) {
+    int length = Math.min(aLength, bLength);
+    for (int i = 0; i < length; i++) {
+      int cmp = (a[aPos + i] & 0xff) - (b[bPos + i] & 0xff);
+      if (cmp != 0) return cmp;
     }
+    return aLength - bLength;
   }
 }
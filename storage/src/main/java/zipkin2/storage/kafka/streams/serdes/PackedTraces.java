@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams.serdes;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.streams.KeyValue;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+
+/**
+ * Traces sent on a single record, e.g. all traces of a span batch bound to the same partition,
+ * encoded as entries of: tag {@code 0x12}, varint entry length, varint trace ID length, trace ID
+ * and PROTO3 {@code ListOfSpans} of the trace.
+ *
+ * <p>Entries are a length-delimited field 2, so packed records are told apart from a {@code
+ * ListOfSpans} (i.e. field 1 entries) by their first byte. PROTO3 decoders unaware of packing skip
+ * the unknown field and find no spans, instead of mixing spans of different traces.
+ */
+public final class PackedTraces {
+  static final byte PACKED_TRACE_KEY = (2 << 3) | 2;
+
+  public static boolean isPacked(byte[] data) {
+    return data != null && data.length > 0 && data[0] == PACKED_TRACE_KEY;
+  }
+
+  /** Packs PROTO3 encoded spans by trace ID, as copied from their {@code ListOfSpans}. */
+  public static byte[] pack(Map<String, byte[]> traces) {
+    List<byte[]> traceIds = new ArrayList<>(traces.size());
+    int size = 0;
+    for (Map.Entry<String, byte[]> trace : traces.entrySet()) {
+      byte[] traceId = trace.getKey().getBytes(StandardCharsets.UTF_8);
+      traceIds.add(traceId);
+      int entrySize = Varints.sizeOf(traceId.length) + traceId.length + trace.getValue().length;
+      size += 1 + Varints.sizeOf(entrySize) + entrySize;
+    }
+    byte[] result = new byte[size];
+    int pos = 0, i = 0;
+    for (byte[] spans : traces.values()) {
+      byte[] traceId = traceIds.get(i++);
+      int entrySize = Varints.sizeOf(traceId.length) + traceId.length + spans.length;
+      result[pos++] = PACKED_TRACE_KEY;
+      pos = Varints.write(result, pos, entrySize);
+      pos = Varints.write(result, pos, traceId.length);
+      System.arraycopy(traceId, 0, result, pos, traceId.length);
+      pos += traceId.length;
+      System.arraycopy(spans, 0, result, pos, spans.length);
+      pos += spans.length;
+    }
+    return result;
+  }
+
+  /** Decodes spans by trace ID, in the order they were packed. */
+  public static Map<String, List<Span>> unpack(byte[] data) {
+    Map<String, List<Span>> traces = new LinkedHashMap<>();
+    int[] pos = {0};
+    while (pos[0] < data.length) {
+      if (data[pos[0]++] != PACKED_TRACE_KEY) {
+        throw new IllegalArgumentException("Malformed packed traces");
+      }
+      int entrySize = Varints.readInt(data, pos);
+      int entryEnd = pos[0] + entrySize;
+      int traceIdLength = Varints.readInt(data, pos);
+      if (entryEnd > data.length || pos[0] + traceIdLength > entryEnd) {
+        throw new IllegalArgumentException("Truncated packed trace");
+      }
+      String traceId = new String(data, pos[0], traceIdLength, StandardCharsets.UTF_8);
+      pos[0] += traceIdLength;
+      List<Span> spans =
+        SpanBytesDecoder.PROTO3.decodeList(ByteBuffer.wrap(data, pos[0], entryEnd - pos[0]));
+      traces.computeIfAbsent(traceId, k -> new ArrayList<>()).addAll(spans);
+      pos[0] = entryEnd;
+    }
+    return traces;
+  }
+
+  /**
+   * Records keyed by trace ID from a spans topic record, either packed or a {@code ListOfSpans}
+   * keyed by trace ID.
+   */
+  public static List<KeyValue<String, List<Span>>> records(String key, byte[] value) {
+    if (!isPacked(value)) {
+      List<Span> spans =
+        value == null ? new ArrayList<>() : SpanBytesDecoder.PROTO3.decodeList(value);
+      return Collections.singletonList(KeyValue.pair(key, spans));
+    }
+    Map<String, List<Span>> traces = unpack(value);
+    List<KeyValue<String, List<Span>>> records = new ArrayList<>(traces.size());
+    traces.forEach((traceId, spans) -> records.add(KeyValue.pair(traceId, spans)));
+    return Collections.unmodifiableList(records);
+  }
+
+  PackedTraces() {
+  }
+}
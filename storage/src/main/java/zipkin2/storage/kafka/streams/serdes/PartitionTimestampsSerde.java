@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams.serdes;
+
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Timestamps by partition (e.g. until when a service had spans on each partition) encoded as:
+ * varint count, and entries of varint partition and varint timestamp, sorted by partition.
+ */
+public final class PartitionTimestampsSerde implements Serde<Map<Integer, Long>> {
+
+  @Override public Serializer<Map<Integer, Long>> serializer() {
+    return new PartitionTimestampsSerializer();
+  }
+
+  @Override public Deserializer<Map<Integer, Long>> deserializer() {
+    return new PartitionTimestampsDeserializer();
+  }
+
+  static final class PartitionTimestampsSerializer implements Serializer<Map<Integer, Long>> {
+    @Override public byte[] serialize(String topic, Map<Integer, Long> data) {
+      if (data == null) return null;
+      return encode(data);
+    }
+  }
+
+  static final class PartitionTimestampsDeserializer implements Deserializer<Map<Integer, Long>> {
+    @Override public Map<Integer, Long> deserialize(String topic, byte[] data) {
+      if (data == null) return null;
+      return decode(data);
+    }
+  }
+
+  public static byte[] encode(Map<Integer, Long> timestamps) {
+    TreeMap<Integer, Long> sorted = new TreeMap<>(timestamps);
+    int size = Varints.sizeOf(sorted.size());
+    for (Map.Entry<Integer, Long> entry : sorted.entrySet()) {
+      size += Varints.sizeOf(entry.getKey()) + Varints.sizeOf(entry.getValue());
+    }
+    byte[] result = new byte[size];
+    int pos = Varints.write(result, 0, sorted.size());
+    for (Map.Entry<Integer, Long> entry : sorted.entrySet()) {
+      pos = Varints.write(result, pos, entry.getKey());
+      pos = Varints.write(result, pos, entry.getValue());
+    }
+    return result;
+  }
+
+  /** Decodes timestamps, sorted by partition. */
+  public static Map<Integer, Long> decode(byte[] data) {
+    int[] pos = {0};
+    int count = Varints.readInt(data, pos);
+    Map<Integer, Long> timestamps = new TreeMap<>();
+    for (int i = 0; i < count; i++) {
+      int partition = Varints.readInt(data, pos);
+      timestamps.put(partition, Varints.read(data, pos));
+    }
+    return timestamps;
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams.serdes;
+
+import java.nio.charset.StandardCharsets;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Trace IDs, as lower-hex strings, encoded when binary as {@link #BINARY_FORMAT} followed by 8 or
+ * 16 bytes, or as UTF-8 strings otherwise (i.e. as {@code Serdes.String()}).
+ *
+ * <p>Both forms are decoded, so keys written before or after changing forms are read. Forms are
+ * told apart by the first byte: {@link #BINARY_FORMAT} is never part of UTF-8 strings.
+ */
+public final class TraceIdSerde implements Serde<String> {
+  /** First byte of binary trace IDs and keys, as it is not a valid UTF-8 byte. */
+  public static final byte BINARY_FORMAT = (byte) 0xff;
+  static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  final boolean binary;
+
+  public TraceIdSerde(boolean binary) {
+    this.binary = binary;
+  }
+
+  @Override public Serializer<String> serializer() {
+    return new TraceIdSerializer(binary);
+  }
+
+  @Override public Deserializer<String> deserializer() {
+    return new TraceIdDeserializer();
+  }
+
+  static final class TraceIdSerializer implements Serializer<String> {
+    final boolean binary;
+
+    TraceIdSerializer(boolean binary) {
+      this.binary = binary;
+    }
+
+    @Override public byte[] serialize(String topic, String traceId) {
+      if (traceId == null) return null;
+      return binary ? encode(traceId) : traceId.getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  static final class TraceIdDeserializer implements Deserializer<String> {
+    @Override public String deserialize(String topic, byte[] data) {
+      if (data == null) return null;
+      return decode(data, 0, data.length);
+    }
+  }
+
+  /** Encodes a 16 or 32 lower-hex trace ID as 8 or 16 bytes, or as UTF-8 if not hex. */
+  public static byte[] encode(String traceId) {
+    if (!isBinary(traceId)) return traceId.getBytes(StandardCharsets.UTF_8);
+    byte[] result = new byte[1 + traceId.length() / 2];
+    result[0] = BINARY_FORMAT;
+    write(traceId, result, 1);
+    return result;
+  }
+
+  /** Decodes a trace ID of either form. */
+  public static String decode(byte[] data, int pos, int length) {
+    if (length > 0 && data[pos] == BINARY_FORMAT && isBinaryLength(length - 1)) {
+      return hex(data, pos + 1, length - 1);
+    }
+    return new String(data, pos, length, StandardCharsets.UTF_8);
+  }
+
+  static String hex(byte[] data, int pos, int length) {
+    char[] hex = new char[length * 2];
+    for (int i = pos, j = 0; i < pos + length; i++) {
+      hex[j++] = HEX_DIGITS[(data[i] >> 4) & 0xf];
+      hex[j++] = HEX_DIGITS[data[i] & 0xf];
+    }
+    return new String(hex);
+  }
+
+  /** Trace IDs encoded as bytes when binary. Others are encoded as strings in either form. */
+  public static boolean isBinary(String traceId) {
+    return (traceId.length() == 16 || traceId.length() == 32) && isHex(traceId);
+  }
+
+  static boolean isBinaryLength(int length) {
+    return length == 8 || length == 16;
+  }
+
+  /** Writes a lower-hex trace ID as bytes at {@code pos}, returning the position after it. */
+  static int write(String traceId, byte[] data, int pos) {
+    for (int i = 0; i < traceId.length(); i += 2) {
+      data[pos++] = (byte) ((digit(traceId.charAt(i)) << 4) | digit(traceId.charAt(i + 1)));
+    }
+    return pos;
+  }
+
+  static boolean isHex(String traceId) {
+    for (int i = 0; i < traceId.length(); i++) {
+      if (digit(traceId.charAt(i)) < 0) return false;
+    }
+    return true;
+  }
+
+  static int digit(char c) {
+    if (c >= '0' && c <= '9') return c - '0';
+    if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+    return -1;
+  }
+}
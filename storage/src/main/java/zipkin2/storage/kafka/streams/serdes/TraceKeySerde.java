@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams.serdes;
+
+import java.nio.charset.StandardCharsets;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Keys of span batches on the traces store (i.e. trace ID and sequence, as {@code traceId:seq}
+ * with a 16 lower-hex sequence) encoded, when binary, as: {@link TraceIdSerde#BINARY_FORMAT}, trace
+ * ID length byte (8 or 16), trace ID bytes and 8 bytes of sequence, big-endian. Otherwise encoded
+ * as UTF-8 strings.
+ *
+ * <p>Binary keys keep the order of string keys within a trace, so all batches of a trace are found
+ * with a range scan from {@code traceId:} (i.e. no sequence) to {@code traceId:\uffff} (i.e. all
+ * sequence bytes set). Keys without sequence are encoded without sequence bytes. Binary keys start
+ * with {@link TraceIdSerde#BINARY_FORMAT}, which is never part of UTF-8 strings, so forms are not
+ * mistaken for one another and ranges of either form don't overlap.
+ *
+ * <p>Both forms are decoded. Keys stored as strings while binary are decoded prefixed by {@link
+ * #STRING_KEY_PREFIX}, so they are encoded back as strings (e.g. when deleted), and can be
+ * queried with {@link #stringKey(String)}.
+ */
+public final class TraceKeySerde implements Serde<String> {
+  public static final char STRING_KEY_PREFIX = '\u0000';
+  static final char DELIMITER = ':';
+  static final int SEQUENCE_LENGTH = 8;
+
+  final boolean binary;
+
+  public TraceKeySerde(boolean binary) {
+    this.binary = binary;
+  }
+
+  @Override public Serializer<String> serializer() {
+    return new TraceKeySerializer(binary);
+  }
+
+  @Override public Deserializer<String> deserializer() {
+    return new TraceKeyDeserializer(binary);
+  }
+
+  /** Key queried as stored before keys were binary. */
+  public static String stringKey(String key) {
+    return STRING_KEY_PREFIX + key;
+  }
+
+  static final class TraceKeySerializer implements Serializer<String> {
+    final boolean binary;
+
+    TraceKeySerializer(boolean binary) {
+      this.binary = binary;
+    }
+
+    @Override public byte[] serialize(String topic, String key) {
+      if (key == null) return null;
+      if (!key.isEmpty() && key.charAt(0) == STRING_KEY_PREFIX) {
+        return key.substring(1).getBytes(StandardCharsets.UTF_8);
+      }
+      if (binary) {
+        byte[] encoded = encode(key);
+        if (encoded != null) return encoded;
+      }
+      return key.getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  static final class TraceKeyDeserializer implements Deserializer<String> {
+    final boolean binary;
+
+    TraceKeyDeserializer(boolean binary) {
+      this.binary = binary;
+    }
+
+    @Override public String deserialize(String topic, byte[] data) {
+      if (data == null) return null;
+      String decoded = decode(data);
+      if (decoded != null) return decoded;
+      String key = new String(data, StandardCharsets.UTF_8);
+      return binary ? stringKey(key) : key;
+    }
+  }
+
+  /** @return binary key, or {@code null} if the trace ID or sequence are not hex. */
+  static byte[] encode(String key) {
+    int delimiter = key.indexOf(DELIMITER);
+    String traceId = delimiter < 0 ? key : key.substring(0, delimiter);
+    if (!TraceIdSerde.isBinary(traceId)) return null;
+    String sequence = delimiter < 0 ? "" : key.substring(delimiter + 1);
+    boolean upperBound = sequence.length() == 1 && sequence.charAt(0) == '\uffff';
+    if (!sequence.isEmpty() && !upperBound
+      && (sequence.length() != SEQUENCE_LENGTH * 2 || !TraceIdSerde.isHex(sequence))) {
+      return null;
+    }
+    int traceIdLength = traceId.length() / 2;
+    byte[] result = new byte[2 + traceIdLength + (sequence.isEmpty() ? 0 : SEQUENCE_LENGTH)];
+    result[0] = TraceIdSerde.BINARY_FORMAT;
+    result[1] = (byte) traceIdLength;
+    int pos = TraceIdSerde.write(traceId, result, 2);
+    if (upperBound) {
+      for (int i = pos; i < result.length; i++) result[i] = (byte) 0xff;
+    } else if (!sequence.isEmpty()) {
+      TraceIdSerde.write(sequence, result, pos);
+    }
+    return result;
+  }
+
+  /** @return string key, or {@code null} if not binary. */
+  static String decode(byte[] data) {
+    if (data.length < 2 || data[0] != TraceIdSerde.BINARY_FORMAT
+      || !TraceIdSerde.isBinaryLength(data[1])) {
+      return null;
+    }
+    int traceIdLength = data[1];
+    boolean withSequence = data.length == 2 + traceIdLength + SEQUENCE_LENGTH;
+    if (!withSequence && data.length != 2 + traceIdLength) return null;
+    String traceId = TraceIdSerde.hex(data, 2, traceIdLength);
+    if (!withSequence) return traceId;
+    return traceId + DELIMITER + TraceIdSerde.hex(data, 2 + traceIdLength, SEQUENCE_LENGTH);
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams.serdes;
+
+/** Unsigned base 128 varints, as used by protocol buffers, for binary serdes. */
+public final class Varints {
+
+  public static int sizeOf(long value) {
+    int size = 1;
+    while ((value & ~0x7fL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  /** Writes a varint at {@code pos}, returning the position after it. */
+  public static int write(byte[] data, int pos, long value) {
+    while ((value & ~0x7fL) != 0) {
+      data[pos++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    data[pos++] = (byte) value;
+    return pos;
+  }
+
+  /** Reads a varint at {@code pos[0]}, moving it after the varint. */
+  public static long read(byte[] data, int[] pos) {
+    long value = 0L;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (pos[0] >= data.length) throw new IllegalArgumentException("Truncated varint");
+      byte b = data[pos[0]++];
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+
+  public static int readInt(byte[] data, int[] pos) {
+    long value = read(data, pos);
+    if (value < 0 || value > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Malformed varint: " + value + " is not an int");
+    }
+    return (int) value;
+  }
+
+  Varints() {
+  }
+}
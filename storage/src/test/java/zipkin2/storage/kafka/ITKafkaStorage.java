@@ -158,7 +158,7 @@ class ITKafkaStorage {
     final SpanConsumer spanConsumer = storage.spanConsumer();
     // When: are consumed by storage
     spanConsumer.accept(Arrays.asList(parent, child)).execute();
-    storage.getProducer().flush();
+    storage.getProducers().flush();
     // Then: they are partitioned
     IntegrationTestUtils.waitUntilMinRecordsReceived(
       consumerConfig, storageBuilder.spanPartitioning.spansTopic, 1, 10000);
@@ -171,7 +171,7 @@ class ITKafkaStorage {
       .build();
     // When: published
     spanConsumer.accept(Collections.singletonList(another)).execute();
-    storage.getProducer().flush();
+    storage.getProducers().flush();
     // Then: a trace is published
     IntegrationTestUtils.waitUntilMinRecordsReceived(
       consumerConfig, storageBuilder.spanAggregation.spansTopic, 1, 10000);
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+import zipkin2.Callback;
+import zipkin2.storage.kafka.KafkaSpanConsumer.KafkaProducerCall;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class KafkaProducerCallTest {
+  MockProducer<String, byte[]> producer =
+    new MockProducer<>(false, new StringSerializer(), new ByteArraySerializer());
+  MeterRegistry registry = new SimpleMeterRegistry();
+  IngestAdmission admission = new IngestAdmission(1024, 4, registry);
+  List<ProducerRecord<String, byte[]>> records = Arrays.asList(
+    new ProducerRecord<>("zipkin-spans", "a", new byte[] {1}),
+    new ProducerRecord<>("zipkin-spans", "b", new byte[] {2}),
+    new ProducerRecord<>("zipkin-spans", "c", new byte[] {3}));
+  AtomicReference<Object> result = new AtomicReference<>();
+  Callback<Void> callback = new Callback<Void>() {
+    @Override public void onSuccess(Void value) {
+      result.set("success");
+    }
+
+    @Override public void onError(Throwable t) {
+      result.set(t);
+    }
+  };
+
+  @Test void enqueue_completesOnceAllRecordsAreAcknowledged() {
+    KafkaProducerCall.create(stripes(), admission, records).enqueue(callback);
+
+    assertThat(producer.history()).hasSize(3);
+    producer.completeNext();
+    producer.completeNext();
+    assertThat(result).hasValue(null);
+    producer.completeNext();
+    assertThat(result).hasValue("success");
+  }
+
+  @Test void enqueue_failsWithFirstError() {
+    KafkaProducerCall.create(stripes(), admission, records).enqueue(callback);
+
+    RuntimeException first = new RuntimeException("first");
+    producer.completeNext();
+    producer.errorNext(first);
+    producer.errorNext(new RuntimeException("second"));
+    assertThat(result).hasValue(first);
+  }
+
+  @Test void execute_blocksOnceForAllRecords() throws Exception {
+    producer = new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer());
+
+    KafkaProducerCall.create(stripes(), admission, records).execute();
+
+    assertThat(producer.history()).hasSize(3);
+  }
+
+  @Test void execute_throwsOnError() {
+    producer = new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer());
+    RuntimeException error = new RuntimeException("closed");
+    producer.sendException = error;
+
+    assertThatThrownBy(() -> KafkaProducerCall.create(stripes(), admission, records).execute())
+      .isSameAs(error);
+  }
+
+  @Test void enqueue_shedsBatchesOverBudget() {
+    KafkaProducerCall.create(stripes(), admission, records).enqueue(callback);
+    assertThat(gauge("inflight.records")).isEqualTo(3.0);
+    assertThat(gauge("inflight.bytes")).isEqualTo(6.0);
+
+    KafkaProducerCall.create(stripes(), admission, records).enqueue(callback);
+
+    assertThat(result.get()).isInstanceOf(RejectedExecutionException.class);
+    assertThat(producer.history()).hasSize(3);
+    assertThat(registry.get("zipkin.storage.kafka.partitioning.shed.batches").counter().count())
+      .isEqualTo(1.0);
+    assertThat(registry.get("zipkin.storage.kafka.partitioning.shed.records").counter().count())
+      .isEqualTo(3.0);
+  }
+
+  @Test void enqueue_releasesBudgetOnceAcknowledged() {
+    KafkaProducerCall.create(stripes(), admission, records).enqueue(callback);
+    producer.completeNext();
+    producer.completeNext();
+    producer.errorNext(new RuntimeException("timeout"));
+
+    assertThat(gauge("inflight.records")).isZero();
+    assertThat(gauge("inflight.bytes")).isZero();
+    KafkaProducerCall.create(stripes(), admission, records).enqueue(callback);
+    assertThat(producer.history()).hasSize(6);
+  }
+
+  @Test void enqueue_admitsBatchOverWholeBudget_whenIdle() {
+    admission = new IngestAdmission(1, 1, registry);
+
+    KafkaProducerCall.create(stripes(), admission, records).enqueue(callback);
+
+    assertThat(producer.history()).hasSize(3);
+  }
+
+  @Test void enqueue_sendsEachPartitionByItsProducer() {
+    MockProducer<String, byte[]> other =
+      new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer());
+    producer = new MockProducer<>(true, new StringSerializer(), new ByteArraySerializer());
+    ProducerStripes stripes = new ProducerStripes(Arrays.asList(producer, other), registry);
+    records = Arrays.asList(
+      new ProducerRecord<>("zipkin-spans", 0, "a", new byte[] {1}),
+      new ProducerRecord<>("zipkin-spans", 1, "b", new byte[] {2}),
+      new ProducerRecord<>("zipkin-spans", 2, "c", new byte[] {3}));
+
+    KafkaProducerCall.create(stripes, admission, records).enqueue(callback);
+
+    assertThat(producer.history()).extracting(ProducerRecord::key).containsExactly("a", "c");
+    assertThat(other.history()).extracting(ProducerRecord::key).containsExactly("b");
+    assertThat(result).hasValue("success");
+    assertThat(registry.find("zipkin.storage.kafka.partitioning.producer.record.send.rate")
+      .tag("producer", "1").gauge()).isNotNull();
+  }
+
+  @Test void admissionClose_removesMeters() {
+    admission.close();
+
+    assertThat(registry.getMeters()).isEmpty();
+  }
+
+  ProducerStripes stripes() {
+    return new ProducerStripes(Collections.singletonList(producer), registry);
+  }
+
+  double gauge(String name) {
+    return registry.get("zipkin.storage.kafka.partitioning." + name).gauge().value();
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import zipkin2.Call;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.kafka.streams.serdes.Varints;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class Proto3SpansTest {
+  Span a1 = Span.newBuilder().traceId("a").id("1").name("op_a")
+    .localEndpoint(Endpoint.newBuilder().serviceName("svc_a").build())
+    .timestamp(10000L).duration(11L)
+    .putTag("environment", "dev")
+    .build();
+  Span b1 = a1.toBuilder().traceId("463ac35c9f6413ad48485a3953bb6124").id("2").build();
+  Span a2 = a1.toBuilder().id("3").parentId("1").shared(true).build();
+
+  @Test void groupByTraceId() {
+    byte[] bytes = SpanBytesEncoder.PROTO3.encodeList(Arrays.asList(a1, b1, a2));
+
+    Map<String, byte[]> grouped = Proto3Spans.groupByTraceId(bytes);
+
+    assertThat(grouped).containsOnlyKeys(a1.traceId(), b1.traceId());
+    assertThat(SpanBytesDecoder.PROTO3.decodeList(grouped.get(a1.traceId())))
+      .containsExactly(a1, a2);
+    assertThat(SpanBytesDecoder.PROTO3.decodeList(grouped.get(b1.traceId())))
+      .containsExactly(b1);
+  }
+
+  @Test void groupByTraceId_dropsSpansReceived() throws Exception {
+    SpanDeduplicator deduplicator =
+      new SpanDeduplicator(Duration.ofMinutes(1), 1000, 0.001, new SimpleMeterRegistry());
+    SpanDeduplicator.Batch sent = deduplicator.newBatch();
+    Proto3Spans.groupByTraceId(SpanBytesEncoder.PROTO3.encodeList(Arrays.asList(a1, b1)), sent);
+    sent.recordOnSuccess(Call.create(null)).execute();
+    // Same span ID, but a different span as shared
+    Span a1Shared = a1.toBuilder().shared(true).build();
+    byte[] bytes = SpanBytesEncoder.PROTO3.encodeList(Arrays.asList(a1, a2, b1, a1Shared));
+
+    Map<String, byte[]> grouped = Proto3Spans.groupByTraceId(bytes, deduplicator.newBatch());
+
+    assertThat(grouped).containsOnlyKeys(a1.traceId());
+    assertThat(SpanBytesDecoder.PROTO3.decodeList(grouped.get(a1.traceId())))
+      .containsExactly(a2, a1Shared);
+  }
+
+  @Test void groupByTraceId_dropsSpansReceived_longDuration() throws Exception {
+    SpanDeduplicator deduplicator =
+      new SpanDeduplicator(Duration.ofMinutes(1), 1000, 0.001, new SimpleMeterRegistry());
+    // 64-bit duration and timestamp in microseconds since epoch, read while looking up span IDs
+    Span span = a1.toBuilder().timestamp(1600000000000000L).duration(4_000_000_000L).build();
+    byte[] bytes = SpanBytesEncoder.PROTO3.encodeList(Collections.singletonList(span));
+    SpanDeduplicator.Batch sent = deduplicator.newBatch();
+
+    assertThat(Proto3Spans.groupByTraceId(bytes, sent)).containsOnlyKeys(span.traceId());
+    sent.recordOnSuccess(Call.create(null)).execute();
+
+    assertThat(Proto3Spans.groupByTraceId(bytes, deduplicator.newBatch())).isEmpty();
+    assertThat(Proto3Spans.groupByTraceId(durationFirst(span), deduplicator.newBatch())).isEmpty();
+  }
+
+  @Test void groupByTraceId_shortensTraceIdWithZeroHighBits() {
+    byte[] encoded = SpanBytesEncoder.PROTO3.encodeList(Collections.singletonList(a1));
+    // Re-encode trace ID field as 16 bytes: span tag, span length, trace ID tag, trace ID length
+    assertThat(encoded[2]).isEqualTo((byte) 0x0a);
+    assertThat(encoded[3]).isEqualTo((byte) 8);
+    byte[] bytes = new byte[encoded.length + 8];
+    bytes[0] = encoded[0];
+    bytes[1] = (byte) (encoded[1] + 8);
+    bytes[2] = 0x0a;
+    bytes[3] = 16;
+    System.arraycopy(encoded, 4, bytes, 12, encoded.length - 4);
+
+    Map<String, byte[]> grouped = Proto3Spans.groupByTraceId(bytes);
+
+    List<Span> decoded = SpanBytesDecoder.PROTO3.decodeList(bytes);
+    assertThat(grouped).containsOnlyKeys(decoded.get(0).traceId());
+    assertThat(grouped).containsOnlyKeys(a1.traceId());
+  }
+
+  /** Fields can be encoded in any order, e.g. 64-bit duration before trace ID. */
+  @Test void groupByTraceId_fieldsInAnyOrder() {
+    Span span = a1.toBuilder().timestamp(1600000000000000L).duration(40_000_000_000L).build();
+    byte[] bytes = durationFirst(span);
+
+    Map<String, byte[]> grouped = Proto3Spans.groupByTraceId(bytes);
+
+    assertThat(grouped).containsOnlyKeys(span.traceId());
+    assertThat(SpanBytesDecoder.PROTO3.decodeList(grouped.get(span.traceId())))
+      .containsExactly(span);
+  }
+
+  @Test void groupByTraceId_malformed() {
+    byte[] bytes = SpanBytesEncoder.PROTO3.encodeList(Collections.singletonList(a1));
+
+    assertThatThrownBy(() -> Proto3Spans.groupByTraceId(Arrays.copyOf(bytes, bytes.length - 1)))
+      .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> Proto3Spans.groupByTraceId(new byte[] {0x0a, 2, 0x10, 1}))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Span missing trace ID");
+  }
+
+  @Test void encodeTraces_roundTrip() {
+    List<List<Span>> traces = Arrays.asList(Arrays.asList(a1, a2), Collections.singletonList(b1));
+
+    assertThat(Proto3Spans.decodeTraces(Proto3Spans.encodeTraces(traces)))
+      .containsExactlyElementsOf(traces);
+  }
+
+  @Test void encodeTraces_large() {
+    Span large = a1.toBuilder().putTag("error", new String(new char[300]).replace('\0', 'x')).build();
+    List<List<Span>> traces = Arrays.asList(Collections.singletonList(large), Arrays.asList(a1, a2));
+
+    assertThat(Proto3Spans.decodeTraces(Proto3Spans.encodeTraces(traces)))
+      .containsExactlyElementsOf(traces);
+  }
+
+  @Test void encodeTraces_empty() {
+    assertThat(Proto3Spans.encodeTraces(Collections.emptyList())).isEmpty();
+    assertThat(Proto3Spans.decodeTraces(new byte[0])).isEmpty();
+  }
+
+  @Test void decodeTraces_malformed() {
+    byte[] bytes = Proto3Spans.encodeTraces(Collections.singletonList(Arrays.asList(a1, a2)));
+
+    assertThatThrownBy(() -> Proto3Spans.decodeTraces(Arrays.copyOf(bytes, bytes.length - 1)))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  /** Encodes a span with its duration field (7, varint) moved before all other fields. */
+  static byte[] durationFirst(Span span) {
+    byte[] list = SpanBytesEncoder.PROTO3.encodeList(
+      Collections.singletonList(span.toBuilder().duration(null).build()));
+    int[] pos = {1};
+    int length = Varints.readInt(list, pos);
+    int spanLength = 1 + Varints.sizeOf(span.durationAsLong()) + length;
+    byte[] result = new byte[1 + Varints.sizeOf(spanLength) + spanLength];
+    result[0] = list[0];
+    int resultPos = Varints.write(result, 1, spanLength);
+    result[resultPos++] = (7 << 3) | Proto3Spans.WIRETYPE_VARINT;
+    resultPos = Varints.write(result, resultPos, span.durationAsLong());
+    System.arraycopy(list, pos[0], result, resultPos, length);
+    return result;
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class QueryCacheTest {
+  MeterRegistry registry = new SimpleMeterRegistry();
+  AtomicLong nanoTime = new AtomicLong();
+  QueryCache cache = new QueryCache(Duration.ofSeconds(30), 2, registry, nanoTime::get);
+  AtomicInteger calls = new AtomicInteger();
+
+  @Test void keepsResultsUntilTtl() throws IOException {
+    assertThat(cache.call("serviceNames", "", names("svc_a")).execute()).containsExactly("svc_a");
+    assertThat(cache.call("serviceNames", "", names("svc_b")).execute()).containsExactly("svc_a");
+    assertThat(calls).hasValue(1);
+
+    nanoTime.addAndGet(Duration.ofSeconds(30).toNanos());
+
+    assertThat(cache.call("serviceNames", "", names("svc_b")).execute()).containsExactly("svc_b");
+    assertThat(calls).hasValue(2);
+    assertThat(count("hits")).isEqualTo(1.0);
+    assertThat(count("misses")).isEqualTo(2.0);
+  }
+
+  @Test void coalescesRunningQueries() throws IOException {
+    CompletableFuture<List<String>> result = new CompletableFuture<>();
+    CompletableFuture<List<String>> first = new CompletableFuture<>();
+    CompletableFuture<List<String>> second = new CompletableFuture<>();
+
+    cache.call("spanNames", "svc_a", call(result)).enqueue(callback(first));
+    cache.call("spanNames", "svc_a", call(result)).enqueue(callback(second));
+    result.complete(Arrays.asList("op_a"));
+
+    assertThat(first.join()).containsExactly("op_a");
+    assertThat(second.join()).containsExactly("op_a");
+    assertThat(calls).hasValue(1);
+    assertThat(count("hits")).isEqualTo(1.0);
+  }
+
+  @Test void keysAreCachedApart() throws IOException {
+    cache.call("spanNames", "svc_a", names("op_a")).execute();
+
+    assertThat(cache.call("spanNames", "svc_b", names("op_b")).execute()).containsExactly("op_b");
+    assertThat(cache.call("remoteServiceNames", "svc_a", names("svc_b")).execute())
+      .containsExactly("svc_b");
+  }
+
+  @Test void doesNotKeepEmptyOrFailedResults() throws IOException {
+    cache.call("tagKeys", "", names()).execute();
+    assertThat(cache.call("tagKeys", "", names("environment")).execute())
+      .containsExactly("environment");
+
+    CompletableFuture<List<String>> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new IllegalStateException("rebalancing"));
+    assertThatThrownBy(() -> cache.call("tagValues", "environment", call(failed)).execute())
+      .hasCauseInstanceOf(IllegalStateException.class);
+    assertThat(cache.call("tagValues", "environment", names("dev")).execute())
+      .containsExactly("dev");
+  }
+
+  @Test void evictsLeastRecentlyUsed() throws IOException {
+    cache.call("spanNames", "svc_a", names("op_a")).execute();
+    cache.call("spanNames", "svc_b", names("op_b")).execute();
+    cache.call("spanNames", "svc_a", names("op_a")).execute();
+    cache.call("spanNames", "svc_c", names("op_c")).execute();
+
+    assertThat(cache.call("spanNames", "svc_a", names("op_d")).execute()).containsExactly("op_a");
+    assertThat(cache.call("spanNames", "svc_b", names("op_d")).execute()).containsExactly("op_d");
+  }
+
+  @Test void disabled_whenTtlIsZero() {
+    Call<List<String>> delegate = names("svc_a");
+
+    assertThat(new QueryCache(Duration.ZERO, 2, registry).call("serviceNames", "", delegate))
+      .isSameAs(delegate);
+  }
+
+  @Test void close_removesCounters() throws IOException {
+    cache.call("serviceNames", "", names("svc_a")).execute();
+    cache.call("serviceNames", "", names("svc_a")).execute();
+
+    cache.close();
+
+    assertThat(registry.getMeters()).isEmpty();
+  }
+
+  double count(String name) {
+    return registry.get(QueryCache.METRIC_PREFIX + "." + name).counter().count();
+  }
+
+  Call<List<String>> names(String... names) {
+    return call(CompletableFuture.completedFuture(Arrays.asList(names)));
+  }
+
+  Call<List<String>> call(CompletableFuture<List<String>> result) {
+    return new Call.Base<List<String>>() {
+      @Override protected List<String> doExecute() {
+        calls.incrementAndGet();
+        return result.join();
+      }
+
+      @Override protected void doEnqueue(Callback<List<String>> callback) {
+        calls.incrementAndGet();
+        result.whenComplete((values, t) -> {
+          if (t != null) {
+            callback.onError(t);
+          } else {
+            callback.onSuccess(values);
+          }
+        });
+      }
+
+      @Override public Call<List<String>> clone() {
+        return call(result);
+      }
+    };
+  }
+
+  static Callback<List<String>> callback(CompletableFuture<List<String>> future) {
+    return new Callback<List<String>>() {
+      @Override public void onSuccess(List<String> values) {
+        future.complete(values);
+      }
+
+      @Override public void onError(Throwable t) {
+        future.completeExceptionally(t);
+      }
+    };
+  }
+}
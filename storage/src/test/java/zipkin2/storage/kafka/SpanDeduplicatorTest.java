@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import zipkin2.Call;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SpanDeduplicatorTest {
+  MeterRegistry registry = new SimpleMeterRegistry();
+  AtomicLong clock = new AtomicLong();
+  SpanDeduplicator deduplicator =
+    new SpanDeduplicator(Duration.ofMinutes(1), 1000, 0.001, registry, clock::get);
+  Span a = Span.newBuilder().traceId("a").id("a").name("op_a").build();
+  Span b = Span.newBuilder().traceId("a").id("b").name("op_b").build();
+
+  @Test void filter_dropsSpansSent() throws Exception {
+    send(a);
+
+    assertThat(deduplicator.newBatch().filter(Arrays.asList(a, b))).containsExactly(b);
+    assertThat(counter("dropped")).isEqualTo(1.0);
+  }
+
+  @Test void filter_keepsSpansFailingToSend() {
+    SpanDeduplicator.Batch batch = deduplicator.newBatch();
+    batch.filter(Collections.singletonList(a));
+    RuntimeException error = new RuntimeException("shed");
+
+    assertThatThrownBy(() -> batch.recordOnSuccess(Call.<Void>create(null).map(v -> {
+      throw error;
+    })).execute()).isSameAs(error);
+
+    assertThat(deduplicator.newBatch().filter(Collections.singletonList(a))).containsExactly(a);
+  }
+
+  @Test void filter_dropsDuplicatesOfBatch() {
+    assertThat(deduplicator.newBatch().filter(Arrays.asList(a, b, a))).containsExactly(a, b);
+  }
+
+  @Test void filter_sharedSpansAreDifferentSpans() throws Exception {
+    send(a);
+    Span shared = a.toBuilder().shared(true).build();
+
+    assertThat(deduplicator.newBatch().filter(Collections.singletonList(shared)))
+      .containsExactly(shared);
+  }
+
+  @Test void spansSent_recognizedForAWindowAtLeast() throws Exception {
+    send(a);
+    clock.addAndGet(Duration.ofMinutes(1).toMillis());
+    send(b);
+
+    // Rotated once: spans sent on the previous window are still recognized
+    assertThat(deduplicator.newBatch().filter(Arrays.asList(a, b))).isEmpty();
+
+    clock.addAndGet(Duration.ofMinutes(1).toMillis());
+    assertThat(deduplicator.newBatch().filter(Arrays.asList(a, b))).containsExactly(a);
+
+    clock.addAndGet(Duration.ofMinutes(1).toMillis());
+    assertThat(deduplicator.newBatch().filter(Arrays.asList(a, b))).containsExactly(a, b);
+  }
+
+  @Test void filtersOverFalsePositiveBudget_rotatedEarly() throws Exception {
+    for (int i = 0; i < 5000; i++) {
+      send(Span.newBuilder().traceId("a").id(Long.toHexString(i + 1)).build());
+    }
+
+    assertThat(counter("rotations")).isGreaterThanOrEqualTo(4.0);
+    assertThat(registry.get("zipkin.storage.kafka.partitioning.dedup.false.positive.rate")
+      .gauge().value()).isLessThan(0.0025);
+  }
+
+  @Test void close_removesMeters() {
+    deduplicator.close();
+
+    assertThat(registry.getMeters()).isEmpty();
+  }
+
+  void send(Span span) throws Exception {
+    SpanDeduplicator.Batch batch = deduplicator.newBatch();
+    batch.filter(Collections.singletonList(span));
+    batch.recordOnSuccess(Call.create(null)).execute();
+  }
+
+  double counter(String name) {
+    return registry.get("zipkin.storage.kafka.partitioning.dedup." + name).counter().count();
+  }
+}
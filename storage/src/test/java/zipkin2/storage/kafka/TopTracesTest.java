@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TopTracesTest {
+  @Test void mergesNewestFirst() {
+    TopTraces topTraces = new TopTraces(3);
+
+    topTraces.addAll(Arrays.asList(trace("1", 50L), trace("2", 20L)));
+    topTraces.addAll(Arrays.asList(trace("3", 40L), trace("4", 30L), trace("5", 10L)));
+
+    assertThat(topTraces.toList())
+      .containsExactly(trace("1", 50L), trace("3", 40L), trace("4", 30L));
+  }
+
+  @Test void stopsAtFirstTraceNotNewer() {
+    TopTraces topTraces = new TopTraces(2);
+    topTraces.addAll(Arrays.asList(trace("1", 50L), trace("2", 40L)));
+
+    // out of order, so only stopping explains why the last trace is not kept
+    topTraces.addAll(Arrays.asList(trace("3", 30L), trace("4", 60L)));
+
+    assertThat(topTraces.toList()).containsExactly(trace("1", 50L), trace("2", 40L));
+  }
+
+  @Test void skipsTracesAlreadyKept() {
+    TopTraces topTraces = new TopTraces(2);
+
+    topTraces.addAll(Arrays.asList(trace("1", 50L), trace("2", 40L)));
+    topTraces.addAll(Arrays.asList(trace("1", 50L), trace("3", 45L)));
+
+    assertThat(topTraces.toList()).containsExactly(trace("1", 50L), trace("3", 45L));
+  }
+
+  @Test void ranksByEarliestSpan() {
+    TopTraces topTraces = new TopTraces(2);
+    // batches arrived out of order, so the root span is not the first span
+    List<Span> outOfOrder = Arrays.asList(span("1", "2", 60L), span("1", "1", 30L));
+
+    topTraces.addAll(Collections.singletonList(outOfOrder));
+    topTraces.addAll(Arrays.asList(trace("2", 50L), trace("3", 40L)));
+
+    assertThat(topTraces.toList()).containsExactly(trace("2", 50L), trace("3", 40L));
+  }
+
+  @Test void zeroLimit() {
+    TopTraces topTraces = new TopTraces(0);
+
+    topTraces.addAll(Collections.singletonList(trace("1", 50L)));
+
+    assertThat(topTraces.toList()).isEmpty();
+  }
+
+  static List<Span> trace(String traceId, long timestamp) {
+    return Collections.singletonList(span(traceId, "1", timestamp));
+  }
+
+  static Span span(String traceId, String id, long timestamp) {
+    return Span.newBuilder().traceId(traceId).id(id).timestamp(timestamp).build();
+  }
+}
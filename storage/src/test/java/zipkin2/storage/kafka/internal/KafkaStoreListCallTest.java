@@ -0,0 +1,173 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.internal;
+
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.MediaType;
+import com.linecorp.armeria.server.Server;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.apache.kafka.streams.errors.InvalidStateStoreException;
+import org.apache.kafka.streams.state.HostInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import zipkin2.Call;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KafkaStoreListCallTest {
+  static final HostInfo LOCAL = new HostInfo("localhost", 9411);
+
+  PeerClients peerClients = new PeerClients((host, port) -> "http://" + host + ":" + port,
+    LOCAL, Duration.ofSeconds(10), Duration.ofSeconds(1), new SimpleMeterRegistry());
+  List<Server> servers = new ArrayList<>();
+
+  @AfterEach void close() {
+    peerClients.close();
+    servers.forEach(server -> server.stop().join());
+  }
+
+  Span a = Span.newBuilder().traceId("a").id("1").name("op_a")
+    .localEndpoint(Endpoint.newBuilder().serviceName("svc_a").build())
+    .putTag("http.path", "/[a]")
+    .build();
+  Span b = a.toBuilder().traceId("b").build();
+
+  @Test void parseList_passesEachElement() {
+    byte[] content = ("[" + json(a) + ", " + json(a, b) + "]").getBytes(UTF_8);
+
+    assertThat(new TracesCall().parseList(content))
+      .containsExactly(Arrays.asList(a), Arrays.asList(a, b));
+  }
+
+  @Test void parseList_strings() {
+    byte[] content = "[\"svc_a\",\"svc \\\"b\\\"\"]".getBytes(UTF_8);
+
+    assertThat(new StringsCall().parseList(content)).containsExactly("svc_a", "svc \"b\"");
+  }
+
+  @Test void parseList_empty() {
+    assertThat(new StringsCall().parseList(null)).isEmpty();
+    assertThat(new StringsCall().parseList("[]".getBytes(UTF_8))).isEmpty();
+    assertThat(new StringsCall().parseList("{}".getBytes(UTF_8))).isEmpty();
+  }
+
+  @Test void parseList_malformed() {
+    assertThat(new StringsCall().parseList("[\"svc_a\",".getBytes(UTF_8))).isEmpty();
+    assertThat(new StringsCall().parseList("[\"svc_a\"".getBytes(UTF_8))).isEmpty();
+  }
+
+  @Test void fetch_readsLocalHostInProcess() {
+    assertThat(new StringsCall(peerClients)
+      .fetch(LOCAL, "/", () -> Arrays.asList("svc_a", "svc_b")))
+      .isCompletedWithValue(Arrays.asList("svc_a", "svc_b"));
+    assertThat(peerClients.peers).isEmpty();
+  }
+
+  @Test void fetch_localStoreNotReady_isEmpty() {
+    assertThat(new StringsCall(peerClients).fetch(LOCAL, "/", () -> {
+      throw new InvalidStateStoreException("rebalancing");
+    })).isCompletedWithValue(Collections.emptyList());
+  }
+
+  @Test void fetchFirst_failsOverFromLocalStore() {
+    HostInfo standby = server(HttpStatus.OK, "[\"svc_b\"]");
+
+    assertThat(new StringsCall(peerClients).fetchFirst(Arrays.asList(LOCAL, standby), "/", () -> {
+      throw new InvalidStateStoreException("restoring");
+    }).join()).containsExactly("svc_b");
+  }
+
+  @Test void fetchFirst_failsOverFromErrorStatus() {
+    HostInfo restoring = server(HttpStatus.SERVICE_UNAVAILABLE, "");
+    HostInfo standby = server(HttpStatus.OK, "[\"svc_b\"]");
+
+    assertThat(new StringsCall(peerClients)
+      .fetchFirst(Arrays.asList(restoring, standby), "/", () -> null).join())
+      .containsExactly("svc_b");
+  }
+
+  @Test void fetchFirst_lastErrorStatus_isEmpty() {
+    HostInfo restoring = server(HttpStatus.SERVICE_UNAVAILABLE, "");
+
+    assertThat(new StringsCall(peerClients)
+      .fetchFirst(Arrays.asList(restoring, restoring), "/", () -> null).join())
+      .isEmpty();
+  }
+
+  HostInfo server(HttpStatus status, String json) {
+    Server server = Server.builder()
+      .http(0)
+      .service("/", (ctx, req) -> HttpResponse.of(status, MediaType.JSON, json))
+      .build();
+    server.start().join();
+    servers.add(server);
+    return new HostInfo("127.0.0.1", server.activeLocalPort());
+  }
+
+  static String json(Span... spans) {
+    return new String(SpanBytesEncoder.JSON_V2.encodeList(Arrays.asList(spans)), UTF_8);
+  }
+
+  abstract static class TestCall<V> extends KafkaStoreListCall<V> {
+    TestCall() {
+      this(null);
+    }
+
+    TestCall(PeerClients peerClients) {
+      super(null, "store", peerClients, "/");
+    }
+
+    @Override protected CompletableFuture<List<V>> listFuture() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public Call<List<V>> clone() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  static final class TracesCall extends TestCall<List<Span>> {
+    @Override protected List<Span> parseItem(byte[] content, int offset, int length) {
+      return SpanBytesDecoder.JSON_V2.decodeList(ByteBuffer.wrap(content, offset, length));
+    }
+  }
+
+  static final class StringsCall extends TestCall<String> {
+    StringsCall() {
+    }
+
+    StringsCall(PeerClients peerClients) {
+      super(peerClients);
+    }
+
+    @Override protected String parseItem(byte[] content, int offset, int length)
+      throws IOException {
+      return parseString(content, offset, length);
+    }
+  }
+}
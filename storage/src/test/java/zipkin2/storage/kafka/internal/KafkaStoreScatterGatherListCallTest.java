@@ -0,0 +1,147 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.internal;
+
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.MediaType;
+import com.linecorp.armeria.server.Server;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.streams.state.HostInfo;
+import org.apache.kafka.streams.state.StreamsMetadata;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import zipkin2.Call;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KafkaStoreScatterGatherListCallTest {
+  static final String STORE = "store";
+  static final TopicPartition P0 = new TopicPartition("spans", 0);
+  static final TopicPartition P1 = new TopicPartition("spans", 1);
+
+  PeerClients peerClients = new PeerClients((host, port) -> "http://" + host + ":" + port,
+    new HostInfo("localhost", 9411), Duration.ofMillis(500), Duration.ofMillis(100),
+    new SimpleMeterRegistry());
+  List<Server> servers = new ArrayList<>();
+
+  @AfterEach void close() {
+    peerClients.close();
+    servers.forEach(server -> server.stop().join());
+  }
+
+  @Test void allAnswer() throws IOException {
+    HostInfo a = server("[\"a\"]", Duration.ZERO), b = server("[\"b\"]", Duration.ZERO);
+
+    StringsCall call = new StringsCall(peerClients, active(a, P0), active(b, P1));
+
+    assertThat(call.execute()).containsExactlyInAnyOrder("a", "b");
+    assertThat(call.missingPartitions()).isEmpty();
+  }
+
+  @Test void partialResults_whenInstanceTimesOut() throws IOException {
+    HostInfo a = server("[\"a\"]", Duration.ZERO), b = server("[\"b\"]", Duration.ofSeconds(5));
+
+    StringsCall call = new StringsCall(peerClients, active(a, P0), active(b, P1));
+
+    assertThat(call.execute()).containsExactly("a");
+    assertThat(call.missingPartitions()).containsExactly(P1);
+  }
+
+  @Test void hedgesToStandbyReplica() throws IOException {
+    HostInfo a = server("[\"a\"]", Duration.ZERO), b = server("[\"b\"]", Duration.ofSeconds(5));
+    HostInfo standby = server("[\"b\"]", Duration.ZERO);
+
+    StringsCall call = new StringsCall(peerClients, active(a, P0), active(b, P1),
+      new StreamsMetadata(standby, Collections.emptySet(), Collections.emptySet(),
+        Collections.singleton(STORE), Collections.singleton(P1)));
+
+    assertThat(call.execute()).containsExactlyInAnyOrder("a", "b");
+    assertThat(call.missingPartitions()).isEmpty();
+  }
+
+  @Test void onlyInstancesWithPartitions() {
+    HostInfo a = server("[\"a\"]", Duration.ZERO), b = server("[\"b\"]", Duration.ZERO);
+
+    StringsCall call = new StringsCall(peerClients, active(a, P0), active(b, P1)) {
+      @Override protected HostInfo activeHost(int partition) {
+        return partition == P1.partition() ? b : a;
+      }
+    };
+
+    assertThat(call.scatter(Collections.singleton(P1.partition())))
+      .extracting(CompletableFuture::join)
+      .containsExactly(Collections.singletonList("b"));
+  }
+
+  @Test void allInstances_whenPartitionHostUnknown() {
+    HostInfo a = server("[\"a\"]", Duration.ZERO), b = server("[\"b\"]", Duration.ZERO);
+
+    StringsCall call = new StringsCall(peerClients, active(a, P0), active(b, P1)) {
+      @Override protected HostInfo activeHost(int partition) {
+        return null;
+      }
+    };
+
+    assertThat(call.scatter(Collections.singleton(P1.partition()))).hasSize(2);
+  }
+
+  HostInfo server(String json, Duration delay) {
+    Server server = Server.builder()
+      .http(0)
+      .service("/", (ctx, req) -> HttpResponse.delayed(
+        HttpResponse.of(HttpStatus.OK, MediaType.JSON, json), delay))
+      .build();
+    server.start().join();
+    servers.add(server);
+    return new HostInfo("127.0.0.1", server.activeLocalPort());
+  }
+
+  static StreamsMetadata active(HostInfo hostInfo, TopicPartition partition) {
+    return new StreamsMetadata(hostInfo, Collections.singleton(STORE),
+      Collections.singleton(partition), Collections.emptySet(), Collections.emptySet());
+  }
+
+  static class StringsCall extends KafkaStoreScatterGatherListCall<String> {
+    final Collection<StreamsMetadata> metadata;
+
+    StringsCall(PeerClients peerClients, StreamsMetadata... metadata) {
+      super(null, STORE, peerClients, "/", 10);
+      this.metadata = new HashSet<>(Arrays.asList(metadata));
+    }
+
+    @Override protected Collection<StreamsMetadata> metadata() {
+      return metadata;
+    }
+
+    @Override protected String parseItem(byte[] content, int offset, int length)
+      throws IOException {
+      return parseString(content, offset, length);
+    }
+
+    @Override public Call<List<String>> clone() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
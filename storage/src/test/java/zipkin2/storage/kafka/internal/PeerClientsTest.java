@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.internal;
+
+import com.linecorp.armeria.client.WebClient;
+import com.linecorp.armeria.common.AggregatedHttpResponse;
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.server.Server;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.streams.state.HostInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class PeerClientsTest {
+  MeterRegistry registry = new SimpleMeterRegistry();
+  PeerClients peerClients = new PeerClients((host, port) -> "http://" + host + ":" + port,
+    new HostInfo("localhost", 9411), Duration.ofSeconds(10), Duration.ofSeconds(1), registry);
+  CompletableFuture<HttpResponse> release = new CompletableFuture<>();
+  Server server;
+  HostInfo peer;
+
+  @BeforeEach void startServer() {
+    server = Server.builder()
+      .http(0)
+      .service("/", (ctx, req) -> HttpResponse.of(HttpStatus.OK))
+      .service("/pending", (ctx, req) -> HttpResponse.from(release))
+      .build();
+    server.start().join();
+    peer = new HostInfo("127.0.0.1", server.activeLocalPort());
+  }
+
+  @AfterEach void close() {
+    peerClients.close();
+    server.stop().join();
+  }
+
+  @Test void reusesClientAndConnection() {
+    WebClient client = peerClients.client(peer);
+    assertThat(peerClients.client(peer)).isSameAs(client);
+
+    client.get("/").aggregate().join();
+    peerClients.client(peer).get("/").aggregate().join();
+
+    String tag = "127.0.0.1:" + server.activeLocalPort();
+    assertThat(registry.get("zipkin.storage.kafka.peer.connections.opened").tag("peer", tag)
+      .counter().count()).isEqualTo(1.0);
+    assertThat(registry.get("zipkin.storage.kafka.peer.connections.active").tag("peer", tag)
+      .gauge().value()).isEqualTo(1.0);
+    assertThat(registry.find("zipkin.storage.kafka.peer.requests").tag("peer", tag).meters())
+      .isNotEmpty();
+  }
+
+  @Test void retain_evictsClientAndMeters() {
+    WebClient client = peerClients.client(peer);
+    client.get("/").aggregate().join();
+    await().atMost(10, TimeUnit.SECONDS)
+      .until(() -> peerClients.peers.get(peer).pending.get() == 0);
+
+    peerClients.retain(Collections.singleton(peer));
+    assertThat(peerClients.client(peer)).isSameAs(client);
+
+    peerClients.retain(Collections.emptySet());
+    assertThat(peerClients.peers).isEmpty();
+    assertThat(registry.getMeters())
+      .extracting(meter -> meter.getId().getName())
+      .noneMatch(name -> name.startsWith(PeerClients.METRIC_PREFIX));
+    assertThat(peerClients.client(peer)).isNotSameAs(client);
+  }
+
+  @Test void retain_defersEvictionUntilNoPendingRequests() {
+    CompletableFuture<AggregatedHttpResponse> response =
+      peerClients.client(peer).get("/pending").aggregate();
+
+    peerClients.retain(Collections.emptySet());
+    assertThat(peerClients.peers).containsKey(peer);
+
+    release.complete(HttpResponse.of(HttpStatus.OK));
+    assertThat(response.join().status()).isEqualTo(HttpStatus.OK);
+    await().atMost(10, TimeUnit.SECONDS).until(() -> peerClients.peers.isEmpty());
+    await().atMost(10, TimeUnit.SECONDS).until(() -> registry.getMeters().stream()
+      .noneMatch(meter -> meter.getId().getName().startsWith(PeerClients.METRIC_PREFIX)));
+  }
+
+  @Test void isLocal() {
+    assertThat(peerClients.isLocal(new HostInfo("localhost", 9411))).isTrue();
+    assertThat(peerClients.isLocal(new HostInfo("localhost", 9412))).isFalse();
+    assertThat(peerClients.isLocal(peer)).isFalse();
+  }
+
+  @Test void rank_localFirst_thenLeastLoaded() {
+    HostInfo local = new HostInfo("localhost", 9411);
+    HostInfo unknown = new HostInfo("127.0.0.1", 1);
+    peerClients.client(peer).get("/").aggregate().join();
+    await().atMost(10, TimeUnit.SECONDS).until(() -> peerClients.load(peer) > 0);
+
+    assertThat(peerClients.rank(Arrays.asList(peer, unknown, local)))
+      .containsExactly(local, unknown, peer);
+  }
+}
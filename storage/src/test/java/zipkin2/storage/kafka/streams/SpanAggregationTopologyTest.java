@@ -14,11 +14,16 @@
 package zipkin2.storage.kafka.streams;
 
 import java.time.Duration;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.streams.StreamsConfig;
 import org.apache.kafka.streams.TestInputTopic;
 import org.apache.kafka.streams.TestOutputTopic;
@@ -30,7 +35,9 @@ import org.junit.jupiter.api.Test;
 import zipkin2.DependencyLink;
 import zipkin2.Endpoint;
 import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
 import zipkin2.storage.kafka.streams.serdes.DependencyLinkSerde;
+import zipkin2.storage.kafka.streams.serdes.PackedTraces;
 import zipkin2.storage.kafka.streams.serdes.SpansSerde;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -54,6 +61,9 @@ class SpanAggregationTopologyTest {
       traceTopic,
       dependencyTopic,
       traceTimeout,
+      TraceSampler.ALWAYS_SAMPLE,
+      false,
+      false,
       false).get();
     TopologyDescription description = topology.describe();
     // Then: single threaded topology
@@ -73,7 +83,10 @@ class SpanAggregationTopologyTest {
       traceTopic,
       dependencyTopic,
       traceTimeout,
-      true).get();
+      TraceSampler.ALWAYS_SAMPLE,
+      true,
+      false,
+      false).get();
     TopologyDescription description = topology.describe();
     // Then: single threaded topology
     assertThat(description.subtopologies()).hasSize(1);
@@ -115,4 +128,105 @@ class SpanAggregationTopologyTest {
     spansSerde.close();
     dependencyLinkSerde.close();
   }
+
+  @Test void should_aggregateSpans_fromPackedTraces() {
+    // Given: configuration
+    Duration traceTimeout = Duration.ofSeconds(1);
+    SpansSerde spansSerde = new SpansSerde();
+    // When: topology built, unpacking traces
+    Topology topology = new SpanAggregationTopology(
+      spansTopic,
+      traceTopic,
+      dependencyTopic,
+      traceTimeout,
+      TraceSampler.ALWAYS_SAMPLE,
+      true,
+      true,
+      false).get();
+    TopologyDescription description = topology.describe();
+    // Then: unpacked traces are repartitioned by trace ID
+    assertThat(description.subtopologies()).hasSize(2);
+    TopologyTestDriver testDriver = new TopologyTestDriver(topology, props);
+    // When: spans of two traces are received on a single record
+    TestInputTopic<String, byte[]> factory =
+      testDriver.createInputTopic(spansTopic, new StringSerializer(), new ByteArraySerializer());
+    Span a = Span.newBuilder().traceId("a").id("a").name("op_a").kind(Span.Kind.CLIENT)
+      .localEndpoint(Endpoint.newBuilder().serviceName("svc_a").build())
+      .build();
+    Span b = Span.newBuilder().traceId("b").id("b").name("op_b").kind(Span.Kind.SERVER)
+      .localEndpoint(Endpoint.newBuilder().serviceName("svc_b").build())
+      .build();
+    Map<String, byte[]> packed = new LinkedHashMap<>();
+    packed.put(a.traceId(), SpanBytesEncoder.PROTO3.encodeList(Collections.singletonList(a)));
+    packed.put(b.traceId(), SpanBytesEncoder.PROTO3.encodeList(Collections.singletonList(b)));
+    factory.pipeInput(null, PackedTraces.pack(packed), 0L);
+    // When: and new record arrive, moving the event clock further than inactivity gap
+    Span c = Span.newBuilder().traceId("c").id("c").build();
+    packed = Collections.singletonMap(c.traceId(),
+      SpanBytesEncoder.PROTO3.encodeList(Collections.singletonList(c)));
+    factory.pipeInput(null, PackedTraces.pack(packed), traceTimeout.toMillis() + 1);
+    // Then: each trace is aggregated by its trace ID
+    TestOutputTopic<String, List<Span>> outputTopic =
+      testDriver.createOutputTopic(traceTopic, new StringDeserializer(), spansSerde.deserializer());
+    assertThat(outputTopic.readKeyValuesToList()).containsExactlyInAnyOrder(
+      KeyValue.pair(a.traceId(), Collections.singletonList(a)),
+      KeyValue.pair(b.traceId(), Collections.singletonList(b)));
+    // Finally close resources
+    testDriver.close();
+    spansSerde.close();
+  }
+
+  @Test void should_sampleTraces_and_mapDependenciesFromAllTraces() {
+    // Given: configuration, keeping only traces with errors
+    Duration traceTimeout = Duration.ofSeconds(1);
+    SpansSerde spansSerde = new SpansSerde();
+    DependencyLinkSerde dependencyLinkSerde = new DependencyLinkSerde();
+    TraceSampler traceSampler = TailTraceSampler.newBuilder().rate(0.0f).build();
+    // When: topology built
+    Topology topology = new SpanAggregationTopology(
+      spansTopic,
+      traceTopic,
+      dependencyTopic,
+      traceTimeout,
+      traceSampler,
+      true,
+      false,
+      false).get();
+    TopologyTestDriver testDriver = new TopologyTestDriver(topology, props);
+    // When: a trace without errors and a trace with errors are received
+    TestInputTopic<String, List<Span>> factory =
+      testDriver.createInputTopic(spansTopic, new StringSerializer(), spansSerde.serializer());
+    Span a = Span.newBuilder().traceId("a").id("a").name("op_a").kind(Span.Kind.CLIENT)
+      .localEndpoint(Endpoint.newBuilder().serviceName("svc_a").build())
+      .build();
+    Span b = Span.newBuilder().traceId("a").id("b").name("op_b").kind(Span.Kind.SERVER)
+      .localEndpoint(Endpoint.newBuilder().serviceName("svc_b").build())
+      .build();
+    Span c = Span.newBuilder().traceId("c").id("c").name("op_c")
+      .localEndpoint(Endpoint.newBuilder().serviceName("svc_c").build())
+      .putTag("error", "failed")
+      .build();
+    factory.pipeInput(a.traceId(), Arrays.asList(a, b), 0L);
+    factory.pipeInput(c.traceId(), Collections.singletonList(c), 0L);
+    // When: and new record arrive, moving the event clock further than inactivity gap
+    Span d = Span.newBuilder().traceId("d").id("d").build();
+    factory.pipeInput(d.traceId(), Collections.singletonList(d), traceTimeout.toMillis() + 1);
+    // Then: only the trace with errors is kept
+    TestOutputTopic<String, List<Span>> outputTopic =
+      testDriver.createOutputTopic(traceTopic, new StringDeserializer(), spansSerde.deserializer());
+    assertThat(outputTopic.readKeyValuesToList())
+      .extracting(keyValue -> keyValue.key)
+      .containsExactly(c.traceId());
+    // Then: dependency links are created from the trace dropped
+    TestOutputTopic<String, DependencyLink> links =
+      testDriver.createOutputTopic(dependencyTopic, new StringDeserializer(),
+        dependencyLinkSerde.deserializer());
+    assertThat(links.readKeyValuesToList())
+      .extracting(keyValue -> keyValue.key)
+      .containsExactly("svc_a:svc_b");
+    //Finally close resources
+    testDriver.close();
+    spansSerde.close();
+    dependencyLinkSerde.close();
+  }
 }
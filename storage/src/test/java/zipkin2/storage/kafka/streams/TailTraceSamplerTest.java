@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TailTraceSamplerTest {
+  Span span = Span.newBuilder().traceId("463ac35c9f6413ad48485a3953bb6124").id("a").name("op_a")
+    .timestamp(1000L).duration(10L)
+    .build();
+
+  @Test void keepsAll_whenRateIsOne() {
+    TraceSampler sampler = TailTraceSampler.newBuilder().build();
+
+    assertThat(sampler.isSampled(span.traceId(), Collections.singletonList(span))).isTrue();
+  }
+
+  @Test void keepsErrors() {
+    TraceSampler sampler = TailTraceSampler.newBuilder().rate(0.0f).build();
+
+    assertThat(sampler.isSampled(span.traceId(), Collections.singletonList(span))).isFalse();
+    List<Span> trace = Arrays.asList(span, span.toBuilder().id("b").putTag("error", "").build());
+    assertThat(sampler.isSampled(span.traceId(), trace)).isTrue();
+  }
+
+  @Test void keepsSlowTraces() {
+    TraceSampler sampler = TailTraceSampler.newBuilder().rate(0.0f)
+      .minDuration(Duration.ofMillis(1))
+      .build();
+
+    assertThat(sampler.isSampled(span.traceId(), Collections.singletonList(span))).isFalse();
+    List<Span> trace = Arrays.asList(span, span.toBuilder().id("b").timestamp(1990L).build());
+    assertThat(sampler.isSampled(span.traceId(), trace)).isTrue();
+  }
+
+  @Test void keepsTags() {
+    TraceSampler sampler = TailTraceSampler.newBuilder().rate(0.0f)
+      .tags(Arrays.asList("http.path=/api", "debug"))
+      .build();
+
+    List<Span> other = Collections.singletonList(span.toBuilder().putTag("http.path", "/").build());
+    assertThat(sampler.isSampled(span.traceId(), other)).isFalse();
+    List<Span> path = Collections.singletonList(span.toBuilder().putTag("http.path", "/api").build());
+    assertThat(sampler.isSampled(span.traceId(), path)).isTrue();
+    List<Span> debug = Collections.singletonList(span.toBuilder().putTag("debug", "x").build());
+    assertThat(sampler.isSampled(span.traceId(), debug)).isTrue();
+  }
+
+  @Test void rate_isDeterministicByTraceId() {
+    TraceSampler sampler = TailTraceSampler.newBuilder().rate(0.5f).build();
+
+    int sampled = 0;
+    for (long i = 1; i <= 10_000; i++) {
+      String traceId = String.format("%016x", i * 0x9E3779B97F4A7C15L);
+      List<Span> trace = Collections.singletonList(span.toBuilder().traceId(traceId).build());
+      boolean result = sampler.isSampled(traceId, trace);
+      assertThat(sampler.isSampled(traceId, trace)).isEqualTo(result);
+      if (result) sampled++;
+    }
+    assertThat(sampled).isBetween(4_500, 5_500);
+  }
+
+  @Test void rate_isValidated() {
+    assertThatThrownBy(() -> TailTraceSampler.newBuilder().rate(1.1f))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+}
@@ -13,12 +13,16 @@
  */
 package zipkin2.storage.kafka.streams;
 
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.streams.StreamsConfig;
@@ -28,17 +32,40 @@ import org.apache.kafka.streams.TopologyDescription;
 import org.apache.kafka.streams.TopologyTestDriver;
 import org.apache.kafka.streams.kstream.Windowed;
 import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
 import org.apache.kafka.streams.state.WindowStore;
 import org.apache.kafka.streams.state.WindowStoreIterator;
 import org.junit.jupiter.api.Test;
 import zipkin2.Endpoint;
 import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.kafka.streams.serdes.NamesSerde;
+import zipkin2.storage.kafka.streams.serdes.PackedTraces;
 import zipkin2.storage.kafka.streams.serdes.SpansSerde;
+import zipkin2.storage.kafka.streams.serdes.TraceIdSerde;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
 import static zipkin2.storage.kafka.streams.TraceStorageTopology.AUTOCOMPLETE_TAGS_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.NAMES_FLUSH_INTERVAL;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.SERVICE_NAMES_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.SERVICE_NAME_INDEX_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.SERVICE_PARTITIONS_INTERVAL;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.SERVICE_PARTITIONS_STORE_NAME;
 import static zipkin2.storage.kafka.streams.TraceStorageTopology.SPAN_NAMES_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.SPAN_NAME_INDEX_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.TAG_INDEX_STORE_NAME;
 import static zipkin2.storage.kafka.streams.TraceStorageTopology.TRACES_STORE_NAME;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.indexKey;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.indexKeyFrom;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.indexKeyTo;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.isIndexKey;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.isTraceKey;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.stringTraceKey;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.traceId;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.traceKey;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.traceKeyFrom;
+import static zipkin2.storage.kafka.streams.TraceStorageTopology.traceKeyTo;
 
 class TraceStorageTopologyTest {
   String spansTopic = "zipkin-spans";
@@ -64,6 +91,7 @@ class TraceStorageTopologyTest {
       traceTtlCheckInterval,
       0,
       false,
+      false,
       false).get();
     TopologyDescription description = topology.describe();
     // Then:
@@ -87,6 +115,7 @@ class TraceStorageTopologyTest {
       traceTtlCheckInterval,
       0,
       true,
+      false,
       false).get();
     TopologyDescription description = topology.describe();
     // Then: 1 thread prepared
@@ -114,21 +143,121 @@ class TraceStorageTopologyTest {
     factory.pipeInput(a.traceId(), spans, 10L);
     // Then: trace stores are filled
     WindowStore<String, List<Span>> traces = testDriver.getWindowStore(TRACES_STORE_NAME);
-    try (final WindowStoreIterator<List<Span>> fetch = traces.fetch(a.traceId(), 0, 10000L)) {
+    try (final KeyValueIterator<Windowed<String>, List<Span>> fetch =
+           traces.fetch(traceKeyFrom(a.traceId()), traceKeyTo(a.traceId()), 0, 10000L)) {
       assertThat(fetch.hasNext()).isTrue();
-      final KeyValue<Long, List<Span>> next = fetch.next();
+      final KeyValue<Windowed<String>, List<Span>> next = fetch.next();
       assertThat(next.value).isEqualTo(spans);
     }
+    // When: another batch of the same trace is passed
+    Span d = Span.newBuilder().traceId("a").id("d").name("op_d").kind(Span.Kind.SERVER)
+      .localEndpoint(Endpoint.newBuilder().serviceName("svc_d").build())
+      .timestamp(10000L).duration(10L)
+      .build();
+    factory.pipeInput(d.traceId(), Collections.singletonList(d), 10L);
+    // Then: batch is stored on its own, without rewriting the trace
+    try (final KeyValueIterator<Windowed<String>, List<Span>> fetch =
+           traces.fetch(traceKeyFrom(a.traceId()), traceKeyTo(a.traceId()), 0, 10000L)) {
+      assertThat(fetch.next().value).isEqualTo(spans);
+      assertThat(fetch.next().value).containsExactly(d);
+      assertThat(fetch).isExhausted();
+    }
     // Then: service name stores are filled
-    WindowStore<String, Set<String>> spanNames = testDriver.getWindowStore(SPAN_NAMES_STORE_NAME);
+    WindowStore<String, byte[]> spanNames = testDriver.getWindowStore(SPAN_NAMES_STORE_NAME);
     assertThat(spanNames).isNull();
-    WindowStore<String, Set<String>> tags = testDriver.getWindowStore(AUTOCOMPLETE_TAGS_STORE_NAME);
+    WindowStore<String, byte[]> tags = testDriver.getWindowStore(AUTOCOMPLETE_TAGS_STORE_NAME);
     assertThat(tags).isNull();
+    WindowStore<String, String> serviceNameIndex =
+      testDriver.getWindowStore(SERVICE_NAME_INDEX_STORE_NAME);
+    assertThat(serviceNameIndex).isNull();
     // Finally close resources
     testDriver.close();
     spansSerde.close();
   }
 
+  @Test void should_persistSpans_fromPackedTraces() {
+    // Given: configs
+    Duration traceTtl = Duration.ofMillis(5);
+    Duration traceTtlCheckInterval = Duration.ofMinutes(1);
+    // When: topology provided
+    Topology topology = new TraceStorageTopology(
+      spansTopic,
+      Collections.emptyList(),
+      traceTtl,
+      traceTtlCheckInterval,
+      0,
+      true,
+      false,
+      false).get();
+    TopologyTestDriver testDriver = new TopologyTestDriver(topology, props);
+    // When: two traces are passed on a single record
+    TestInputTopic<String, byte[]> factory =
+      testDriver.createInputTopic(spansTopic, new StringSerializer(), new ByteArraySerializer());
+    Span a = Span.newBuilder().traceId("a").id("a").name("op_a")
+      .localEndpoint(Endpoint.newBuilder().serviceName("svc_a").build())
+      .timestamp(10000L).duration(11L)
+      .build();
+    Span b = a.toBuilder().traceId("b").id("b").build();
+    Map<String, byte[]> packed = new LinkedHashMap<>();
+    packed.put(a.traceId(), SpanBytesEncoder.PROTO3.encodeList(Collections.singletonList(a)));
+    packed.put(b.traceId(), SpanBytesEncoder.PROTO3.encodeList(Collections.singletonList(b)));
+    factory.pipeInput(null, PackedTraces.pack(packed), 10L);
+    // Then: each trace is stored by its trace ID
+    WindowStore<String, List<Span>> traces = testDriver.getWindowStore(TRACES_STORE_NAME);
+    for (Span span : Arrays.asList(a, b)) {
+      try (final KeyValueIterator<Windowed<String>, List<Span>> fetch =
+             traces.fetch(traceKeyFrom(span.traceId()), traceKeyTo(span.traceId()), 0, 10000L)) {
+        assertThat(fetch.next().value).containsExactly(span);
+        assertThat(fetch).isExhausted();
+      }
+    }
+    // Finally close resources
+    testDriver.close();
+  }
+
+  @Test void should_skipMalformedPackedTraces() {
+    // Given: configs, counting malformed records
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    Metrics.addRegistry(registry);
+    Duration traceTtl = Duration.ofMillis(5);
+    Duration traceTtlCheckInterval = Duration.ofMinutes(1);
+    // When: topology provided
+    Topology topology = new TraceStorageTopology(
+      spansTopic,
+      Collections.emptyList(),
+      traceTtl,
+      traceTtlCheckInterval,
+      0,
+      true,
+      false,
+      false).get();
+    TopologyTestDriver testDriver = new TopologyTestDriver(topology, props);
+    TestInputTopic<String, byte[]> factory =
+      testDriver.createInputTopic(spansTopic, new StringSerializer(), new ByteArraySerializer());
+    Span a = Span.newBuilder().traceId("a").id("a").name("op_a")
+      .localEndpoint(Endpoint.newBuilder().serviceName("svc_a").build())
+      .timestamp(10000L).duration(11L)
+      .build();
+    Map<String, byte[]> packed = new LinkedHashMap<>();
+    packed.put(a.traceId(), SpanBytesEncoder.PROTO3.encodeList(Collections.singletonList(a)));
+    byte[] record = PackedTraces.pack(packed);
+    // When: a truncated record is followed by a valid one
+    factory.pipeInput(null, Arrays.copyOf(record, record.length - 2), 10L);
+    factory.pipeInput(null, record, 10L);
+    // Then: the truncated record is skipped and counted
+    WindowStore<String, List<Span>> traces = testDriver.getWindowStore(TRACES_STORE_NAME);
+    try (final KeyValueIterator<Windowed<String>, List<Span>> fetch =
+           traces.fetch(traceKeyFrom(a.traceId()), traceKeyTo(a.traceId()), 0, 10000L)) {
+      assertThat(fetch.next().value).containsExactly(a);
+      assertThat(fetch).isExhausted();
+    }
+    assertThat(registry.get("zipkin.storage.kafka.traces.malformed").counter().count())
+      .isEqualTo(1.0);
+    // Finally close resources
+    testDriver.close();
+    Metrics.removeRegistry(registry);
+  }
+
   @Test void should_persistSpans_and_searchQueryTraces_whenAllEnabled() {
     // Given: configs
     Duration traceTtl = Duration.ofMillis(5);
@@ -143,10 +272,11 @@ class TraceStorageTopologyTest {
       traceTtlCheckInterval,
       0,
       true,
-      true).get();
+      true,
+      false).get();
     TopologyDescription description = topology.describe();
-    // Then: 1 thread prepared
-    assertThat(description.subtopologies()).hasSize(1);
+    // Then: 2 threads prepared, as service partitions are repartitioned by service name
+    assertThat(description.subtopologies()).hasSize(2);
     // Given: streams config
     TopologyTestDriver testDriver = new TopologyTestDriver(topology, props);
     // When: a trace is passed
@@ -170,37 +300,252 @@ class TraceStorageTopologyTest {
     factory.pipeInput(a.traceId(), spans, 10L);
     // Then: trace stores are filled
     WindowStore<String, List<Span>> traces = testDriver.getWindowStore(TRACES_STORE_NAME);
-    try (final WindowStoreIterator<List<Span>> fetch = traces.fetch(a.traceId(), 0, 10000L)) {
+    try (final KeyValueIterator<Windowed<String>, List<Span>> fetch =
+           traces.fetch(traceKeyFrom(a.traceId()), traceKeyTo(a.traceId()), 0, 10000L)) {
       assertThat(fetch).hasNext();
       assertThat(fetch.next())
         .extracting(next -> next.value)
         .isEqualTo(spans);
       assertThat(fetch).isExhausted();
     }
-    WindowStore<String, Set<String>> spanNames = testDriver.getWindowStore(SPAN_NAMES_STORE_NAME);
+    // Then: names are not stored until flushed
+    WindowStore<String, byte[]> spanNames = testDriver.getWindowStore(SPAN_NAMES_STORE_NAME);
+    try (
+      final KeyValueIterator<Windowed<String>, byte[]> fetch = spanNames.fetchAll(0, 10000L)) {
+      assertThat(fetch).isExhausted();
+    }
+    testDriver.advanceWallClockTime(NAMES_FLUSH_INTERVAL);
     try (
-      final KeyValueIterator<Windowed<String>, Set<String>> fetch = spanNames.fetchAll(0, 10000L)) {
+      final KeyValueIterator<Windowed<String>, byte[]> fetch = spanNames.fetchAll(0, 10000L)) {
       assertThat(fetch).hasNext();
       assertThat(fetch.next())
-        .extracting(next -> next.key.key(), next -> next.value)
+        .extracting(next -> next.key.key(), next -> NamesSerde.decode(next.value))
         .containsExactly("svc_a", Collections.singleton("op_a"));
       assertThat(fetch).hasNext();
       assertThat(fetch.next())
-        .extracting(next -> next.key.key(), next -> next.value)
+        .extracting(next -> next.key.key(), next -> NamesSerde.decode(next.value))
         .containsExactly("svc_b", Collections.singleton("op_b"));
       assertThat(fetch).isExhausted();
     }
-    WindowStore<String, Set<String>> tagsStore = testDriver.getWindowStore(AUTOCOMPLETE_TAGS_STORE_NAME);
+    WindowStore<String, byte[]> tagsStore = testDriver.getWindowStore(AUTOCOMPLETE_TAGS_STORE_NAME);
     try (
-      final KeyValueIterator<Windowed<String>, Set<String>> fetch = tagsStore.fetchAll(0, 10010L)) {
+      final KeyValueIterator<Windowed<String>, byte[]> fetch = tagsStore.fetchAll(0, 10010L)) {
       assertThat(fetch).hasNext();
       assertThat(fetch.next())
-        .extracting(next -> next.key.key(), next -> next.value)
+        .extracting(next -> next.key.key(), next -> NamesSerde.decode(next.value))
         .containsExactly("environment", Collections.singleton("dev"));
       assertThat(fetch).isExhausted();
     }
+    // Then: trace IDs are indexed by service name, span name and tags
+    WindowStore<String, String> serviceNameIndex =
+      testDriver.getWindowStore(SERVICE_NAME_INDEX_STORE_NAME);
+    try (final KeyValueIterator<Windowed<String>, String> fetch =
+           serviceNameIndex.fetch(indexKeyFrom("svc_a"), indexKeyTo("svc_a"), 0, 10000L)) {
+      assertThat(fetch).hasNext();
+      assertThat(fetch.next())
+        .extracting(next -> next.key.key(), next -> next.value)
+        .containsExactly(indexKey("svc_a", a.traceId()), a.traceId());
+      assertThat(fetch).isExhausted();
+    }
+    WindowStore<String, String> spanNameIndex =
+      testDriver.getWindowStore(SPAN_NAME_INDEX_STORE_NAME);
+    try (final KeyValueIterator<Windowed<String>, String> fetch =
+           spanNameIndex.fetch(indexKeyFrom("op_b"), indexKeyTo("op_b"), 0, 10000L)) {
+      assertThat(fetch).hasNext();
+      assertThat(fetch.next().value).isEqualTo(a.traceId());
+      assertThat(fetch).isExhausted();
+    }
+    WindowStore<String, String> tagIndex = testDriver.getWindowStore(TAG_INDEX_STORE_NAME);
+    try (final KeyValueIterator<Windowed<String>, String> fetch =
+           tagIndex.fetch(indexKeyFrom("environment=dev"), indexKeyTo("environment=dev"), 0,
+             10000L)) {
+      assertThat(fetch).hasNext();
+      assertThat(fetch.next().value).isEqualTo(a.traceId());
+      assertThat(fetch).isExhausted();
+    }
+    // Then: partitions of each service are recorded, until the end of the interval
+    KeyValueStore<String, Map<Integer, Long>> servicePartitions =
+      testDriver.getKeyValueStore(SERVICE_PARTITIONS_STORE_NAME);
+    long interval = SERVICE_PARTITIONS_INTERVAL.toMillis();
+    assertThat(servicePartitions.get("svc_a")).containsExactly(entry(0, interval));
+    assertThat(servicePartitions.get("svc_b")).containsExactly(entry(0, interval));
+    // Then: service names are recorded once, with when they were last seen
+    KeyValueStore<String, Long> serviceNames =
+      testDriver.getKeyValueStore(SERVICE_NAMES_STORE_NAME);
+    assertThat(serviceNames.approximateNumEntries()).isEqualTo(2L);
+    assertThat(serviceNames.get("svc_a")).isEqualTo(interval);
+    assertThat(serviceNames.get("svc_b")).isEqualTo(interval);
+    // When: a new span name is received for a known service
+    Span d = Span.newBuilder().traceId("d").id("d").name("op_d").kind(Span.Kind.CLIENT)
+      .localEndpoint(Endpoint.newBuilder().serviceName("svc_a").build())
+      .timestamp(20000L).duration(11L)
+      .build();
+    factory.pipeInput(d.traceId(), Collections.singletonList(d), 20L);
+    testDriver.advanceWallClockTime(NAMES_FLUSH_INTERVAL);
+    // Then: span names are updated
+    try (final WindowStoreIterator<byte[]> fetch = spanNames.backwardFetch("svc_a", 0, 20L)) {
+      assertThat(fetch).hasNext();
+      assertThat(NamesSerde.decode(fetch.next().value)).containsExactly("op_a", "op_d");
+    }
+    // When: a service has spans on a later interval
+    Span e = d.toBuilder().traceId("e").id("e").timestamp(interval * 1000L * 2).build();
+    factory.pipeInput(e.traceId(), Collections.singletonList(e), 30L);
+    // Then: its partition is recorded until the later interval
+    assertThat(servicePartitions.get("svc_a")).containsExactly(entry(0, interval * 3));
+    assertThat(serviceNames.get("svc_a")).isEqualTo(interval * 3);
+    // Finally close resources
+    testDriver.close();
+    spansSerde.close();
+  }
+
+  @Test void should_evictExpiredTraces_keepingMinTracesStored() {
+    // Given: configs
+    Duration traceTtl = Duration.ofMinutes(1);
+    Duration traceTtlCheckInterval = Duration.ofMinutes(1);
+    List<String> autocompleteKeys = Collections.emptyList();
+    SpansSerde spansSerde = new SpansSerde();
+    // When: topology provided, keeping at least 1 trace
+    Topology topology = new TraceStorageTopology(
+      spansTopic,
+      autocompleteKeys,
+      traceTtl,
+      traceTtlCheckInterval,
+      1,
+      true,
+      false,
+      false).get();
+    TopologyTestDriver testDriver = new TopologyTestDriver(topology, props);
+    TestInputTopic<String, List<Span>> factory =
+      testDriver.createInputTopic(spansTopic, new StringSerializer(), spansSerde.serializer());
+    // When: two traces older than TTL are stored
+    Span a = Span.newBuilder().traceId("a").id("a").name("op_a")
+      .localEndpoint(Endpoint.newBuilder().serviceName("svc_a").build())
+      .timestamp(10000L).duration(11L)
+      .build();
+    Span b = Span.newBuilder().traceId("b").id("b").name("op_b")
+      .localEndpoint(Endpoint.newBuilder().serviceName("svc_b").build())
+      .timestamp(20000L).duration(10L)
+      .build();
+    factory.pipeInput(a.traceId(), Collections.singletonList(a), 10L);
+    factory.pipeInput(b.traceId(), Collections.singletonList(b), 20L);
+    WindowStore<String, List<Span>> traces = testDriver.getWindowStore(TRACES_STORE_NAME);
+    try (KeyValueIterator<Windowed<String>, List<Span>> all = traces.all()) {
+      assertThat(all).toIterable().hasSize(2);
+    }
+    // When: TTL is checked
+    testDriver.advanceWallClockTime(traceTtlCheckInterval);
+    // Then: only the latest trace is kept
+    try (KeyValueIterator<Windowed<String>, List<Span>> all = traces.all()) {
+      assertThat(all).hasNext();
+      assertThat(traceId(all.next().key.key())).isEqualTo(b.traceId());
+      assertThat(all).isExhausted();
+    }
+    // Finally close resources
+    testDriver.close();
+    spansSerde.close();
+  }
+
+  @Test void should_evictPostings_ofEvictedTraces() {
+    // Given: configs
+    Duration traceTtl = Duration.ofMinutes(1);
+    Duration traceTtlCheckInterval = Duration.ofMinutes(1);
+    List<String> autocompleteKeys = Collections.emptyList();
+    SpansSerde spansSerde = new SpansSerde();
+    // When: topology provided with search enabled, keeping at least 1 trace
+    Topology topology = new TraceStorageTopology(
+      spansTopic,
+      autocompleteKeys,
+      traceTtl,
+      traceTtlCheckInterval,
+      1,
+      true,
+      true,
+      false).get();
+    TopologyTestDriver testDriver = new TopologyTestDriver(topology, props);
+    TestInputTopic<String, List<Span>> factory =
+      testDriver.createInputTopic(spansTopic, new StringSerializer(), spansSerde.serializer());
+    // When: two traces of the same service older than TTL are stored
+    Span a = Span.newBuilder().traceId("a").id("a").name("op_a")
+      .localEndpoint(Endpoint.newBuilder().serviceName("svc_a").build())
+      .timestamp(10000L).duration(11L)
+      .build();
+    Span b = a.toBuilder().traceId("b").id("b").timestamp(20000L).build();
+    factory.pipeInput(a.traceId(), Collections.singletonList(a), 10L);
+    factory.pipeInput(b.traceId(), Collections.singletonList(b), 20L);
+    // When: TTL is checked
+    testDriver.advanceWallClockTime(traceTtlCheckInterval);
+    // Then: only the postings of the kept trace are left
+    WindowStore<String, String> serviceNameIndex =
+      testDriver.getWindowStore(SERVICE_NAME_INDEX_STORE_NAME);
+    try (KeyValueIterator<Windowed<String>, String> all = serviceNameIndex.all()) {
+      assertThat(all).hasNext();
+      assertThat(all.next().value).isEqualTo(b.traceId());
+      assertThat(all).isExhausted();
+    }
+    // Finally close resources
+    testDriver.close();
+    spansSerde.close();
+  }
+
+  @Test void should_persistSpans_withBinaryTraceIds() {
+    // Given: topology keying trace IDs as bytes
+    Duration traceTtl = Duration.ofMinutes(1);
+    SpansSerde spansSerde = new SpansSerde();
+    Topology topology = new TraceStorageTopology(
+      spansTopic,
+      Collections.emptyList(),
+      traceTtl,
+      Duration.ofMinutes(1),
+      0,
+      true,
+      false,
+      true).get();
+    TopologyTestDriver testDriver = new TopologyTestDriver(topology, props);
+    Span a = Span.newBuilder().traceId("463ac35c9f6413ad").id("a").name("op_a")
+      .localEndpoint(Endpoint.newBuilder().serviceName("svc_a").build())
+      .timestamp(10000L).duration(11L)
+      .build();
+    Span b = a.toBuilder().id("b").build();
+    // Given: a batch stored keyed by string trace ID, before trace IDs were binary
+    WindowStore<String, List<Span>> traces = testDriver.getWindowStore(TRACES_STORE_NAME);
+    traces.put(stringTraceKey(traceKey(b.traceId(), 0L)), Collections.singletonList(b), 10L);
+    // When: a batch is passed
+    testDriver.createInputTopic(spansTopic, new TraceIdSerde(true).serializer(),
+      spansSerde.serializer()).pipeInput(a.traceId(), Collections.singletonList(a), 10L);
+    // Then: each batch is found only by the keys of its form
+    try (KeyValueIterator<Windowed<String>, List<Span>> fetch =
+           traces.fetch(traceKeyFrom(a.traceId()), traceKeyTo(a.traceId()), 0, 10000L)) {
+      KeyValue<Windowed<String>, List<Span>> next = fetch.next();
+      assertThat(traceId(next.key.key())).isEqualTo(a.traceId());
+      assertThat(next.value).containsExactly(a);
+      assertThat(fetch).isExhausted();
+    }
+    try (KeyValueIterator<Windowed<String>, List<Span>> fetch =
+           traces.fetch(stringTraceKey(traceKeyFrom(b.traceId())),
+             stringTraceKey(traceKeyTo(b.traceId())), 0, 10000L)) {
+      KeyValue<Windowed<String>, List<Span>> next = fetch.next();
+      assertThat(traceId(next.key.key())).isEqualTo(b.traceId());
+      assertThat(next.value).containsExactly(b);
+      assertThat(fetch).isExhausted();
+    }
     // Finally close resources
     testDriver.close();
     spansSerde.close();
   }
+
+  @Test void isIndexKey_onlyMatchesTermAndTraceId() {
+    assertThat(isIndexKey("svc", indexKey("svc", "a"), "a")).isTrue();
+    // Same length, but another term or trace ID
+    assertThat(isIndexKey("svc", indexKey("sva", "a"), "a")).isFalse();
+    assertThat(isIndexKey("svc", indexKey("svc", "a"), "b")).isFalse();
+  }
+
+  @Test void isTraceKey_onlyMatchesTraceId() {
+    String traceId = "000000000000000a";
+    assertThat(isTraceKey(traceId, traceKey(traceId, 42L))).isTrue();
+    assertThat(isTraceKey(traceId, stringTraceKey(traceKey(traceId, 42L)))).isTrue();
+    // Same length, sharing a prefix
+    assertThat(isTraceKey(traceId, traceKey("000000000000000b", 42L))).isFalse();
+    assertThat(isTraceKey(traceId, stringTraceKey(traceKey("000000000000000b", 42L)))).isFalse();
+  }
 }
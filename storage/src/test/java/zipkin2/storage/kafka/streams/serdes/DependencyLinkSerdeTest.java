@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams.serdes;
+
+import org.junit.jupiter.api.Test;
+import zipkin2.DependencyLink;
+import zipkin2.codec.DependencyLinkBytesEncoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DependencyLinkSerdeTest {
+  DependencyLinkSerde serde = new DependencyLinkSerde();
+  DependencyLink link = DependencyLink.newBuilder()
+    .parent("svc_a")
+    .child("svc_é")
+    .callCount(Long.MAX_VALUE)
+    .errorCount(300L)
+    .build();
+
+  @Test void roundTrip() {
+    byte[] serialized = serde.serializer().serialize("topic", link);
+
+    assertThat(serde.deserializer().deserialize("topic", serialized)).isEqualTo(link);
+    assertThat(serialized).hasSizeLessThan(DependencyLinkBytesEncoder.JSON_V1.encode(link).length);
+  }
+
+  @Test void legacyJson_isReadable() {
+    byte[] json = DependencyLinkBytesEncoder.JSON_V1.encode(link);
+
+    assertThat(serde.deserializer().deserialize("topic", json)).isEqualTo(link);
+  }
+
+  @Test void linkKey() {
+    assertThat(DependencyLinkSerde.linkKey(link)).isEqualTo("svc_a:svc_é");
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams.serdes;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class NamesSerdeTest {
+  NamesSerde serde = new NamesSerde();
+
+  @Test void roundTrip_sortsNames() {
+    Set<String> names = new LinkedHashSet<>(Arrays.asList("op_b", "op|a", "", "op_a"));
+
+    byte[] serialized = serde.serializer().serialize("topic", names);
+
+    assertThat(serde.deserializer().deserialize("topic", serialized))
+      .containsExactly("", "op_a", "op_b", "op|a");
+  }
+
+  @Test void insert_keepsNamesSorted() {
+    byte[] data = NamesSerde.encode(Collections.emptySet());
+    for (String name : Arrays.asList("op_c", "op_a", "op_b", "op_d")) {
+      data = NamesSerde.insert(data, name);
+    }
+
+    assertThat(NamesSerde.decode(data)).containsExactly("op_a", "op_b", "op_c", "op_d");
+    assertThat(data).isEqualTo(NamesSerde.encode(Arrays.asList("op_d", "op_c", "op_b", "op_a")));
+  }
+
+  @Test void insert_returnsSameData_whenNameIsKnown() {
+    byte[] data = NamesSerde.encode(Arrays.asList("op_a", "op_b"));
+
+    assertThat(NamesSerde.insert(data, "op_b")).isSameAs(data);
+  }
+
+  @Test void insert_growsCount() {
+    byte[] data = NamesSerde.encode(Collections.emptySet());
+    for (int i = 0; i < 200; i++) data = NamesSerde.insert(data, "name_" + i);
+
+    assertThat(NamesSerde.decode(data)).hasSize(200);
+  }
+
+  @Test void contains() {
+    byte[] data = NamesSerde.encode(Arrays.asList("op_a", "op_c"));
+
+    assertThat(NamesSerde.contains(data, "op_a")).isTrue();
+    assertThat(NamesSerde.contains(data, "op_b")).isFalse();
+    assertThat(NamesSerde.contains(data, "op_d")).isFalse();
+  }
+
+  @Test void legacyFormat_isReadable() {
+    byte[] legacy = "op_b|op_a".getBytes(UTF_8);
+
+    assertThat(serde.deserializer().deserialize("topic", legacy)).containsExactly("op_b", "op_a");
+    assertThat(NamesSerde.contains(legacy, "op_a")).isTrue();
+    assertThat(NamesSerde.decode(NamesSerde.insert(legacy, "op_c")))
+      .containsExactly("op_a", "op_b", "op_c");
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams.serdes;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.kafka.streams.KeyValue;
+import org.junit.jupiter.api.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+class PackedTracesTest {
+  Span a1 = Span.newBuilder().traceId("a").id("1").name("op_a")
+    .localEndpoint(Endpoint.newBuilder().serviceName("svc_a").build())
+    .build();
+  Span a2 = a1.toBuilder().id("2").build();
+  Span b1 = a1.toBuilder().traceId("b").build();
+
+  @Test void roundTrip() {
+    Map<String, byte[]> traces = new LinkedHashMap<>();
+    traces.put("a", SpanBytesEncoder.PROTO3.encodeList(Arrays.asList(a1, a2)));
+    traces.put("b", SpanBytesEncoder.PROTO3.encodeList(Collections.singletonList(b1)));
+
+    byte[] packed = PackedTraces.pack(traces);
+
+    assertThat(PackedTraces.isPacked(packed)).isTrue();
+    assertThat(PackedTraces.unpack(packed))
+      .containsExactly(entry("a", Arrays.asList(a1, a2)), entry("b", Arrays.asList(b1)));
+  }
+
+  @Test void isPacked_notListOfSpans() {
+    assertThat(PackedTraces.isPacked(SpanBytesEncoder.PROTO3.encodeList(Arrays.asList(a1))))
+      .isFalse();
+    assertThat(PackedTraces.isPacked(new byte[0])).isFalse();
+    assertThat(PackedTraces.isPacked(null)).isFalse();
+  }
+
+  @Test void records_listOfSpans() {
+    byte[] spans = SpanBytesEncoder.PROTO3.encodeList(Arrays.asList(a1, a2));
+
+    assertThat(PackedTraces.records("a", spans))
+      .containsExactly(KeyValue.pair("a", Arrays.asList(a1, a2)));
+  }
+
+  @Test void records_packed() {
+    Map<String, byte[]> traces = new LinkedHashMap<>();
+    traces.put("a", SpanBytesEncoder.PROTO3.encodeList(Arrays.asList(a1)));
+    traces.put("b", SpanBytesEncoder.PROTO3.encodeList(Arrays.asList(b1)));
+
+    assertThat(PackedTraces.records(null, PackedTraces.pack(traces))).containsExactly(
+      KeyValue.pair("a", Arrays.asList(a1)),
+      KeyValue.pair("b", Arrays.asList(b1)));
+  }
+}
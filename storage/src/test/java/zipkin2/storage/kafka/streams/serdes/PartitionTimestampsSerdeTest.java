@@ -0,0 +1,44 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams.serdes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+class PartitionTimestampsSerdeTest {
+  PartitionTimestampsSerde serde = new PartitionTimestampsSerde();
+
+  @Test void roundTrip_sortsPartitions() {
+    Map<Integer, Long> timestamps = new LinkedHashMap<>();
+    timestamps.put(12, 1_600_000_000_000L);
+    timestamps.put(0, 0L);
+    timestamps.put(3, 1L);
+
+    byte[] serialized = serde.serializer().serialize("topic", timestamps);
+
+    assertThat(serde.deserializer().deserialize("topic", serialized))
+      .containsExactly(entry(0, 0L), entry(3, 1L), entry(12, 1_600_000_000_000L));
+  }
+
+  @Test void roundTrip_empty() {
+    byte[] serialized = serde.serializer().serialize("topic", new LinkedHashMap<>());
+
+    assertThat(serialized).hasSize(1);
+    assertThat(serde.deserializer().deserialize("topic", serialized)).isEmpty();
+  }
+}
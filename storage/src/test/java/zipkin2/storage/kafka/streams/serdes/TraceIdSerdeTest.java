@@ -0,0 +1,58 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams.serdes;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TraceIdSerdeTest {
+  TraceIdSerde binary = new TraceIdSerde(true);
+  TraceIdSerde string = new TraceIdSerde(false);
+
+  @Test void roundTrip() {
+    for (String traceId : new String[] {"463ac35c9f6413ad", "463ac35c9f6413ad48485a3953bb6124"}) {
+      byte[] serialized = binary.serializer().serialize("topic", traceId);
+
+      assertThat(serialized).hasSize(1 + traceId.length() / 2);
+      assertThat(binary.deserializer().deserialize("topic", serialized)).isEqualTo(traceId);
+    }
+  }
+
+  @Test void roundTrip_bytesOfHexCharacters() {
+    // bytes of the trace ID are ASCII "01234567"
+    String traceId = "3031323334353637";
+    byte[] serialized = binary.serializer().serialize("topic", traceId);
+
+    assertThat(binary.deserializer().deserialize("topic", serialized)).isEqualTo(traceId);
+    assertThat(string.deserializer().deserialize("topic", serialized)).isEqualTo(traceId);
+  }
+
+  @Test void deserialize_stringTraceId() {
+    String traceId = "463ac35c9f6413ad48485a3953bb6124";
+    byte[] serialized = string.serializer().serialize("topic", traceId);
+
+    assertThat(serialized).isEqualTo(traceId.getBytes(StandardCharsets.UTF_8));
+    assertThat(binary.deserializer().deserialize("topic", serialized)).isEqualTo(traceId);
+    assertThat(string.deserializer().deserialize("topic", serialized)).isEqualTo(traceId);
+  }
+
+  @Test void serialize_notHexAsString() {
+    assertThat(binary.serializer().serialize("topic", "a"))
+      .isEqualTo("a".getBytes(StandardCharsets.UTF_8));
+    assertThat(binary.serializer().serialize("topic", "463AC35C9F6413AD"))
+      .isEqualTo("463AC35C9F6413AD".getBytes(StandardCharsets.UTF_8));
+  }
+}
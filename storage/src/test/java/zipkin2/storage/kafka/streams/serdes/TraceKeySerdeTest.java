@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019-2021 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.kafka.streams.serdes;
+
+import java.nio.charset.StandardCharsets;
+import org.apache.kafka.common.utils.Bytes;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.storage.kafka.streams.serdes.TraceKeySerde.stringKey;
+
+class TraceKeySerdeTest {
+  static final String TRACE_ID = "463ac35c9f6413ad48485a3953bb6124";
+
+  TraceKeySerde binary = new TraceKeySerde(true);
+  TraceKeySerde string = new TraceKeySerde(false);
+
+  @Test void roundTrip() {
+    String key = TRACE_ID + ":000000000000002a";
+    byte[] serialized = binary.serializer().serialize("topic", key);
+
+    assertThat(serialized).hasSize(2 + 16 + 8);
+    assertThat(binary.deserializer().deserialize("topic", serialized)).isEqualTo(key);
+  }
+
+  @Test void rangeBounds_includeAllSequences() {
+    byte[] from = binary.serializer().serialize("topic", TRACE_ID + ":");
+    byte[] to = binary.serializer().serialize("topic", TRACE_ID + ":\uffff");
+    byte[] first = binary.serializer().serialize("topic", TRACE_ID + ":0000000000000000");
+    byte[] last = binary.serializer().serialize("topic", TRACE_ID + ":ffffffffffffffff");
+    byte[] next = binary.serializer().serialize("topic", "463ac35c9f6413ad48485a3953bb6125:");
+
+    assertThat(Bytes.BYTES_LEXICO_COMPARATOR.compare(from, first)).isNegative();
+    assertThat(Bytes.BYTES_LEXICO_COMPARATOR.compare(last, to)).isNotPositive();
+    assertThat(Bytes.BYTES_LEXICO_COMPARATOR.compare(to, next)).isNegative();
+  }
+
+  @Test void rangeBounds_binaryAndStringRangesDontOverlap() {
+    byte[] from = binary.serializer().serialize("topic", TRACE_ID + ":");
+    byte[] to = binary.serializer().serialize("topic", TRACE_ID + ":\uffff");
+    byte[] stringFrom = binary.serializer().serialize("topic", stringKey(TRACE_ID + ":"));
+    byte[] stringTo = binary.serializer().serialize("topic", stringKey(TRACE_ID + ":\uffff"));
+
+    assertThat(from[0]).isEqualTo(TraceIdSerde.BINARY_FORMAT);
+    assertThat(from[1]).isEqualTo((byte) 16);
+    assertThat(Bytes.BYTES_LEXICO_COMPARATOR.compare(stringTo, from)).isNegative();
+    assertThat(Bytes.BYTES_LEXICO_COMPARATOR.compare(stringFrom, stringTo)).isNegative();
+  }
+
+  @Test void stringKeys_readAndWrittenBackAsStrings() {
+    String key = TRACE_ID + ":000000000000002a";
+    byte[] serialized = string.serializer().serialize("topic", key);
+
+    assertThat(serialized).isEqualTo(key.getBytes(StandardCharsets.UTF_8));
+    assertThat(string.deserializer().deserialize("topic", serialized)).isEqualTo(key);
+    // Read while binary, marked so it is written back as stored
+    String read = binary.deserializer().deserialize("topic", serialized);
+    assertThat(read).isEqualTo(stringKey(key));
+    assertThat(binary.serializer().serialize("topic", read)).isEqualTo(serialized);
+  }
+
+  @Test void roundTrip_traceIdOfHexCharacterBytes() {
+    // bytes of the trace ID are ASCII "01234567"
+    String key = "3031323334353637:000000000000002a";
+    byte[] serialized = binary.serializer().serialize("topic", key);
+
+    assertThat(binary.deserializer().deserialize("topic", serialized)).isEqualTo(key);
+  }
+
+  @Test void serialize_notHexAsString() {
+    assertThat(binary.serializer().serialize("topic", "a:000000000000002a"))
+      .isEqualTo("a:000000000000002a".getBytes(StandardCharsets.UTF_8));
+  }
+}